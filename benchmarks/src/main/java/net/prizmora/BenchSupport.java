@@ -0,0 +1,137 @@
+package net.prizmora;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Configuration and HTTP request/response stand-ins shared by the
+ * benchmarks.
+ */
+final class BenchSupport {
+
+    private BenchSupport() {
+    }
+
+    /**
+     * Writes a config using the stub driver, with extra settings given as
+     * name, value, name, value, ...
+     */
+    static PrizmoraConfig config(String... settings) throws Exception {
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        File errorPage = File.createTempFile("error", ".html");
+        errorPage.deleteOnExit();
+        File file = File.createTempFile("bench", ".properties");
+        file.deleteOnExit();
+
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write("dad=ora\nurlPrefix=/\nlistenPort=0\n");
+            out.write("errorPage=" + errorPage.getPath() + "\n");
+            out.write("spoolDirectory=" + tmp.getPath() + "\n");
+            out.write("dbHost=stub\ndbSid=stub\ndbUsername=stub\n");
+            out.write("dbUrl=" + StubDriver.URL + "\n");
+            out.write("dbTestOnRelease=false\n");
+            Map<String, String> values = new HashMap<String, String>();
+            values.put("dbMinConnections", "1");
+            values.put("dbMaxConnections", "16");
+            for (int i = 0; i < settings.length; i += 2) {
+                values.put(settings[i], settings[i + 1]);
+            }
+            for (Map.Entry<String, String> e : values.entrySet()) {
+                out.write(e.getKey() + "=" + e.getValue() + "\n");
+            }
+        }
+        finally {
+            out.close();
+        }
+        return new PrizmoraConfig(file.getPath());
+    }
+
+    static class Request implements HttpRequest {
+        private final String path;
+        private final Map<String, List<String>> form;
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        Request(String path, Map<String, List<String>> form) {
+            this.path = path;
+            this.form = form;
+            headers.put("host", "localhost:8080");
+            headers.put("user-agent", "Mozilla/5.0 (X11; Linux x86_64) bench");
+            headers.put("accept", "text/html,application/xhtml+xml");
+            headers.put("cookie", "session=0123456789abcdef; theme=dark");
+        }
+
+        public String getMethod() { return "GET"; }
+        public String getPath() { return path; }
+        public String getDirectory() { return path.substring(0, path.lastIndexOf('/') + 1); }
+        public String getName() { return path.substring(path.lastIndexOf('/') + 1); }
+        public String getQueryString() { return "a=1&b=2"; }
+        public Map<String, List<String>> getQuery() { return form; }
+
+        public Map<String, List<String>> getForm() {
+            Map<String, List<String>> copy = new HashMap<String, List<String>>();
+            for (Map.Entry<String, List<String>> e : form.entrySet()) {
+                copy.put(e.getKey(), new ArrayList<String>(e.getValue()));
+            }
+            return copy;
+        }
+
+        public List<HttpPart> getParts() { return Collections.emptyList(); }
+        public String getProtocol() { return "HTTP/1.1"; }
+        public String getScheme() { return "http"; }
+        public String getValue(String name) { return headers.get(name.toLowerCase()); }
+        public long getContentLength() { return -1; }
+        public MediaType getContentType() { return null; }
+        public InetSocketAddress getClientAddress() { return new InetSocketAddress("127.0.0.1", 40000); }
+        public InputStream getInputStream() { return null; }
+        public void onDisconnect(Runnable callback) { }
+    }
+
+    /** A response that throws away its body. */
+    static class Response implements HttpResponse {
+        private final OutputStream out = new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        };
+        private int code;
+
+        public void setCode(int code) { this.code = code; }
+        public int getCode() { return code; }
+        public void setText(String text) { }
+        public void set(String name, String value) { }
+        public void add(String name, String value) { }
+        public void setContentLength(long length) { }
+        public OutputStream getOutputStream() { return out; }
+        public PrintStream getPrintStream() { return new PrintStream(out); }
+        public WritableByteChannel getByteChannel() { return Channels.newChannel(out); }
+        public void sendFile(File file, long position, long count) { }
+        public long getBodyLength() { return 0; }
+        public void close() { }
+        public void abort() { }
+    }
+
+    static Map<String, List<String>> form(String... nameValues) {
+        Map<String, List<String>> form = new HashMap<String, List<String>>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            List<String> values = form.get(nameValues[i]);
+            if (values == null) {
+                values = new ArrayList<String>();
+                form.put(nameValues[i], values);
+            }
+            values.add(nameValues[i + 1]);
+        }
+        return form;
+    }
+
+}
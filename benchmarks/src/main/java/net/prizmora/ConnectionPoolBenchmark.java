@@ -0,0 +1,73 @@
+package net.prizmora;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * PrizmoraConnectionPool.get/release with several threads contending for
+ * the pool lock. Release is asynchronous, so a get can find the pool
+ * exhausted; those attempts are retried for up to MAX_RETRY_NANOS, after
+ * which the trial fails rather than spinning on a pool that can't connect.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class ConnectionPoolBenchmark {
+
+    private static final long MAX_RETRY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private PrizmoraConnectionPool pool;
+
+    @Setup
+    public void setup() throws Exception {
+        pool = new PrizmoraConnectionPool(BenchSupport.config("dbMaxConnections", "16"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pool.release();
+    }
+
+    @Benchmark
+    public void getRelease(Blackhole bh) throws Exception {
+        Connection conn;
+        long giveUp = 0;
+        while (true) {
+            try {
+                conn = pool.get();
+                break;
+            }
+            catch (CircuitOpenException e) {
+                throw new IllegalStateException("Stub database unavailable", e);
+            }
+            catch (SQLException e) {
+                // only read the clock once the pool has been found exhausted
+                long now = System.nanoTime();
+                if (giveUp == 0) {
+                    giveUp = now + MAX_RETRY_NANOS;
+                }
+                else if (now - giveUp > 0) {
+                    throw new IllegalStateException("No connection from the pool in 10s", e);
+                }
+                bh.consume(e);
+                Thread.yield();
+            }
+        }
+        bh.consume(conn);
+        pool.release(conn);
+    }
+
+}
@@ -0,0 +1,114 @@
+package net.prizmora;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The Java side of a procedure call: building the CGI environment block,
+ * building and binding the call in dbCall, looking up argument types, and
+ * turning form values into a ProcedureCall. Statements go to StubDriver,
+ * so they cost next to nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProcedureCacheBenchmark {
+
+    @Param({ "2", "10", "40" })
+    int arguments;
+
+    private ProcedureCache procCache;
+    private Connection conn;
+    private HttpRequest req;
+    private Map<String, List<String>> form;
+    private ProcedureCache.ProcedureTypes types;
+    private ProcedureCache.ProcedureCall call;
+    private String[] lookups;
+    private int next;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        procCache = new ProcedureCache(BenchSupport.config());
+        conn = StubDriver.newConnection();
+
+        String[] nameTypes = new String[arguments * 2 + 2];
+        String[] nameValues = new String[arguments * 2 + 6];
+        StringBuilder urlencoded = new StringBuilder();
+        for (int i = 0; i < arguments; i++) {
+            nameTypes[i * 2] = "p_arg" + i;
+            nameTypes[i * 2 + 1] = "VARCHAR2";
+            nameValues[i * 2] = "p_arg" + i;
+            nameValues[i * 2 + 1] = "value " + i;
+            urlencoded.append("p_arg").append(i).append("=value+").append(i).append('&');
+        }
+        // one PL/SQL table argument with a few values
+        nameTypes[arguments * 2] = "p_ids";
+        nameTypes[arguments * 2 + 1] = "SYS.OWA_UTIL.IDENT_ARR";
+        for (int i = 0; i < 3; i++) {
+            nameValues[arguments * 2 + i * 2] = "p_ids";
+            nameValues[arguments * 2 + i * 2 + 1] = "id" + i;
+            urlencoded.append("p_ids=id").append(i).append('&');
+        }
+        StubDriver.describe(nameTypes);
+
+        form = BenchSupport.form(nameValues);
+        req = new BenchSupport.Request("/ce/ora/bench_pkg.show", form);
+        CallContext ctx = new CallContext(0);
+        types = new ProcedureCache.ProcedureTypes("bench_pkg.show", conn, ctx);
+        call = new ProcedureCache.ProcedureCall(req, form, null);
+
+        lookups = new String[arguments + 2];
+        for (int i = 0; i < arguments; i++) {
+            lookups[i] = "p_arg" + i;
+        }
+        lookups[arguments] = "p_ids";
+        lookups[arguments + 1] = "p_missing";
+        body = urlencoded.toString().getBytes("ISO-8859-1");
+    }
+
+    @Benchmark
+    public Object dbCall() throws Exception {
+        return procCache.dbCall(call, types, conn, new CallContext(0));
+    }
+
+    @Benchmark
+    public void setCGIVars() throws Exception {
+        procCache.setCGIVars(req, conn, new CallContext(0));
+    }
+
+    @Benchmark
+    public String getArgumentType() {
+        String name = lookups[next];
+        next = (next + 1) % lookups.length;
+        return types.getArgumentType(name);
+    }
+
+    @Benchmark
+    public Object newProcedureCall() {
+        return new ProcedureCache.ProcedureCall(req, form, null);
+    }
+
+    @Benchmark
+    public Object parseUrlencodedForm() throws Exception {
+        Map<String, List<String>> values = new HashMap<String, List<String>>();
+        new FormStreamParser(Charset.forName("UTF-8"), 32 * 1024, 0)
+            .parse(new ByteArrayInputStream(body), values, null);
+        return values;
+    }
+
+}
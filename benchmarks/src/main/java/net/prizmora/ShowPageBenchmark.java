@@ -0,0 +1,63 @@
+package net.prizmora;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Header parsing and UTF-8 encoding of a generated page in
+ * Prizmora.showPage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShowPageBenchmark {
+
+    @Param({ "1", "64", "1024" })
+    int pageKb;
+
+    @Param({ "true", "false" })
+    boolean headers;
+
+    private Prizmora prizmora;
+    private String page;
+    private HttpRequest req;
+
+    @Setup
+    public void setup() throws Exception {
+        prizmora = new Prizmora(BenchSupport.config());
+        req = new BenchSupport.Request("/ce/ora/pkg.show", BenchSupport.form());
+
+        StringBuilder sb = new StringBuilder(pageKb * 1024 + 256);
+        if (headers) {
+            sb.append("Content-type: text/html\n");
+            sb.append("Set-Cookie: session=0123456789abcdef; path=/\n");
+            sb.append("Cache-Control: no-cache\n");
+            sb.append("\n");
+        }
+        sb.append("<html><body>\n");
+        // mostly ASCII with some Latin-1, like most of our pages
+        String row = "<tr><td>M\u00fcller</td><td>12345</td><td>\u00dcberweisung erfolgt</td></tr>\n";
+        while (sb.length() < pageKb * 1024) {
+            sb.append(row);
+        }
+        sb.append("</body></html>\n");
+        page = sb.toString();
+    }
+
+    @Benchmark
+    public int showPage() throws Exception {
+        BenchSupport.Response resp = new BenchSupport.Response();
+        prizmora.showPage(new StringReader(page), req, resp);
+        return resp.getCode();
+    }
+
+}
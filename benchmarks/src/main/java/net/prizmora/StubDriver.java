@@ -0,0 +1,151 @@
+package net.prizmora;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver for "jdbc:stub:" URLs whose statements do nothing, so the
+ * Java side of a request can be measured without a database. Describe
+ * calls (dbms_utility.name_resolve) return the arguments set with
+ * describe() and resolve names to the BENCH schema, OWA.GET_PAGE returns
+ * an empty page, and queries return a single row.
+ */
+public class StubDriver implements Driver {
+
+    public static final String URL = "jdbc:stub:";
+
+    private static volatile String arguments = "";
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver());
+        }
+        catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sets the arguments every procedure is described as having, given as
+     * name, type, name, type, ...
+     */
+    public static void describe(String... nameTypes) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nameTypes.length; i += 2) {
+            sb.append(nameTypes[i]).append((char) 31).append(nameTypes[i + 1]).append((char) 30);
+        }
+        arguments = sb.toString();
+    }
+
+    public static Connection newConnection() {
+        return (Connection) proxy(Connection.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("prepareCall") || name.equals("prepareStatement")) {
+                    return newStatement((String) args[0]);
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static CallableStatement newStatement(final String sql) {
+        final boolean describe = sql.contains("dbms_utility.name_resolve");
+        return (CallableStatement) proxy(CallableStatement.class, new InvocationHandler() {
+            private String procName;
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("setString") && describe && args[0].equals(1)) {
+                    procName = (String) args[1];
+                }
+                if (name.equals("getString") && describe) {
+                    // the argument list, then the resolved name
+                    return args[0].equals(2) ? arguments : "bench." + procName.toLowerCase();
+                }
+                if (name.equals("executeQuery")) {
+                    return newResultSet();
+                }
+                if (name.equals("execute")) {
+                    return Boolean.FALSE;
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static ResultSet newResultSet() {
+        return (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+            private boolean read;
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("next")) {
+                    boolean next = !read;
+                    read = true;
+                    return next;
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(StubDriver.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        }
+        if (type == Integer.TYPE) {
+            return 0;
+        }
+        if (type == Long.TYPE) {
+            return 0L;
+        }
+        if (type == Short.TYPE) {
+            return (short) 0;
+        }
+        if (type == Byte.TYPE) {
+            return (byte) 0;
+        }
+        if (type == Float.TYPE) {
+            return 0f;
+        }
+        if (type == Double.TYPE) {
+            return 0d;
+        }
+        return null;
+    }
+
+    public Connection connect(String url, Properties info) {
+        return acceptsURL(url) ? newConnection() : null;
+    }
+
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(URL);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() { return 1; }
+    public int getMinorVersion() { return 0; }
+    public boolean jdbcCompliant() { return false; }
+
+    public Logger getParentLogger() {
+        return Logger.getLogger("net.prizmora");
+    }
+
+}
@@ -0,0 +1,269 @@
+package net.prizmora;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An open-loop HTTP load generator. Requests are started on a fixed
+ * schedule (or a Poisson process with the same mean rate) whether or not
+ * earlier ones have finished, and each latency is measured from when the
+ * request was due to start, not from when a thread got round to sending
+ * it. A server that stalls therefore shows up in the percentiles instead of
+ * quietly lowering the offered load. Requests that couldn't be sent because
+ * every thread was busy, and requests still unanswered when the run gives
+ * up on them, count in the percentiles too, with their latency taken as
+ * lasting until the end of the run.
+ *
+ * Usage: LoadGenerator [options] url...
+ *
+ * <pre>
+ *   --rate N       requests per second (default 100)
+ *   --duration N   seconds to measure for (default 30)
+ *   --warmup N     seconds to run before measuring (default 5)
+ *   --threads N    maximum requests outstanding (default 200)
+ *   --poisson      exponentially distributed gaps between requests
+ * </pre>
+ *
+ * URLs are requested in turn.
+ */
+public class LoadGenerator {
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 60000;
+
+    private final String[] urls;
+    private final double rate;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final int threads;
+    private final boolean poisson;
+
+    private final Recorder recorder = new Recorder();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    // measured requests that haven't finished; whoever removes one records it
+    private final Set<Request> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Request, Boolean>());
+    private volatile boolean measuring;
+
+    public LoadGenerator(String[] urls, double rate, int durationSeconds, int warmupSeconds,
+                         int threads, boolean poisson) {
+        this.urls = urls;
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.warmupSeconds = warmupSeconds;
+        this.threads = threads;
+        this.poisson = poisson;
+    }
+
+    public static void main(String[] args) throws Exception {
+        double rate = 100;
+        int duration = 30;
+        int warmup = 5;
+        int threads = 200;
+        boolean poisson = false;
+        List<String> urls = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--poisson")) {
+                poisson = true;
+            }
+            else if (arg.startsWith("--") && i + 1 < args.length) {
+                String value = args[++i];
+                if (arg.equals("--rate")) {
+                    rate = Double.parseDouble(value);
+                }
+                else if (arg.equals("--duration")) {
+                    duration = Integer.parseInt(value);
+                }
+                else if (arg.equals("--warmup")) {
+                    warmup = Integer.parseInt(value);
+                }
+                else if (arg.equals("--threads")) {
+                    threads = Integer.parseInt(value);
+                }
+                else {
+                    usage();
+                }
+            }
+            else if (arg.startsWith("--")) {
+                usage();
+            }
+            else {
+                urls.add(arg);
+            }
+        }
+        if (urls.isEmpty() || rate <= 0 || duration <= 0 || threads <= 0) {
+            usage();
+        }
+
+        new LoadGenerator(urls.toArray(new String[urls.size()]), rate, duration, warmup,
+                threads, poisson).run();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoadGenerator [--rate N] [--duration N] [--warmup N]"
+                + " [--threads N] [--poisson] url...");
+        System.exit(2);
+    }
+
+    public void run() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        Random random = new Random();
+        double meanGapNanos = 1e9 / rate;
+
+        long start = System.nanoTime();
+        long measureStart = start + warmupSeconds * 1000000000L;
+        long end = measureStart + durationSeconds * 1000000000L;
+        System.out.printf("Offering %.1f req/s to %d URL(s), %ds warmup, %ds measured%n",
+                rate, urls.length, warmupSeconds, durationSeconds);
+
+        double due = start;
+        int next = 0;
+        List<Long> skipped = new ArrayList<Long>();
+        while ((long) due < end) {
+            long now = System.nanoTime();
+            if (now < (long) due) {
+                TimeUnit.NANOSECONDS.sleep((long) due - now);
+            }
+            measuring = (long) due >= measureStart;
+
+            if (outstanding.get() >= threads) {
+                // every thread is stuck; count the request as failed rather
+                // than let the backlog grow without bound
+                if (measuring) {
+                    skipped.add((long) due);
+                }
+            }
+            else {
+                outstanding.incrementAndGet();
+                Request request = new Request(urls[next], (long) due);
+                if (measuring) {
+                    inFlight.add(request);
+                }
+                workers.execute(request);
+            }
+            next = (next + 1) % urls.length;
+
+            due += poisson ? -Math.log(1 - random.nextDouble()) * meanGapNanos : meanGapNanos;
+        }
+
+        // no request can take longer than its timeouts
+        workers.shutdown();
+        workers.awaitTermination(CONNECT_TIMEOUT + READ_TIMEOUT + 1000, TimeUnit.MILLISECONDS);
+        long finished = System.nanoTime();
+        for (Request request : inFlight) {
+            if (inFlight.remove(request)) {
+                recorder.record(finished - request.due, "unfinished");
+            }
+        }
+        workers.shutdownNow();
+        for (long skippedDue : skipped) {
+            recorder.record(finished - skippedDue, "not sent (all busy)");
+        }
+        recorder.report(durationSeconds);
+    }
+
+    private class Request implements Runnable {
+        private final String url;
+        private final long due;
+
+        Request(String url, long due) {
+            this.url = url;
+            this.due = due;
+        }
+
+        public void run() {
+            int status = -1;
+            String error = null;
+            try {
+                status = fetch(url);
+            }
+            catch (IOException e) {
+                error = e.getClass().getSimpleName();
+            }
+            finally {
+                outstanding.decrementAndGet();
+            }
+            if (inFlight.remove(this)) {
+                recorder.record(System.nanoTime() - due, error != null ? error : String.valueOf(status));
+            }
+        }
+    }
+
+    private static int fetch(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        int status = conn.getResponseCode();
+        InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if (in != null) {
+            // read it all so the connection can be kept alive
+            byte[] buffer = new byte[8192];
+            try {
+                while (in.read(buffer) >= 0) {
+                    // discard
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Collects latencies and outcomes from the worker threads.
+     */
+    private static class Recorder {
+        // guarded by "this"
+        private long[] latencies = new long[1024];
+        private int count;
+        private final Map<String, Integer> outcomes = new TreeMap<String, Integer>();
+
+        synchronized void record(long latencyNanos, String outcome) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latencyNanos;
+            Integer n = outcomes.get(outcome);
+            outcomes.put(outcome, n == null ? 1 : n + 1);
+        }
+
+        synchronized void report(int durationSeconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+
+            System.out.printf("Measured %d requests, %.1f req/s%n", count, count / (double) durationSeconds);
+            for (Map.Entry<String, Integer> e : outcomes.entrySet()) {
+                System.out.printf("  %-24s %d%n", e.getKey(), e.getValue());
+            }
+            if (count == 0) {
+                return;
+            }
+            System.out.println("Latency (ms):");
+            double[] percentiles = { 50, 90, 99, 99.9 };
+            for (double p : percentiles) {
+                int i = (int) Math.ceil(p / 100 * count) - 1;
+                System.out.printf("  p%-6s %10.2f%n", p == (int) p ? String.valueOf((int) p) : String.valueOf(p),
+                        sorted[Math.max(0, i)] / 1e6);
+            }
+            System.out.printf("  %-7s %10.2f%n", "max", sorted[count - 1] / 1e6);
+        }
+    }
+
+}
@@ -0,0 +1,465 @@
+package net.prizmora;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * A JDBC driver that emulates the database calls Prizmora makes, so the
+ * gateway can be load tested without Oracle. Each kind of call sleeps for
+ * a configurable time, as if the database were doing the work:
+ *
+ * <ul>
+ * <li>dbms_session.reset_package (resetLatency)</li>
+ * <li>dbms_session.modify_package_state (reinitializeLatency)</li>
+ * <li>the owa.init_cgi_env block (cgiLatency)</li>
+ * <li>dbms_utility.name_resolve plus all_arguments (describeLatency); every
+ *     procedure has VARCHAR2 arguments arg1..argN (arguments) plus
+ *     name_array/value_array for flexible calls and resolves to the
+ *     LOADTEST schema, except that names starting with "missing" don't
+ *     exist</li>
+ * <li>the procedure call itself (callLatency, +/- callJitter), which
+ *     leaves a page of pageSize bytes to fetch</li>
+ * <li>each OWA.GET_PAGE round trip (fetchLatency)</li>
+ * <li>a function returning a ref cursor (callLatency), whose cursor has
+ *     cursorRows rows of id, name and created columns, costing
+ *     fetchLatency per fetch</li>
+ * </ul>
+ *
+ * Settings are given in the URL, e.g.
+ * "jdbc:owaemu:callLatency=20;pageSize=65536". Latencies are in ms. Sleeps
+ * honor setQueryTimeout and Statement.cancel(), which fail the call with
+ * ORA-01013 like the real thing. Uploads and downloads aren't emulated.
+ */
+public class OwaEmulatorDriver implements Driver {
+
+    public static final String URL = "jdbc:owaemu:";
+
+    private static final int LINE_LENGTH = 100;
+    private static final int LINES_PER_FETCH = 127;
+    private static final int ORA_CANCELLED = 1013;
+    private static final int ORA_NOT_FOUND = 6564;
+    // OracleTypes.CURSOR
+    private static final Integer CURSOR = -10;
+
+    // filler for pages, one fetch worth
+    private static final String PAGE_TEXT;
+    static {
+        String row = "<tr><td class=\"name\">emulated row</td><td class=\"value\">0123456789</td></tr>\n";
+        StringBuilder sb = new StringBuilder(LINE_LENGTH * LINES_PER_FETCH + row.length());
+        while (sb.length() < LINE_LENGTH * LINES_PER_FETCH) {
+            sb.append(row);
+        }
+        PAGE_TEXT = sb.substring(0, LINE_LENGTH * LINES_PER_FETCH);
+
+        try {
+            DriverManager.registerDriver(new OwaEmulatorDriver());
+        }
+        catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final Random random = new Random();
+
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) {
+            return null;
+        }
+        Settings settings = new Settings(url.substring(URL.length()));
+        sleep(settings.connectLatency);
+        return new EmulatedConnection(settings).proxy();
+    }
+
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(URL);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() { return 1; }
+    public int getMinorVersion() { return 0; }
+    public boolean jdbcCompliant() { return false; }
+
+    public Logger getParentLogger() {
+        return Logger.getLogger("net.prizmora");
+    }
+
+    private static void sleep(long ms) {
+        if (ms > 0) {
+            try {
+                Thread.sleep(ms);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        }
+        if (type == Integer.TYPE) {
+            return 0;
+        }
+        if (type == Long.TYPE) {
+            return 0L;
+        }
+        if (type == Short.TYPE) {
+            return (short) 0;
+        }
+        if (type == Byte.TYPE) {
+            return (byte) 0;
+        }
+        if (type == Float.TYPE) {
+            return 0f;
+        }
+        if (type == Double.TYPE) {
+            return 0d;
+        }
+        return null;
+    }
+
+    private static class Settings {
+        long connectLatency = 50;
+        long resetLatency = 1;
+        long reinitializeLatency = 0;
+        long cgiLatency = 1;
+        long describeLatency = 5;
+        long callLatency = 10;
+        long callJitter = 0;
+        long fetchLatency = 1;
+        int pageSize = 16 * 1024;
+        int arguments = 10;
+        int cursorRows = 1000;
+        final String describeResult;
+
+        Settings(String spec) throws SQLException {
+            for (String setting : spec.split(";")) {
+                setting = setting.trim();
+                if (setting.length() == 0) {
+                    continue;
+                }
+                int eq = setting.indexOf('=');
+                String name = eq < 0 ? setting : setting.substring(0, eq).trim();
+                long value;
+                try {
+                    value = Long.parseLong(setting.substring(eq + 1).trim());
+                }
+                catch (NumberFormatException e) {
+                    throw new SQLException("Bad emulator setting: " + setting);
+                }
+                if (name.equals("connectLatency")) connectLatency = value;
+                else if (name.equals("resetLatency")) resetLatency = value;
+                else if (name.equals("reinitializeLatency")) reinitializeLatency = value;
+                else if (name.equals("cgiLatency")) cgiLatency = value;
+                else if (name.equals("describeLatency")) describeLatency = value;
+                else if (name.equals("callLatency")) callLatency = value;
+                else if (name.equals("callJitter")) callJitter = value;
+                else if (name.equals("fetchLatency")) fetchLatency = value;
+                else if (name.equals("pageSize")) pageSize = (int) value;
+                else if (name.equals("arguments")) arguments = (int) value;
+                else if (name.equals("cursorRows")) cursorRows = (int) value;
+                else throw new SQLException("Unknown emulator setting: " + name);
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 1; i <= arguments; i++) {
+                sb.append("arg").append(i).append((char) 31).append("VARCHAR2").append((char) 30);
+            }
+            sb.append("name_array").append((char) 31).append("SYS.OWA.VC_ARR").append((char) 30);
+            sb.append("value_array").append((char) 31).append("SYS.OWA.VC_ARR").append((char) 30);
+            describeResult = sb.toString();
+        }
+
+        long callLatency() {
+            if (callJitter <= 0) {
+                return callLatency;
+            }
+            long jitter;
+            synchronized (random) {
+                jitter = (long) ((random.nextDouble() * 2 - 1) * callJitter);
+            }
+            return Math.max(0, callLatency + jitter);
+        }
+    }
+
+    private static class EmulatedConnection implements InvocationHandler {
+        private final Settings settings;
+        // bytes of the generated page not fetched yet
+        int pageRemaining;
+        volatile EmulatedStatement current;
+        boolean closed;
+
+        EmulatedConnection(Settings settings) {
+            this.settings = settings;
+        }
+
+        Connection proxy() {
+            Class<?>[] types;
+            try {
+                // let PrizmoraConnectionPool cancel busy connections
+                types = new Class<?>[] { Connection.class, Class.forName("oracle.jdbc.OracleConnection") };
+            }
+            catch (ClassNotFoundException e) {
+                types = new Class<?>[] { Connection.class };
+            }
+            return (Connection) Proxy.newProxyInstance(OwaEmulatorDriver.class.getClassLoader(), types, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("prepareCall") || name.equals("prepareStatement")) {
+                EmulatedStatement st = new EmulatedStatement(this, (String) args[0]);
+                current = st;
+                return st.proxy();
+            }
+            if (name.equals("cancel")) {
+                EmulatedStatement st = current;
+                if (st != null) {
+                    st.cancel();
+                }
+                return null;
+            }
+            if (name.equals("close")) {
+                closed = true;
+                return null;
+            }
+            if (name.equals("isClosed")) {
+                return closed;
+            }
+            if (name.equals("getAutoCommit")) {
+                return Boolean.FALSE;
+            }
+            if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("toString")) {
+                return "EmulatedConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static class EmulatedStatement implements InvocationHandler {
+        private final EmulatedConnection conn;
+        private final String sql;
+        private final Map<Integer, Object> outValues = new HashMap<Integer, Object>();
+        private String firstBind;
+        private int cursorIndex;
+        private int queryTimeout;
+        private boolean cancelled;
+
+        EmulatedStatement(EmulatedConnection conn, String sql) {
+            this.conn = conn;
+            this.sql = sql;
+        }
+
+        CallableStatement proxy() {
+            return (CallableStatement) Proxy.newProxyInstance(OwaEmulatorDriver.class.getClassLoader(),
+                    new Class<?>[] { CallableStatement.class }, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("setString") && args[0].equals(1)) {
+                firstBind = (String) args[1];
+            }
+            else if (name.equals("registerOutParameter") && args[1].equals(CURSOR)) {
+                cursorIndex = (Integer) args[0];
+            }
+            else if (name.equals("setQueryTimeout")) {
+                queryTimeout = (Integer) args[0];
+            }
+            else if (name.equals("cancel")) {
+                cancel();
+            }
+            else if (name.equals("execute") || name.equals("executeUpdate")) {
+                execute();
+                return defaultValue(method.getReturnType());
+            }
+            else if (name.equals("executeQuery")) {
+                execute();
+                return singleRow();
+            }
+            else if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+                Object value = outValues.get(args[0]);
+                return value != null ? value : defaultValue(method.getReturnType());
+            }
+            else if (name.equals("close")) {
+                if (conn.current == this) {
+                    conn.current = null;
+                }
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private void execute() throws SQLException {
+            Settings settings = conn.settings;
+            if (sql.contains("dbms_session.reset_package")) {
+                pause(settings.resetLatency);
+            }
+            else if (sql.contains("dbms_session.modify_package_state")) {
+                pause(settings.reinitializeLatency);
+            }
+            else if (sql.contains("owa.init_cgi_env")) {
+                pause(settings.cgiLatency);
+            }
+            else if (sql.contains("dbms_utility.name_resolve")) {
+                pause(settings.describeLatency);
+                if (firstBind != null && firstBind.toLowerCase().startsWith("missing")) {
+                    throw new SQLException("ORA-06564: object " + firstBind + " does not exist", "72000", ORA_NOT_FOUND);
+                }
+                outValues.put(2, settings.describeResult);
+                if (firstBind != null) {
+                    outValues.put(3, "loadtest." + firstBind.toLowerCase());
+                }
+            }
+            else if (sql.contains("OWA.GET_PAGE")) {
+                pause(settings.fetchLatency);
+                int n = Math.min(conn.pageRemaining, PAGE_TEXT.length());
+                conn.pageRemaining -= n;
+                int lines = (n + LINE_LENGTH - 1) / LINE_LENGTH;
+                outValues.put(2, n > 0 ? PAGE_TEXT.substring(0, n) : null);
+                outValues.put(3, lines);
+            }
+            else if (sql.contains("wpg_docload")) {
+                pause(settings.callLatency());
+                conn.pageRemaining = settings.pageSize;
+            }
+            else if (cursorIndex > 0) {
+                pause(settings.callLatency());
+                outValues.put(cursorIndex, cursor(settings.cursorRows));
+            }
+        }
+
+        private ResultSet singleRow() {
+            return (ResultSet) Proxy.newProxyInstance(OwaEmulatorDriver.class.getClassLoader(),
+                    new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                private boolean read;
+
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (method.getName().equals("next")) {
+                        boolean next = !read;
+                        read = true;
+                        return next;
+                    }
+                    if (method.getName().equals("getInt")) {
+                        return 1;
+                    }
+                    return defaultValue(method.getReturnType());
+                }
+            });
+        }
+
+        private ResultSet cursor(final int rows) {
+            final ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+                    OwaEmulatorDriver.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+                    new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("getColumnCount")) {
+                        return 3;
+                    }
+                    if (name.equals("getColumnLabel") || name.equals("getColumnName")) {
+                        return new String[] { "ID", "NAME", "CREATED" }[(Integer) args[0] - 1];
+                    }
+                    if (name.equals("getColumnType")) {
+                        return new int[] { Types.NUMERIC, Types.VARCHAR, Types.TIMESTAMP }[(Integer) args[0] - 1];
+                    }
+                    return defaultValue(method.getReturnType());
+                }
+            });
+            return (ResultSet) Proxy.newProxyInstance(OwaEmulatorDriver.class.getClassLoader(),
+                    new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+                private int row;
+                private int fetchSize = 10;
+
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String name = method.getName();
+                    if (name.equals("setFetchSize")) {
+                        fetchSize = Math.max(1, (Integer) args[0]);
+                    }
+                    else if (name.equals("next")) {
+                        if (row >= rows) {
+                            return false;
+                        }
+                        if (row % fetchSize == 0) {
+                            pause(conn.settings.fetchLatency);
+                        }
+                        row++;
+                        return true;
+                    }
+                    else if (name.equals("getMetaData")) {
+                        return meta;
+                    }
+                    else if (name.equals("getBigDecimal")) {
+                        return BigDecimal.valueOf(row);
+                    }
+                    else if (name.equals("getString")) {
+                        return "row " + row;
+                    }
+                    else if (name.equals("getTimestamp")) {
+                        return new Timestamp(1500000000000L + row * 1000L);
+                    }
+                    return defaultValue(method.getReturnType());
+                }
+            });
+        }
+
+        /**
+         * Waits for ms, or until cancelled or the query timeout passes.
+         */
+        private synchronized void pause(long ms) throws SQLException {
+            long now = System.currentTimeMillis();
+            long end = now + ms;
+            long timeoutAt = queryTimeout > 0 ? now + queryTimeout * 1000L : Long.MAX_VALUE;
+            while (!cancelled && now < end) {
+                if (now >= timeoutAt) {
+                    cancelled = true;
+                    break;
+                }
+                try {
+                    wait(Math.min(end, timeoutAt) - now);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                }
+                now = System.currentTimeMillis();
+            }
+            if (cancelled) {
+                cancelled = false;
+                throw new SQLException("ORA-01013: user requested cancel of current operation", "72000", ORA_CANCELLED);
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+package net.prizmora;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Access log in the combined log format, followed by the procedure name,
+ * the time spent waiting for a connection, the time spent in the database
+ * and the total time, all in milliseconds.
+ *
+ * Request threads copy each request's details into a preallocated ring of
+ * records and return; a single writer thread formats them in batches,
+ * writes each batch with one write, and rotates the file once it reaches
+ * maxSize. If the writer falls behind and the ring fills up, records are
+ * dropped (and counted) rather than making requests wait.
+ */
+public class AccessLog {
+
+    private static final Logger log = LogManager.getLogger(AccessLog.class);
+
+    // records formatted per write
+    private static final int BATCH = 256;
+    // how long the writer sleeps when there is nothing to write
+    private static final long IDLE_MILLIS = 50;
+
+    /** Timings of a request, filled in as it is handled. */
+    static class Times {
+        String procedure;
+        // the resolved name, if the procedure is known to exist; see
+        // Prizmora.countRequest
+        String resolved;
+        long poolWaitNanos;
+        long dbNanos;
+    }
+
+    private static class Record {
+        // set if filling the record failed, so the writer passes over it
+        boolean skipped;
+        long time;
+        long nanos;
+        InetSocketAddress client;
+        String method;
+        String path;
+        String query;
+        String protocol;
+        int status;
+        long bytes;
+        String referer;
+        String userAgent;
+        String procedure;
+        long poolWaitNanos;
+        long dbNanos;
+    }
+
+    private final File file;
+    private final long maxSize;
+    private final int maxFiles;
+
+    private final Record[] records;
+    private final int mask;
+    // next sequence number to hand out
+    private final AtomicLong claimed = new AtomicLong();
+    // sequence number of the record last published in each slot
+    private final AtomicLongArray published;
+    // records before this sequence number have been written out
+    private volatile long consumed;
+
+    private final Metrics.Counter written = Metrics.counter("access_log_records_total");
+    private final Metrics.Counter dropped = Metrics.counter("access_log_dropped_total");
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+    private OutputStream out;
+    private long size;
+
+    public AccessLog(File file, int bufferSize, long maxSize, int maxFiles) throws IOException {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+        int capacity = Integer.highestOneBit(Math.max(bufferSize - 1, 1)) << 1;
+        this.records = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            records[i] = new Record();
+        }
+        this.mask = capacity - 1;
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        open();
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "prizmora-access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records a request whose response is complete. start is the
+     * System.nanoTime() at which the request was received.
+     */
+    public void log(HttpRequest req, HttpResponse resp, long start, Times times) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= records.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Record r = records[(int) seq & mask];
+        r.skipped = true;
+        try {
+            r.time = System.currentTimeMillis();
+            r.nanos = System.nanoTime() - start;
+            r.client = req.getClientAddress();
+            r.method = req.getMethod();
+            r.path = req.getPath();
+            r.query = req.getQueryString();
+            r.protocol = req.getProtocol();
+            r.status = resp.getCode();
+            r.bytes = resp.getBodyLength();
+            r.referer = req.getValue("Referer");
+            r.userAgent = req.getValue("User-Agent");
+            r.procedure = times.procedure;
+            r.poolWaitNanos = times.poolWaitNanos;
+            r.dbNanos = times.dbNanos;
+            r.skipped = false;
+        }
+        finally {
+            // the writer waits for every slot in turn, so even a record
+            // that couldn't be filled has to be published
+            published.lazySet((int) seq & mask, seq);
+        }
+    }
+
+    private void write() {
+        StringBuilder sb = new StringBuilder(BATCH * 256);
+        long next = 0;
+        while (true) {
+            int n = 0;
+            int formatted = 0;
+            while (n < BATCH && published.get((int) next & mask) == next) {
+                Record r = records[(int) next & mask];
+                if (r.skipped) {
+                    clear(r);
+                    dropped.increment();
+                }
+                else {
+                    format(r, sb);
+                    formatted++;
+                }
+                next++;
+                n++;
+            }
+            if (n == 0) {
+                try {
+                    Thread.sleep(IDLE_MILLIS);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            // the slots are free again once they have been formatted
+            consumed = next;
+            try {
+                byte[] bytes = sb.toString().getBytes("UTF-8");
+                if (size > 0 && size + bytes.length > maxSize) {
+                    rotate();
+                }
+                out.write(bytes);
+                size += bytes.length;
+                written.add(formatted);
+            }
+            catch (IOException e) {
+                log.error("error writing access log {}: {}", file, e.toString());
+            }
+            sb.setLength(0);
+        }
+    }
+
+    private void format(Record r, StringBuilder sb) {
+        sb.append(r.client != null && r.client.getAddress() != null ? r.client.getAddress().getHostAddress() : "-");
+        sb.append(" - - [").append(dateFormat.format(new Date(r.time))).append("] \"");
+        sb.append(r.method).append(' ').append(r.path);
+        if (r.query != null) {
+            sb.append('?').append(r.query);
+        }
+        sb.append(' ').append(r.protocol).append("\" ").append(r.status).append(' ');
+        if (r.bytes > 0) {
+            sb.append(r.bytes);
+        }
+        else {
+            sb.append('-');
+        }
+        sb.append(' ');
+        quoted(r.referer, sb);
+        sb.append(' ');
+        quoted(r.userAgent, sb);
+        sb.append(' ').append(r.procedure != null ? r.procedure : "-");
+        sb.append(' ');
+        millis(r.poolWaitNanos, sb);
+        sb.append(' ');
+        millis(r.dbNanos, sb);
+        sb.append(' ');
+        millis(r.nanos, sb);
+        sb.append('\n');
+        clear(r);
+    }
+
+    // don't keep the request's strings alive until the slot is reused
+    private static void clear(Record r) {
+        r.client = null;
+        r.method = r.path = r.query = r.protocol = r.referer = r.userAgent = r.procedure = null;
+    }
+
+    private static void quoted(String s, StringBuilder sb) {
+        if (s == null) {
+            sb.append("\"-\"");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20 || c == 0x7f) {
+                sb.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    // milliseconds with three decimals
+    private static void millis(long nanos, StringBuilder sb) {
+        long micros = nanos / 1000;
+        sb.append(micros / 1000).append('.');
+        long frac = micros % 1000;
+        if (frac < 100) {
+            sb.append('0');
+        }
+        if (frac < 10) {
+            sb.append('0');
+        }
+        sb.append(frac);
+    }
+
+    private void open() throws IOException {
+        out = new FileOutputStream(file, true);
+        size = file.length();
+    }
+
+    /*
+     * Renames file to file.1, file.1 to file.2 and so on, deleting the
+     * oldest past maxFiles, then starts a new file.
+     */
+    private void rotate() throws IOException {
+        out.close();
+        new File(file.getPath() + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File from = new File(file.getPath() + "." + i);
+            if (from.exists() && !from.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+                log.warn("could not rename {}", from);
+            }
+        }
+        if (maxFiles > 0 && !file.renameTo(new File(file.getPath() + ".1"))) {
+            log.warn("could not rename {}", file);
+        }
+        if (maxFiles == 0 && !file.delete()) {
+            log.warn("could not delete {}", file);
+        }
+        open();
+    }
+
+}
@@ -0,0 +1,15 @@
+package net.prizmora;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request is malformed in a way that deserves a 400 response.
+ */
+public class BadRequestException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public BadRequestException(String message) {
+		super(message);
+	}
+}
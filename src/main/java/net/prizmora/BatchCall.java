@@ -0,0 +1,153 @@
+package net.prizmora;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One procedure call of a batch request, presented as a GET of the
+ * procedure so that it goes through ProcedureCache like any other request.
+ * Headers, the client address and so on are those of the batch request.
+ *
+ * A batch is a GET or url-encoded POST to the BATCH_NAME procedure of the
+ * DAD with one "call" parameter per call, each holding a procedure name
+ * and optional query string, e.g. call=pkg.proc%3Fa%3D1%26b%3D2. Values
+ * within a call's query string are url-encoded as usual.
+ */
+class BatchCall implements HttpRequest {
+
+    public static final String BATCH_NAME = "_batch";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final HttpRequest batch;
+    private final String directory;
+    private final String name;
+    private final String queryString;
+    private final Map<String, List<String>> query;
+
+    private BatchCall(HttpRequest batch, String name, String queryString, Map<String, List<String>> query) {
+        this.batch = batch;
+        this.directory = batch.getDirectory();
+        this.name = name;
+        this.queryString = queryString;
+        this.query = query;
+    }
+
+    /**
+     * Returns the calls in the batch request, in the order given.
+     */
+    static List<BatchCall> parse(HttpRequest batch, int maxCalls) throws IOException {
+        List<String> specs = batch.getForm().get("call");
+        if (specs == null || specs.isEmpty()) {
+            throw new BadRequestException("A batch needs at least one call parameter");
+        }
+        if (specs.size() > maxCalls) {
+            throw new BadRequestException("A batch may have at most " + maxCalls + " calls");
+        }
+
+        List<BatchCall> calls = new ArrayList<BatchCall>(specs.size());
+        for (String spec : specs) {
+            int q = spec.indexOf('?');
+            String name = (q < 0 ? spec : spec.substring(0, q)).trim();
+            String queryString = q < 0 ? null : spec.substring(q + 1);
+            if (name.length() == 0 || name.indexOf('/') >= 0 || name.equals(BATCH_NAME)) {
+                throw new BadRequestException("Bad batch call: " + spec);
+            }
+
+            Map<String, List<String>> query = new HashMap<String, List<String>>();
+            if (queryString != null) {
+                // the call was decoded once already, so anything outside
+                // the escapes may be non-ASCII
+                new FormStreamParser(UTF8, Integer.MAX_VALUE, 0).parse(
+                        new ByteArrayInputStream(queryString.getBytes("UTF-8")), query, null);
+            }
+            calls.add(new BatchCall(batch, name, queryString, query));
+        }
+        return calls;
+    }
+
+    public String getMethod() {
+        return "GET";
+    }
+
+    public String getPath() {
+        return directory + name;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getQueryString() {
+        return queryString;
+    }
+
+    public Map<String, List<String>> getQuery() {
+        return query;
+    }
+
+    public Map<String, List<String>> getForm() {
+        // callers may add to the form, so don't hand out the query itself
+        Map<String, List<String>> form = new HashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> e : query.entrySet()) {
+            form.put(e.getKey(), new ArrayList<String>(e.getValue()));
+        }
+        return form;
+    }
+
+    public List<HttpPart> getParts() {
+        return Collections.emptyList();
+    }
+
+    public String getProtocol() {
+        return batch.getProtocol();
+    }
+
+    public String getScheme() {
+        return batch.getScheme();
+    }
+
+    public String getValue(String name) {
+        if (name.equalsIgnoreCase("Content-Type") || name.equalsIgnoreCase("Content-Length")) {
+            return null;
+        }
+        return batch.getValue(name);
+    }
+
+    public long getContentLength() {
+        return 0;
+    }
+
+    public MediaType getContentType() {
+        return null;
+    }
+
+    public InetSocketAddress getClientAddress() {
+        return batch.getClientAddress();
+    }
+
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    public void onDisconnect(Runnable callback) {
+        // the batch as a whole is cancelled
+    }
+
+    public String toString() {
+        return "BatchCall " + getPath() + (queryString != null ? "?" + queryString : "");
+    }
+
+}
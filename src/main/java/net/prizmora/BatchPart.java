@@ -0,0 +1,131 @@
+package net.prizmora;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outcome of one call of a batch, sent as one part of the
+ * multipart/mixed response. The part's headers are those the procedure
+ * generated, plus Content-Location naming the call and a Status header
+ * giving its status, e.g. "Status: 404 Not Found". Cookies the procedure
+ * sets are returned so they can go on the response itself.
+ */
+class BatchPart {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final BatchCall call;
+    private String status = "200 OK";
+    private String contentType = "text/html; charset=UTF-8";
+    private final List<String> headers = new ArrayList<String>();
+    private final List<String> cookies = new ArrayList<String>();
+    // the page body, positioned after the generated headers
+    private BufferedReader body;
+    // the first line of the body, if it was read looking for headers
+    private String firstLine;
+    private String message;
+
+    private BatchPart(BatchCall call) {
+        this.call = call;
+    }
+
+    /**
+     * A call that didn't produce a page. message, if not null, is sent as
+     * the body.
+     */
+    static BatchPart status(BatchCall call, String status, String message) {
+        BatchPart part = new BatchPart(call);
+        part.status = status;
+        part.contentType = "text/plain; charset=UTF-8";
+        part.message = message;
+        return part;
+    }
+
+    /**
+     * A call that produced a page. The header lines the procedure generated
+     * are read now; the body is read by write().
+     */
+    static BatchPart page(BatchCall call, Page page) throws IOException {
+        BatchPart part = new BatchPart(call);
+        part.body = new BufferedReader(page.reader(), 8192);
+        String s = part.body.readLine();
+        if (!Prizmora.isHeaderLine(s)) {
+            part.firstLine = s;
+            return part;
+        }
+
+        boolean explicitStatus = false;
+        do {
+            int colon = s.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = s.substring(0, colon);
+            String value = s.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Status")) {
+                part.status = value;
+                explicitStatus = true;
+            }
+            else if (name.equalsIgnoreCase("Content-type")) {
+                // as in Prizmora.setHeaders
+                MediaType mediaType = MediaType.parse(value);
+                part.contentType = mediaType != null && mediaType.isText() && mediaType.getCharset() == null
+                    ? value + "; charset=UTF-8" : value;
+            }
+            else if (name.equalsIgnoreCase("Set-Cookie")) {
+                part.cookies.add(value);
+            }
+            else {
+                if (name.equalsIgnoreCase("Location") && !explicitStatus) {
+                    part.status = "302 Found";
+                }
+                part.headers.add(name + ": " + value);
+            }
+        } while ((s = part.body.readLine()) != null && s.length() > 0);
+        return part;
+    }
+
+    List<String> cookies() {
+        return cookies;
+    }
+
+    void write(OutputStream out, String boundary) throws IOException {
+        Writer w = new OutputStreamWriter(out, UTF8);
+        w.write("--" + boundary + "\r\n");
+        w.write("Content-Location: " + call.getPath()
+                + (call.getQueryString() != null ? "?" + call.getQueryString() : "") + "\r\n");
+        w.write("Status: " + status + "\r\n");
+        w.write("Content-Type: " + contentType + "\r\n");
+        for (String header : headers) {
+            w.write(header + "\r\n");
+        }
+        w.write("\r\n");
+
+        if (body != null) {
+            if (firstLine != null) {
+                w.write(firstLine);
+            }
+            char[] buf = new char[8192];
+            int n;
+            while ((n = body.read(buf)) > 0) {
+                w.write(buf, 0, n);
+            }
+        }
+        else if (message != null) {
+            w.write(message);
+        }
+        w.write("\r\n");
+        w.flush();
+    }
+
+    void close() {
+        IoUtil.close(body);
+    }
+
+}
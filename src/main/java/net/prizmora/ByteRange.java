@@ -0,0 +1,84 @@
+package net.prizmora;
+
+/**
+ * A single byte range from an HTTP Range header, resolved against the length
+ * of the entity it applies to.
+ */
+public class ByteRange {
+
+    /** Returned by parse() when the range can't be satisfied. */
+    public static final ByteRange UNSATISFIABLE = new ByteRange(0, -1);
+
+    private final long first;
+    private final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses a Range header value of the form "bytes=first-last",
+     * "bytes=first-" or "bytes=-suffixLength". Returns null if the whole
+     * entity should be sent instead, which is the case for a missing or
+     * malformed header and for multiple ranges. Returns UNSATISFIABLE if
+     * the range lies outside the entity.
+     */
+    public static ByteRange parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6) || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String firstStr = spec.substring(0, dash).trim();
+            String lastStr = spec.substring(dash + 1).trim();
+            long first;
+            long last;
+            if (firstStr.length() == 0) {
+                // suffix range: the final N bytes
+                long suffix = Long.parseLong(lastStr);
+                if (suffix <= 0) {
+                    return UNSATISFIABLE;
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            }
+            else {
+                first = Long.parseLong(firstStr);
+                last = lastStr.length() == 0 ? length - 1 : Math.min(Long.parseLong(lastStr), length - 1);
+                if (last < first) {
+                    return first >= length ? UNSATISFIABLE : null;
+                }
+            }
+            if (first >= length || first < 0) {
+                return UNSATISFIABLE;
+            }
+            return new ByteRange(first, last);
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public long first() { return first; }
+    public long last() { return last; }
+    public long length() { return last - first + 1; }
+
+    /** Returns the value of the Content-Range header for this range. */
+    public String contentRange(long entityLength) {
+        if (this == UNSATISFIABLE) {
+            return "bytes */" + entityLength;
+        }
+        return "bytes " + first + "-" + last + "/" + entityLength;
+    }
+
+}
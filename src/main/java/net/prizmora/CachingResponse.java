@@ -0,0 +1,239 @@
+package net.prizmora;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Passes a response through to the client while keeping a copy of its
+ * headers and body, so that it can be put in the ResponseCache or sent to
+ * coalesced requests afterwards. Responses that set cookies, redirect,
+ * aren't a 200 or say they mustn't be cached aren't cacheable; responses
+ * larger than limit bytes aren't kept at all.
+ */
+class CachingResponse implements HttpResponse {
+
+    private final HttpResponse resp;
+    private final int limit;
+    private final List<String[]> headers = new ArrayList<String[]>();
+    private final Body body = new Body();
+    private String text;
+    // false once the body is too large or sent as a file
+    private boolean kept = true;
+    private boolean setsCookie;
+    private boolean redirects;
+    private int maxAge = -1;
+
+    CachingResponse(HttpResponse resp, int limit) {
+        this.resp = resp;
+        this.limit = limit;
+    }
+
+    /**
+     * Returns true if the response can be cached. Only meaningful once the
+     * whole response has been written.
+     */
+    boolean isCacheable() {
+        return kept && !setsCookie && !redirects && resp.getCode() == 200 && maxAge != 0;
+    }
+
+    /**
+     * Returns true if the response may be sent to other clients making the
+     * same request at the same time: the whole body was kept and it sets no
+     * cookies.
+     */
+    boolean isShareable() {
+        return kept && !setsCookie;
+    }
+
+    /** The reason phrase set with setText, or null. */
+    String text() {
+        return text;
+    }
+
+    /**
+     * Time (in seconds) the response may be cached for: the max-age the
+     * procedure sent with Cache-Control, or defaultTtl if it didn't send
+     * one.
+     */
+    int ttl(int defaultTtl) {
+        return maxAge > 0 ? maxAge : defaultTtl;
+    }
+
+    List<String[]> headers() {
+        return headers;
+    }
+
+    byte[] body() {
+        return body.buffer();
+    }
+
+    int bodyLength() {
+        return body.size();
+    }
+
+    private void header(String name, String value, boolean replace) {
+        String lower = name.toLowerCase(Locale.ENGLISH);
+        if (lower.equals("set-cookie")) {
+            setsCookie = true;
+        }
+        else if (lower.equals("location") || lower.equals("status")) {
+            redirects = true;
+        }
+        else if (lower.equals("cache-control")) {
+            cacheControl(value.toLowerCase(Locale.ENGLISH));
+        }
+        if (replace) {
+            for (int i = 0; i < headers.size(); i++) {
+                if (headers.get(i)[0].equalsIgnoreCase(name)) {
+                    headers.remove(i--);
+                }
+            }
+        }
+        headers.add(new String[] { name, value });
+    }
+
+    private void cacheControl(String value) {
+        for (String directive : value.split(",")) {
+            directive = directive.trim();
+            if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private")) {
+                maxAge = 0;
+            }
+            else if (directive.startsWith("max-age=") && maxAge != 0) {
+                try {
+                    maxAge = Integer.parseInt(directive.substring(8).trim());
+                }
+                catch (NumberFormatException e) {
+                    maxAge = 0;
+                }
+            }
+        }
+    }
+
+    private void keep(byte[] b, int off, int len) {
+        if (!kept) {
+            return;
+        }
+        if (body.size() + len > limit) {
+            kept = false;
+            body.reset();
+            return;
+        }
+        body.write(b, off, len);
+    }
+
+    public void setCode(int code) {
+        resp.setCode(code);
+    }
+
+    public int getCode() {
+        return resp.getCode();
+    }
+
+    public void setText(String text) {
+        this.text = text;
+        resp.setText(text);
+    }
+
+    public void set(String name, String value) {
+        header(name, value, true);
+        resp.set(name, value);
+    }
+
+    public void add(String name, String value) {
+        header(name, value, false);
+        resp.add(name, value);
+    }
+
+    public void setContentLength(long length) {
+        resp.setContentLength(length);
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        final OutputStream out = resp.getOutputStream();
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                keep(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                keep(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    public PrintStream getPrintStream() throws IOException {
+        return new PrintStream(getOutputStream(), false, "UTF-8");
+    }
+
+    public WritableByteChannel getByteChannel() throws IOException {
+        final WritableByteChannel out = resp.getByteChannel();
+        return new WritableByteChannel() {
+            public int write(ByteBuffer src) throws IOException {
+                ByteBuffer copy = src.duplicate();
+                int n = out.write(src);
+                if (n > 0 && kept) {
+                    byte[] b = new byte[n];
+                    copy.get(b);
+                    keep(b, 0, n);
+                }
+                return n;
+            }
+
+            public boolean isOpen() {
+                return out.isOpen();
+            }
+
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    public void sendFile(File file, long position, long count) throws IOException {
+        kept = false;
+        resp.sendFile(file, position, count);
+    }
+
+    public long getBodyLength() {
+        return resp.getBodyLength();
+    }
+
+    public void close() throws IOException {
+        resp.close();
+    }
+
+    public void abort() throws IOException {
+        kept = false;
+        resp.abort();
+    }
+
+    // exposes the buffer so the body can be stored without another copy
+    private static class Body extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+}
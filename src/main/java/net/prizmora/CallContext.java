@@ -0,0 +1,215 @@
+package net.prizmora;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Per-request state for a procedure call. Every statement for the call is
+ * prepared through it, so the time left before the request's deadline is
+ * applied to each one as its query timeout, and the statement currently
+ * running can be cancelled from another thread when the client goes away.
+ * Statements must be closed through close(Statement), and the context
+ * released before its connection goes back to the pool, so a late cancel
+ * can't reach a statement run for another request on the same session.
+ */
+public class CallContext {
+
+    private static final Logger log = LogManager.getLogger(CallContext.class);
+
+    private final int requestTimeoutSeconds;
+    // System.currentTimeMillis() at which the request expires, 0 for never
+    private final long requestDeadline;
+    // the same, for the call being made; only limit() makes them differ
+    private int timeoutSeconds;
+    private long deadline;
+
+    // the most recently prepared statement, which is the one executing,
+    // until it is closed; guarded by "this"
+    private Statement active;
+    // set once the connection has been handed back; guarded by "this"
+    private boolean released;
+    private volatile boolean cancelled;
+    // the name the procedure resolved to, set once it has been found in
+    // the database
+    private volatile String procedure;
+
+    /**
+     * A timeoutSeconds of 0 means the call has no deadline.
+     */
+    public CallContext(int timeoutSeconds) {
+        this.requestTimeoutSeconds = timeoutSeconds;
+        this.requestDeadline = timeoutSeconds > 0 ? System.currentTimeMillis() + timeoutSeconds * 1000L : 0;
+        this.timeoutSeconds = requestTimeoutSeconds;
+        this.deadline = requestDeadline;
+    }
+
+    /**
+     * Gives the calls made from now on a timeout of their own, starting
+     * now, which can only shorten the request's deadline. A timeoutSeconds
+     * of 0 leaves just the request's deadline. Used for each call of a
+     * batch request.
+     */
+    public void limit(int timeoutSeconds) {
+        long callDeadline = timeoutSeconds > 0 ? System.currentTimeMillis() + timeoutSeconds * 1000L : 0;
+        if (callDeadline == 0 || (requestDeadline > 0 && requestDeadline <= callDeadline)) {
+            this.timeoutSeconds = requestTimeoutSeconds;
+            this.deadline = requestDeadline;
+        }
+        else {
+            this.timeoutSeconds = timeoutSeconds;
+            this.deadline = callDeadline;
+        }
+    }
+
+    public int timeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    void setDescribed(String procedure) {
+        this.procedure = procedure;
+    }
+
+    /** Returns true if the procedure being called is known to exist. */
+    public boolean isDescribed() {
+        return procedure != null;
+    }
+
+    /**
+     * Returns the lower case name the database resolved the procedure to,
+     * or null until it has been found.
+     */
+    public String procedure() {
+        return procedure;
+    }
+
+    /**
+     * Returns the milliseconds left before the deadline, or Long.MAX_VALUE
+     * if there is none.
+     */
+    public long remainingMillis() {
+        return deadline > 0 ? deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+    }
+
+    public boolean isExpired() {
+        return deadline > 0 && System.currentTimeMillis() >= deadline;
+    }
+
+    public CallableStatement prepareCall(Connection conn, String sql) throws SQLException {
+        check();
+        CallableStatement cs = conn.prepareCall(sql);
+        track(cs);
+        try {
+            applyTimeout(cs);
+        }
+        catch (SQLException e) {
+            close(cs);
+            throw e;
+        }
+        return cs;
+    }
+
+    public PreparedStatement prepareStatement(Connection conn, String sql) throws SQLException {
+        check();
+        PreparedStatement ps = conn.prepareStatement(sql);
+        track(ps);
+        try {
+            applyTimeout(ps);
+        }
+        catch (SQLException e) {
+            close(ps);
+            throw e;
+        }
+        return ps;
+    }
+
+    private synchronized void track(Statement st) {
+        active = st;
+    }
+
+    /**
+     * Closes a statement prepared through this context, quietly, so it
+     * can no longer be cancelled.
+     */
+    public void close(Statement st) {
+        synchronized (this) {
+            if (active == st) {
+                active = null;
+            }
+        }
+        DbUtil.close(st);
+    }
+
+    /**
+     * Marks the call as over, before its connection is released to the
+     * pool. Later calls to cancel() do nothing.
+     */
+    public synchronized void release() {
+        released = true;
+        active = null;
+    }
+
+    /**
+     * Sets the statement's query timeout to the time left, rounded up to
+     * whole seconds. Call again before re-executing a statement.
+     */
+    public void applyTimeout(Statement st) throws SQLException {
+        if (cancelled) {
+            throw new RequestCancelledException(null);
+        }
+        if (deadline == 0) {
+            return;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new DeadlineExceededException(timeoutSeconds, null);
+        }
+        st.setQueryTimeout((int) ((remaining + 999) / 1000));
+    }
+
+    /**
+     * Throws if the call has been cancelled or its deadline has passed, so
+     * no further statements are started.
+     */
+    public void check() throws SQLException {
+        if (cancelled) {
+            throw new RequestCancelledException(null);
+        }
+        if (isExpired()) {
+            throw new DeadlineExceededException(timeoutSeconds, null);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Stops the call: the running statement, if any, is cancelled, and no
+     * new ones may be started. Does nothing once the context has been
+     * released. May be called from any thread; the statement is cancelled
+     * while holding the lock, so it can't be closed and its session reused
+     * part way through.
+     */
+    public synchronized void cancel() {
+        if (released) {
+            return;
+        }
+        cancelled = true;
+        if (active != null) {
+            try {
+                active.cancel();
+            }
+            catch (Throwable t) {
+                // the statement may already be finished
+                log.debug("cancel failed: {}", t.toString());
+            }
+        }
+    }
+
+}
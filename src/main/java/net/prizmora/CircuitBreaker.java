@@ -0,0 +1,183 @@
+package net.prizmora;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps requests from queueing up behind a database that is down. After
+ * dbCircuitFailures consecutive failures to connect, or to use a
+ * connection, the circuit opens and requests fail at once with a
+ * CircuitOpenException instead of each waiting for a timeout. While it is
+ * open a single probe runs in the background, first after dbCircuitBackoff
+ * seconds and then after twice as long each time it fails, up to
+ * dbCircuitMaxBackoff. The first probe that succeeds closes the circuit.
+ *
+ * Only errors which mean the database couldn't be reached count as
+ * failures; errors raised by the procedures themselves don't.
+ */
+public class CircuitBreaker {
+
+    private static final Logger log = LogManager.getLogger(CircuitBreaker.class);
+
+    // Oracle errors meaning the database or listener can't be reached, or
+    // the session was lost
+    private static final int[] CONNECTION_ERRORS = {
+        1033, 1034, 1089, 1090, 3113, 3114, 3135,
+        12170, 12505, 12514, 12519, 12520, 12528, 12537, 12541, 12543, 12571,
+        17002, 17008, 17410,
+    };
+
+    private static final Metrics.Counter opens = Metrics.counter("circuit_opens_total");
+    private static final Metrics.Counter rejections = Metrics.counter("circuit_rejections_total");
+
+    /** Tries the database, throwing if it still can't be used. */
+    public interface Probe {
+        void run() throws SQLException;
+    }
+
+    private final Probe probe;
+    private final ScheduledExecutorService scheduler;
+    private volatile PrizmoraConfig config;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile boolean open;
+    // System.currentTimeMillis() at which the next probe runs
+    private volatile long retryAt;
+    // guarded by "this"
+    private long backoffMillis;
+
+    public CircuitBreaker(PrizmoraConfig config, Probe probe) {
+        this.config = config;
+        this.probe = probe;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "prizmora-circuit-probe");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Metrics.gauge("circuit_open", new Metrics.Gauge() {
+            public long value() {
+                return open ? 1 : 0;
+            }
+        });
+    }
+
+    public void reconfigure(PrizmoraConfig config) {
+        this.config = config;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    /** Throws a CircuitOpenException if the circuit is open. */
+    public void check() throws CircuitOpenException {
+        if (open) {
+            rejections.increment();
+            long wait = retryAt - System.currentTimeMillis();
+            throw new CircuitOpenException((int) Math.max(1, (wait + 999) / 1000));
+        }
+    }
+
+    public void succeeded() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+    }
+
+    /**
+     * Counts e as a failure if it means the database couldn't be reached,
+     * opening the circuit if there have been too many in a row.
+     */
+    public void failed(SQLException e) {
+        int threshold = config.dbCircuitFailures();
+        if (threshold <= 0 || !isConnectionFailure(e)) {
+            return;
+        }
+        if (failures.incrementAndGet() >= threshold) {
+            trip();
+        }
+    }
+
+    private synchronized void trip() {
+        if (open) {
+            return;
+        }
+        open = true;
+        opens.increment();
+        backoffMillis = config.dbCircuitBackoff() * 1000L;
+        log.error("Database unreachable after {} consecutive failures, rejecting requests; probing in {}ms",
+                  failures.get(), backoffMillis);
+        scheduleProbe();
+    }
+
+    // called with "this" locked
+    private void scheduleProbe() {
+        retryAt = System.currentTimeMillis() + backoffMillis;
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                runProbe();
+            }
+        }, backoffMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void runProbe() {
+        try {
+            probe.run();
+        }
+        catch (Throwable e) {
+            synchronized (this) {
+                backoffMillis = Math.min(backoffMillis * 2, config.dbCircuitMaxBackoff() * 1000L);
+                log.warn("Database probe failed, next in {}ms: {}", backoffMillis, e.toString());
+                scheduleProbe();
+            }
+            return;
+        }
+        synchronized (this) {
+            failures.set(0);
+            open = false;
+            log.warn("Database reachable again, accepting requests");
+        }
+    }
+
+    /**
+     * Returns true if e, or an exception chained to it, means the database
+     * couldn't be reached or the connection was lost.
+     */
+    static boolean isConnectionFailure(SQLException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof CircuitOpenException) {
+                return false;
+            }
+            if (t instanceof SQLRecoverableException || t instanceof SQLNonTransientConnectionException) {
+                return true;
+            }
+            if (t instanceof SQLException) {
+                SQLException se = (SQLException) t;
+                if (se.getSQLState() != null && se.getSQLState().startsWith("08")) {
+                    return true;
+                }
+                for (int code : CONNECTION_ERRORS) {
+                    if (se.getErrorCode() == code) {
+                        return true;
+                    }
+                }
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+}
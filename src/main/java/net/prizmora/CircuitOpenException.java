@@ -0,0 +1,23 @@
+package net.prizmora;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown instead of trying the database while the circuit breaker is open
+ * because recent attempts to use it failed.
+ */
+public class CircuitOpenException extends SQLException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int retryAfterSeconds;
+
+	public CircuitOpenException(int retryAfterSeconds) {
+		super("Database unavailable, retry in " + retryAfterSeconds + "s");
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public int retryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
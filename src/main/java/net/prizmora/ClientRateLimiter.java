@@ -0,0 +1,163 @@
+package net.prizmora;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Limits the rate of requests from each client with a token bucket per
+ * client: a bucket holds up to rateLimitBurst tokens, refills at rateLimit
+ * tokens a second, and each request takes one. A client is identified by
+ * its IP address, or by the value of a cookie if rateLimitKey is
+ * "cookie:name" (falling back to the address when the cookie is missing).
+ * A cookie value without a bucket also takes a token from its address's
+ * bucket, so a client can't get a full bucket by making up a new value
+ * for each request. Requests from trustedProxies are attributed to the
+ * address the proxy reports in X-Forwarded-For.
+ *
+ * Buckets are kept in STRIPES maps, each with its own lock, so requests
+ * from different clients rarely wait for each other. Each map holds at
+ * most its share of rateLimitMaxClients, dropping the least recently seen
+ * client when full, and drops any client whose bucket would have refilled
+ * completely, since that bucket is no different from a new one.
+ */
+public class ClientRateLimiter {
+
+    private static final int STRIPES = 16;
+
+    private static final Metrics.Counter limited = Metrics.counter("rate_limited_total");
+
+    private final double ratePerNano;
+    private final double burst;
+    // time (in ns) for an empty bucket to refill completely
+    private final long idleNanos;
+    private final String cookieName;
+    private final Set<String> trustedProxies;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    // the settings the limiter was made with
+    private final PrizmoraConfig config;
+
+    private static class Bucket {
+        double tokens;
+        long updated;
+    }
+
+    private class Stripe extends LinkedHashMap<String, Bucket> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+        // the time of the lookup in progress, for removeEldestEntry
+        private long now;
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+            return size() > maxSize || now - eldest.getValue().updated > idleNanos;
+        }
+    }
+
+    public ClientRateLimiter(PrizmoraConfig config) throws PrizmoraConfigException {
+        this.config = config;
+        this.ratePerNano = config.rateLimit() / 1e9;
+        this.burst = Math.max(1, config.rateLimitBurst());
+        this.idleNanos = config.rateLimit() > 0 ? (long) (burst / ratePerNano) : 0;
+
+        String key = config.rateLimitKey();
+        if (key.equals("ip")) {
+            this.cookieName = null;
+        }
+        else if (key.startsWith("cookie:") && key.length() > 7) {
+            this.cookieName = key.substring(7);
+        }
+        else {
+            throw new PrizmoraConfigException("rateLimitKey must be ip or cookie:name, not " + key);
+        }
+
+        this.trustedProxies = HttpUtil.addresses(config.trustedProxies());
+
+        int perStripe = Math.max(1, config.rateLimitMaxClients() / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * Returns this limiter if a reloaded configuration has the same rate
+     * limit settings, so that changing other settings doesn't refill every
+     * client's bucket, or a new limiter for the new settings.
+     */
+    public ClientRateLimiter reconfigure(PrizmoraConfig config) throws PrizmoraConfigException {
+        if (config.rateLimit() == this.config.rateLimit()
+                && config.rateLimitBurst() == this.config.rateLimitBurst()
+                && config.rateLimitKey().equals(this.config.rateLimitKey())
+                && config.rateLimitMaxClients() == this.config.rateLimitMaxClients()
+                && config.trustedProxies().equals(this.config.trustedProxies())) {
+            return this;
+        }
+        return new ClientRateLimiter(config);
+    }
+
+    public boolean isEnabled() {
+        return ratePerNano > 0;
+    }
+
+    /**
+     * Takes a token from the bucket of the client making req. Returns 0 if
+     * the request may go ahead, otherwise the number of seconds until the
+     * client's next token.
+     */
+    public int acquire(HttpRequest req) {
+        long now = System.nanoTime();
+        if (cookieName != null) {
+            String value = HttpUtil.cookie(req.getValue("Cookie"), cookieName);
+            if (value != null) {
+                String client = "cookie:" + value;
+                int wait = take(client, now, false);
+                if (wait >= 0) {
+                    return wait;
+                }
+                // a new cookie value is paid for by the address it came
+                // from before it gets a bucket of its own
+                wait = take(HttpUtil.clientAddress(req, trustedProxies), now, true);
+                return wait > 0 ? wait : take(client, now, true);
+            }
+        }
+        return take(HttpUtil.clientAddress(req, trustedProxies), now, true);
+    }
+
+    /*
+     * Takes a token from the client's bucket, as for acquire. Returns -1 if
+     * the client has no bucket and create is false.
+     */
+    private int take(String client, long now, boolean create) {
+        Stripe stripe = stripes[(client.hashCode() & 0x7fffffff) % STRIPES];
+        synchronized (stripe) {
+            stripe.now = now;
+            Bucket bucket = stripe.get(client);
+            if (bucket == null) {
+                if (!create) {
+                    return -1;
+                }
+                bucket = new Bucket();
+                bucket.tokens = burst;
+                bucket.updated = now;
+                stripe.put(client, bucket);
+            }
+            else {
+                bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * ratePerNano);
+                bucket.updated = now;
+            }
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                return 0;
+            }
+            limited.increment();
+            return (int) Math.ceil((1 - bucket.tokens) / ratePerNano / 1e9);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package net.prizmora;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Limits the number of procedure calls in flight, adjusting the limit with
+ * additive increase/multiplicative decrease. Calls that finish within the
+ * target latency grow the limit by about one per limit's worth of calls;
+ * slower calls, or failures to get a connection, cut it by a fraction, at
+ * most once per target latency interval. When the database slows down the
+ * limit drops, and requests over it can be turned away immediately instead
+ * of queueing for a connection they would time out waiting for.
+ */
+public class ConcurrencyLimiter {
+
+    private static final Logger log = LogManager.getLogger(ConcurrencyLimiter.class);
+
+    private static final double BACKOFF = 0.9;
+
+    // guarded by "this"
+    private int minLimit;
+    private int maxLimit;
+    private long targetLatencyNanos;
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+
+    /**
+     * A targetLatency of 0 disables adjustment, leaving a fixed limit of
+     * maxLimit.
+     */
+    public ConcurrencyLimiter(int minLimit, int maxLimit, long targetLatencyMillis) {
+        this.limit = maxLimit;
+        resize(minLimit, maxLimit, targetLatencyMillis);
+        this.lastDecrease = System.nanoTime() - targetLatencyNanos;
+    }
+
+    /**
+     * Changes the bounds and target latency. The current limit is moved
+     * inside the new bounds; calls already in flight are unaffected.
+     */
+    public synchronized void resize(int minLimit, int maxLimit, long targetLatencyMillis) {
+        this.minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = targetLatencyMillis * 1000000L;
+        if (targetLatencyNanos <= 0) {
+            limit = maxLimit;
+        }
+        else {
+            limit = Math.max(this.minLimit, Math.min(limit, maxLimit));
+        }
+    }
+
+    /**
+     * Returns true if another call may start. Every true result must be
+     * followed by a call to release().
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Records the end of a call that took latencyNanos. overloaded is true if
+     * it failed for lack of database capacity rather than finishing.
+     */
+    public synchronized void release(long latencyNanos, boolean overloaded) {
+        inFlight--;
+        if (targetLatencyNanos <= 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        if (overloaded || latencyNanos > targetLatencyNanos) {
+            if (now - lastDecrease >= targetLatencyNanos && limit > minLimit) {
+                limit = Math.max(minLimit, limit * BACKOFF);
+                lastDecrease = now;
+                log.debug("Concurrency limit decreased to {}", (int) limit);
+            }
+        }
+        else if (limit < maxLimit && inFlight * 2 >= (int) limit) {
+            // only grow when the limit is actually being used
+            int before = (int) limit;
+            limit = Math.min(maxLimit, limit + 1 / limit);
+            if ((int) limit != before) {
+                log.debug("Concurrency limit increased to {}", (int) limit);
+            }
+        }
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+}
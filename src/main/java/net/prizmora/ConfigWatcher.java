@@ -0,0 +1,109 @@
+package net.prizmora;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reloads the configuration file when it changes. Every
+ * configCheckInterval seconds the file's modification time and size are
+ * compared with the last ones seen; if they differ the file is read and
+ * validated as at startup, including the check for unrecognized settings,
+ * and the new configuration is passed to the handler and transport. A file
+ * that fails validation is logged and otherwise ignored, leaving the
+ * running configuration alone until the file changes again.
+ */
+public class ConfigWatcher implements Runnable {
+
+    private static final Logger log = LogManager.getLogger(ConfigWatcher.class);
+
+    private final File file;
+    private final Prizmora handler;
+    private final HttpTransport transport;
+    private final ScheduledExecutorService scheduler;
+
+    // only touched by the scheduler thread
+    private PrizmoraConfig current;
+    private long lastModified;
+    private long length;
+
+    public ConfigWatcher(String file, PrizmoraConfig config, Prizmora handler, HttpTransport transport) {
+        this.file = new File(file);
+        this.current = config;
+        this.handler = handler;
+        this.transport = transport;
+        this.lastModified = this.file.lastModified();
+        this.length = this.file.length();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "prizmora-config");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Starts checking the file, unless configCheckInterval is 0.
+     */
+    public void start() {
+        int interval = current.configCheckInterval();
+        if (interval > 0) {
+            scheduler.scheduleWithFixedDelay(this, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public void stop() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * Checks the file once. Nothing may escape, or the scheduler would
+     * stop running the check.
+     */
+    public void run() {
+        try {
+            reload();
+        }
+        catch (Throwable t) {
+            log.error("Reloading " + file + " failed", t);
+        }
+    }
+
+    private void reload() {
+        long modified = file.lastModified();
+        long size = file.length();
+        if (modified == lastModified && size == length) {
+            return;
+        }
+        lastModified = modified;
+        length = size;
+
+        PrizmoraConfig config;
+        try {
+            config = new PrizmoraConfig(file.getPath());
+            handler.reconfigure(config);
+        }
+        catch (Exception e) {
+            log.error("Not reloading {}: {}", file, e.getMessage());
+            return;
+        }
+        // the handler is running with it now, whatever happens below
+        PrizmoraConfig previous = current;
+        current = config;
+        transport.reconfigure(config);
+
+        List<String> ignored = config.restartRequired(previous);
+        if (!ignored.isEmpty()) {
+            log.warn("Changes to {} take effect after a restart", ignored);
+        }
+        log.warn("Reloaded {}", file);
+    }
+
+}
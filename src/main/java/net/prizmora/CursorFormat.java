@@ -0,0 +1,218 @@
+package net.prizmora;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+
+/**
+ * Serializes the rows of a ref cursor as they are fetched, so memory use
+ * doesn't depend on the number of rows. JSON output is an array with one
+ * object per row, keyed by lower case column name. CSV output has a header
+ * line of column names and follows RFC 4180. In both, dates and timestamps
+ * are written in ISO 8601 form and numbers exactly as stored.
+ */
+public abstract class CursorFormat {
+
+    public static final CursorFormat JSON = new Json();
+    public static final CursorFormat CSV = new Csv();
+
+    /**
+     * Returns CSV if the Accept header asks for text/csv and not
+     * application/json, otherwise JSON.
+     */
+    public static CursorFormat forAccept(String accept) {
+        if (accept != null) {
+            String a = accept.toLowerCase();
+            if (a.contains("text/csv") && !a.contains("application/json")) {
+                return CSV;
+            }
+        }
+        return JSON;
+    }
+
+    public abstract String contentType();
+
+    /**
+     * Writes the rows of the cursor. The first row has already been fetched
+     * by the caller, so that errors fetching it can be reported before
+     * anything is sent; more says whether there was one.
+     */
+    public abstract void write(ResultSet rows, boolean more, Writer out) throws SQLException, IOException;
+
+    /**
+     * Returns the column's value in the current row as text, or null if it
+     * is null. quoted is set to false for values that are numbers or
+     * booleans.
+     */
+    static String value(ResultSet rows, int column, int type, SimpleDateFormat dates, SimpleDateFormat timestamps,
+                        boolean[] quoted) throws SQLException {
+        quoted[0] = true;
+        switch (type) {
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+        case Types.INTEGER:
+        case Types.SMALLINT:
+        case Types.TINYINT:
+        case Types.BIGINT:
+        case Types.FLOAT:
+        case Types.REAL:
+        case Types.DOUBLE:
+            BigDecimal n = rows.getBigDecimal(column);
+            if (n == null) {
+                return null;
+            }
+            quoted[0] = false;
+            return n.toPlainString();
+        case Types.BIT:
+        case Types.BOOLEAN:
+            boolean b = rows.getBoolean(column);
+            if (rows.wasNull()) {
+                return null;
+            }
+            quoted[0] = false;
+            return String.valueOf(b);
+        case Types.DATE:
+        case Types.TIMESTAMP:
+            // Oracle DATEs have a time, so read both as timestamps
+            Timestamp t = rows.getTimestamp(column);
+            if (t == null) {
+                return null;
+            }
+            return (t.getNanos() == 0 ? dates : timestamps).format(t);
+        case Types.BLOB:
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+            throw new SQLException("Column " + rows.getMetaData().getColumnName(column)
+                                   + " is binary and can't be serialized");
+        default:
+            return rows.getString(column);
+        }
+    }
+
+    private static SimpleDateFormat format(String pattern) {
+        return new SimpleDateFormat(pattern);
+    }
+
+    private static class Json extends CursorFormat {
+
+        public String contentType() {
+            return "application/json; charset=UTF-8";
+        }
+
+        public void write(ResultSet rows, boolean more, Writer out) throws SQLException, IOException {
+            ResultSetMetaData meta = rows.getMetaData();
+            int columns = meta.getColumnCount();
+            String[] names = new String[columns + 1];
+            int[] types = new int[columns + 1];
+            for (int i = 1; i <= columns; i++) {
+                names[i] = quote(meta.getColumnLabel(i).toLowerCase());
+                types[i] = meta.getColumnType(i);
+            }
+            SimpleDateFormat dates = format("yyyy-MM-dd'T'HH:mm:ss");
+            SimpleDateFormat timestamps = format("yyyy-MM-dd'T'HH:mm:ss.SSS");
+            boolean[] quoted = new boolean[1];
+
+            out.write('[');
+            boolean first = true;
+            while (more) {
+                out.write(first ? "\n{" : ",\n{");
+                first = false;
+                for (int i = 1; i <= columns; i++) {
+                    if (i > 1) {
+                        out.write(',');
+                    }
+                    out.write(names[i]);
+                    out.write(':');
+                    String v = value(rows, i, types[i], dates, timestamps, quoted);
+                    out.write(v == null ? "null" : quoted[0] ? quote(v) : v);
+                }
+                out.write('}');
+                more = rows.next();
+            }
+            out.write("\n]\n");
+        }
+
+        private static String quote(String s) {
+            StringBuilder sb = new StringBuilder(s.length() + 2);
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    // the line separators are legal JSON but not JavaScript
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        sb.append(c);
+                    }
+                }
+            }
+            return sb.append('"').toString();
+        }
+    }
+
+    private static class Csv extends CursorFormat {
+
+        public String contentType() {
+            return "text/csv; charset=UTF-8; header=present";
+        }
+
+        public void write(ResultSet rows, boolean more, Writer out) throws SQLException, IOException {
+            ResultSetMetaData meta = rows.getMetaData();
+            int columns = meta.getColumnCount();
+            int[] types = new int[columns + 1];
+            for (int i = 1; i <= columns; i++) {
+                if (i > 1) {
+                    out.write(',');
+                }
+                out.write(quote(meta.getColumnLabel(i).toLowerCase()));
+                types[i] = meta.getColumnType(i);
+            }
+            out.write("\r\n");
+
+            SimpleDateFormat dates = format("yyyy-MM-dd'T'HH:mm:ss");
+            SimpleDateFormat timestamps = format("yyyy-MM-dd'T'HH:mm:ss.SSS");
+            boolean[] quoted = new boolean[1];
+            while (more) {
+                for (int i = 1; i <= columns; i++) {
+                    if (i > 1) {
+                        out.write(',');
+                    }
+                    String v = value(rows, i, types[i], dates, timestamps, quoted);
+                    if (v != null) {
+                        out.write(quote(v));
+                    }
+                }
+                out.write("\r\n");
+                more = rows.next();
+            }
+        }
+
+        // quotes only when needed, so numbers and plain text stay bare
+        private static String quote(String s) {
+            boolean needed = false;
+            for (int i = 0; i < s.length() && !needed; i++) {
+                char c = s.charAt(i);
+                needed = c == '"' || c == ',' || c == '\r' || c == '\n';
+            }
+            if (!needed) {
+                return s;
+            }
+            return '"' + s.replace("\"", "\"\"") + '"';
+        }
+    }
+
+}
@@ -2,6 +2,7 @@ package net.prizmora;
 
 import java.sql.*;
 import javax.sql.*;
+import oracle.jdbc.OracleConnection;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -71,6 +72,18 @@ public final class DbUtil {
         }
     }
 
+    public static void rollback(Connection conn, Savepoint savepoint) {
+        if (conn != null && savepoint != null) {
+            try {
+                conn.rollback(savepoint);
+            }
+            catch (Throwable t) {
+                // a commit or rollback by the procedure ends the savepoint
+                log.warn("rollback to savepoint error: {}", t.toString());
+            }
+        }
+    }
+
     public static void commit(Connection conn) {
         if (conn != null) {
             try {
@@ -82,6 +95,31 @@ public final class DbUtil {
         }
     }
 
+    /**
+     * Sets the module, action and client identifier of the session, or
+     * clears them if they are null. The Oracle driver sends them with the
+     * next call, so this costs no round trip; other drivers ignore them.
+     * Values are cut to the lengths Oracle allows.
+     */
+    public static void setEndToEndMetrics(Connection conn, String module, String action, String clientId) {
+        if (conn instanceof OracleConnection) {
+            String[] metrics = new String[OracleConnection.END_TO_END_STATE_INDEX_MAX];
+            metrics[OracleConnection.END_TO_END_MODULE_INDEX] = truncate(module, 48);
+            metrics[OracleConnection.END_TO_END_ACTION_INDEX] = truncate(action, 32);
+            metrics[OracleConnection.END_TO_END_CLIENTID_INDEX] = truncate(clientId, 64);
+            try {
+                ((OracleConnection) conn).setEndToEndMetrics(metrics, (short) 0);
+            }
+            catch (Throwable t) {
+                log.warn("setEndToEndMetrics error: {}", t.toString());
+            }
+        }
+    }
+
+    private static String truncate(String s, int max) {
+        return s != null && s.length() > max ? s.substring(0, max) : s;
+    }
+
     public static void setAutoCommit(Connection conn, boolean autoCommit) {
         if (conn != null) {
             try {
@@ -0,0 +1,17 @@
+package net.prizmora;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when a procedure call runs past its request deadline and the
+ * database work was stopped.
+ */
+public class DeadlineExceededException extends SQLException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DeadlineExceededException(int timeoutSeconds, Throwable cause) {
+		super("Request exceeded its " + timeoutSeconds + "s deadline");
+		initCause(cause);
+	}
+}
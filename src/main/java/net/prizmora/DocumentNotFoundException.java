@@ -0,0 +1,16 @@
+package net.prizmora;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when a procedure asks for a download of a document that isn't in
+ * the document table.
+ */
+public class DocumentNotFoundException extends SQLException {
+
+	private static final long serialVersionUID = 1L;
+
+	public DocumentNotFoundException(String docName) {
+		super("Document not found: " + docName);
+	}
+}
@@ -0,0 +1,128 @@
+package net.prizmora;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Access to the mod_plsql style document table that uploaded files are
+ * stored in. The table needs the columns NAME, MIME_TYPE, DOC_SIZE,
+ * DAD_CHARSET, LAST_UPDATED, CONTENT_TYPE and BLOB_CONTENT.
+ */
+public class DocumentTable {
+
+    private static final Logger log = LogManager.getLogger(DocumentTable.class);
+
+    // large enough to fill several Oracle LOB chunks per write
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final Random random = new SecureRandom();
+
+    private final String tableName;
+    private final String charset;
+    private final String insertSql;
+    private final String updateSizeSql;
+
+    public DocumentTable(PrizmoraConfig config) {
+        this.tableName = config.documentTable();
+        this.charset = config.dbCharset();
+        this.insertSql = "BEGIN INSERT INTO " + tableName
+            + " (name, mime_type, doc_size, dad_charset, last_updated, content_type, blob_content)"
+            + " VALUES (?, ?, 0, ?, sysdate, 'BLOB', empty_blob())"
+            + " RETURNING blob_content INTO ?; END;";
+        this.updateSizeSql = "UPDATE " + tableName + " SET doc_size = ? WHERE name = ?";
+    }
+
+    public String tableName() {
+        return tableName;
+    }
+
+    /**
+     * Inserts a new document and streams its content into the row's BLOB.
+     * Returns the generated document name, which is what the procedure
+     * receives as the value of the file parameter. The row is not
+     * committed here; ProcedureCache commits it once the procedure the
+     * file was sent to has run.
+     */
+    public String store(InputStream content, String fileName, String mimeType, Connection conn,
+                        CallContext ctx) throws SQLException, IOException {
+        String docName = documentName(fileName);
+        if (mimeType == null) {
+            mimeType = "application/octet-stream";
+        }
+
+        Blob blob;
+        CallableStatement cs = null;
+        try {
+            cs = ctx.prepareCall(conn, insertSql);
+            cs.setString(1, docName);
+            cs.setString(2, mimeType);
+            cs.setString(3, charset);
+            cs.registerOutParameter(4, Types.BLOB);
+            cs.execute();
+            blob = cs.getBlob(4);
+        } finally {
+            ctx.close(cs);
+        }
+
+        long size = 0;
+        OutputStream out = blob.setBinaryStream(1L);
+        try {
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = content.read(buf)) > 0) {
+                out.write(buf, 0, n);
+                size += n;
+            }
+            out.flush();
+        } finally {
+            IoUtil.close(out);
+        }
+
+        PreparedStatement ps = null;
+        try {
+            ps = ctx.prepareStatement(conn, updateSizeSql);
+            ps.setLong(1, size);
+            ps.setString(2, docName);
+            ps.executeUpdate();
+        } finally {
+            ctx.close(ps);
+        }
+
+        log.debug("Stored document {} ({} bytes, {})", docName, size, mimeType);
+        return docName;
+    }
+
+    /**
+     * Document names follow the mod_plsql convention of a unique directory
+     * followed by the file name as the browser sent it, minus any path.
+     */
+    private static String documentName(String fileName) {
+        int slash = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
+        if (slash >= 0) {
+            fileName = fileName.substring(slash + 1);
+        }
+        long id;
+        synchronized (random) {
+            id = random.nextLong() & Long.MAX_VALUE;
+        }
+        String name = "F" + Long.toString(id, 36) + "/" + fileName;
+        // NAME is VARCHAR2(256) in the standard document table
+        if (name.length() > 256) {
+            name = name.substring(0, 256);
+        }
+        return name;
+    }
+
+}
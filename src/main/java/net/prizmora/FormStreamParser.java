@@ -0,0 +1,258 @@
+package net.prizmora;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Parses an application/x-www-form-urlencoded request body straight from
+ * its input stream. Values are decoded into memory until they grow past a
+ * threshold, at which point the Listener may take over the value and have
+ * the rest of it decoded into a Writer in fixed-size chunks. This keeps
+ * huge values (such as large textarea posts bound to CLOB arguments) from
+ * ever being held on the heap.
+ */
+public class FormStreamParser {
+
+    private static final Logger log = LogManager.getLogger(FormStreamParser.class);
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_NAME_LENGTH = 4096;
+
+    public interface Listener {
+        /**
+         * Called once a value grows past the threshold. Returns a Writer
+         * that receives the whole decoded value and is closed at its end,
+         * or null to keep buffering the value in memory.
+         */
+        Writer stream(String name) throws IOException;
+    }
+
+    private final Charset charset;
+    private final int threshold;
+    private final long maxSize;
+
+    public FormStreamParser(Charset charset, int threshold, long maxSize) {
+        this.charset = charset;
+        this.threshold = threshold;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Reads the body and adds each buffered value to params. A streamed
+     * value is recorded in params under its name but not added to the list.
+     * Throws RequestTooLargeException once more than maxSize bytes have been
+     * read, if maxSize is positive.
+     */
+    public void parse(InputStream in, Map<String, List<String>> params, Listener listener) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        ByteArrayOutputStream name = new ByteArrayOutputStream(64);
+        ByteArrayOutputStream value = new ByteArrayOutputStream(256);
+        OutputStream streamOut = null;
+        String currentName = null;
+        boolean declined = false;
+        long total = 0;
+
+        // percent-decoding state: 0 = plain, 1 = after '%', 2 = after first hex digit
+        int pct = 0;
+        int high = 0;
+
+        try {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                total += n;
+                if (maxSize > 0 && total > maxSize) {
+                    throw new RequestTooLargeException(maxSize);
+                }
+
+                for (int i = 0; i < n; i++) {
+                    int b = buf[i] & 0xff;
+                    int decoded;
+                    if (pct == 1) {
+                        high = hex(b);
+                        pct = 2;
+                        continue;
+                    }
+                    else if (pct == 2) {
+                        decoded = (high << 4) | hex(b);
+                        pct = 0;
+                    }
+                    else if (b == '&') {
+                        endField(name, value, currentName, streamOut, params);
+                        name.reset();
+                        value.reset();
+                        streamOut = null;
+                        currentName = null;
+                        declined = false;
+                        continue;
+                    }
+                    else if (b == '=' && currentName == null) {
+                        currentName = new String(name.toByteArray(), charset);
+                        continue;
+                    }
+                    else if (b == '%') {
+                        pct = 1;
+                        continue;
+                    }
+                    else if (b == '+') {
+                        decoded = ' ';
+                    }
+                    else {
+                        decoded = b;
+                    }
+
+                    if (currentName == null) {
+                        name.write(decoded);
+                        if (name.size() > MAX_NAME_LENGTH) {
+                            throw new IOException("Form parameter name too long");
+                        }
+                    }
+                    else if (streamOut != null) {
+                        streamOut.write(decoded);
+                    }
+                    else {
+                        value.write(decoded);
+                        if (!declined && value.size() > threshold) {
+                            Writer writer = listener.stream(currentName);
+                            if (writer == null) {
+                                declined = true;
+                            }
+                            else {
+                                log.debug("Streaming large form parameter {}", currentName);
+                                streamOut = new BufferedOutputStream(new DecodingOutputStream(writer, charset), BUFFER_SIZE);
+                                value.writeTo(streamOut);
+                                value.reset();
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (pct != 0) {
+                throw new IOException("Malformed form data: truncated escape sequence");
+            }
+            endField(name, value, currentName, streamOut, params);
+            streamOut = null;
+        }
+        finally {
+            IoUtil.close(streamOut);
+        }
+    }
+
+    private void endField(ByteArrayOutputStream name, ByteArrayOutputStream value, String currentName,
+                          OutputStream streamOut, Map<String, List<String>> params) throws IOException {
+        if (currentName == null) {
+            if (name.size() == 0) {
+                return; // empty field, as in "a=1&&b=2"
+            }
+            currentName = new String(name.toByteArray(), charset);
+        }
+
+        List<String> values = params.get(currentName);
+        if (values == null) {
+            values = new ArrayList<String>(1);
+            params.put(currentName, values);
+        }
+
+        if (streamOut != null) {
+            streamOut.close();
+        }
+        else {
+            values.add(new String(value.toByteArray(), charset));
+        }
+    }
+
+    private static int hex(int b) throws IOException {
+        int digit = Character.digit((char) b, 16);
+        if (digit < 0) {
+            throw new IOException("Malformed form data: bad escape sequence");
+        }
+        return digit;
+    }
+
+    /**
+     * Decodes bytes written to it into characters and passes them on to a
+     * Writer, using fixed-size buffers.
+     */
+    private static class DecodingOutputStream extends OutputStream {
+        private final CharsetDecoder decoder;
+        private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        private final Writer out;
+
+        DecodingOutputStream(Writer out, Charset charset) {
+            this.out = out;
+            this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            bytes.put((byte) b);
+            if (!bytes.hasRemaining()) {
+                decode(false);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, bytes.remaining());
+                bytes.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!bytes.hasRemaining()) {
+                    decode(false);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            decode(true);
+            decoder.flush(chars);
+            writeChars();
+            out.close();
+        }
+
+        private void decode(boolean endOfInput) throws IOException {
+            bytes.flip();
+            while (true) {
+                CoderResult result = decoder.decode(bytes, chars, endOfInput);
+                writeChars();
+                if (result.isUnderflow()) {
+                    break;
+                }
+                if (result.isError()) {
+                    result.throwException();
+                }
+            }
+            bytes.compact();
+        }
+
+        private void writeChars() throws IOException {
+            chars.flip();
+            if (chars.hasRemaining()) {
+                out.write(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+            }
+            chars.clear();
+        }
+    }
+
+}
@@ -0,0 +1,11 @@
+package net.prizmora;
+
+/**
+ * Handles HTTP requests delivered by an HttpTransport. The handler must
+ * close the response when it is done with it.
+ */
+public interface HttpHandler {
+
+    void handle(HttpRequest req, HttpResponse resp);
+
+}
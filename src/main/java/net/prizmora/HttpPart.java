@@ -0,0 +1,22 @@
+package net.prizmora;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A file uploaded in a multipart request body.
+ */
+public interface HttpPart {
+
+    /** Returns the name of the form field the file was sent for. */
+    String getName();
+
+    /** Returns the file name as the browser sent it, possibly empty. */
+    String getFileName();
+
+    /** Returns the file's content type, or null if none was sent. */
+    String getContentType();
+
+    InputStream getInputStream() throws IOException;
+
+}
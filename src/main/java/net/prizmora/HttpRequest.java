@@ -0,0 +1,69 @@
+package net.prizmora;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of an HTTP request that Prizmora uses, independent of the
+ * transport that received it.
+ */
+public interface HttpRequest {
+
+    String getMethod();
+
+    /** Returns the decoded path, e.g. "/ce/dad/pkg.proc". */
+    String getPath();
+
+    /** Returns the path up to and including its last '/', e.g. "/ce/dad/". */
+    String getDirectory();
+
+    /** Returns the path after its last '/', or null if that is empty. */
+    String getName();
+
+    /** Returns the raw query string without the '?', or null if there is none. */
+    String getQueryString();
+
+    /** Returns the decoded query parameters. */
+    Map<String, List<String>> getQuery();
+
+    /**
+     * Returns the query parameters together with the parameters of an
+     * url-encoded or multipart body. File parts are not included.
+     */
+    Map<String, List<String>> getForm() throws IOException;
+
+    /** Returns the file parts of a multipart body. */
+    List<HttpPart> getParts() throws IOException;
+
+    /** Returns the protocol version, e.g. "HTTP/1.1". */
+    String getProtocol();
+
+    /** Returns "http" or "https". */
+    String getScheme();
+
+    /** Returns the value of a header, or null if it is missing. */
+    String getValue(String name);
+
+    /** Returns the body length, or -1 if it is unknown. */
+    long getContentLength();
+
+    /** Returns the body's media type, or null if there is none. */
+    MediaType getContentType();
+
+    InetSocketAddress getClientAddress();
+
+    /** Returns the request body. Don't mix this with getForm() or getParts(). */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Registers a callback to run, on a transport thread other than the one
+     * doing socket I/O, if the client disconnects before the response has
+     * been sent. It runs at once, on the caller's thread, if the client is
+     * already gone. Transports that can't tell never run it.
+     */
+    void onDisconnect(Runnable callback);
+
+}
@@ -0,0 +1,54 @@
+package net.prizmora;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The parts of an HTTP response that Prizmora uses, independent of the
+ * transport that sends it. Headers must be set before the body is written.
+ */
+public interface HttpResponse {
+
+    void setCode(int code);
+
+    int getCode();
+
+    void setText(String text);
+
+    /** Sets a header, replacing any earlier value. */
+    void set(String name, String value);
+
+    /** Adds a header, keeping any earlier values. */
+    void add(String name, String value);
+
+    void setContentLength(long length);
+
+    OutputStream getOutputStream() throws IOException;
+
+    PrintStream getPrintStream() throws IOException;
+
+    WritableByteChannel getByteChannel() throws IOException;
+
+    /**
+     * Sends count bytes of a file starting at position as the body. The
+     * transport may send it later, without copying it through the heap.
+     */
+    void sendFile(File file, long position, long count) throws IOException;
+
+    /** Returns the number of body bytes written so far. */
+    long getBodyLength();
+
+    /** Completes the response. Calling it more than once has no effect. */
+    void close() throws IOException;
+
+    /**
+     * Ends a response whose body was cut short by dropping the connection,
+     * so the client can't take it for a complete one. Transports that can't
+     * drop it complete the response as close() does.
+     */
+    void abort() throws IOException;
+
+}
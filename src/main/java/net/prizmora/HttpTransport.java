@@ -0,0 +1,21 @@
+package net.prizmora;
+
+import java.io.IOException;
+
+/**
+ * Accepts HTTP connections and passes the requests on them to a handler.
+ * Implementations are selected with the httpTransport setting.
+ */
+public interface HttpTransport {
+
+    void start(HttpHandler handler) throws IOException;
+
+    void stop() throws IOException;
+
+    /**
+     * Applies the settings of a reloaded configuration. Settings that can't
+     * change while the transport is running keep their old values.
+     */
+    void reconfigure(PrizmoraConfig config);
+
+}
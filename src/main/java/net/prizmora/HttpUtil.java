@@ -0,0 +1,78 @@
+package net.prizmora;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Helpers for reading who a request is from out of its headers.
+ */
+public final class HttpUtil {
+
+    private HttpUtil() {
+    }
+
+    /**
+     * Parses a comma separated list of addresses, such as trustedProxies.
+     */
+    public static Set<String> addresses(String list) {
+        Set<String> addresses = new HashSet<String>();
+        for (String address : list.split(",")) {
+            address = address.trim();
+            if (address.length() > 0) {
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Returns the address of the client that sent req, or "-" if it isn't
+     * known. If the request came through trustedProxies, that is the last
+     * address in X-Forwarded-For that isn't one of them; proxies append the
+     * address they received the request from, so anything further left
+     * could have been made up by the client.
+     */
+    public static String clientAddress(HttpRequest req, Set<String> trustedProxies) {
+        InetSocketAddress peer = req.getClientAddress();
+        String address = peer != null && peer.getAddress() != null ? peer.getAddress().getHostAddress() : "-";
+        if (!trustedProxies.contains(address)) {
+            return address;
+        }
+        String forwarded = req.getValue("X-Forwarded-For");
+        if (forwarded == null) {
+            return address;
+        }
+        String[] hops = forwarded.split(",");
+        for (int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+            if (hop.length() == 0) {
+                continue;
+            }
+            address = hop;
+            if (!trustedProxies.contains(hop)) {
+                break;
+            }
+        }
+        return address;
+    }
+
+    /**
+     * Returns the value of the named cookie in a Cookie header, or null if
+     * it is missing or empty.
+     */
+    public static String cookie(String header, String name) {
+        if (header == null) {
+            return null;
+        }
+        for (String pair : header.split(";")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).trim().equals(name)) {
+                String value = pair.substring(eq + 1).trim();
+                return value.length() > 0 ? value : null;
+            }
+        }
+        return null;
+    }
+
+}
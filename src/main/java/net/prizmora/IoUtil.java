@@ -4,6 +4,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.channels.Channel;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -56,4 +57,15 @@ public final class IoUtil {
         }
     }
 
+    public static void close(Channel c) {
+        if (c != null) {
+            try {
+                c.close();
+            }
+            catch (Throwable t) {
+                log.warn("close error: {}", t.toString());
+            }
+        }
+    }
+
 }
@@ -0,0 +1,84 @@
+package net.prizmora;
+
+/**
+ * A parsed Content-Type value such as "text/html; charset=UTF-8".
+ */
+public class MediaType {
+
+    private final String value;
+    private final String primary;
+    private final String secondary;
+    private final String charset;
+
+    private MediaType(String value, String primary, String secondary, String charset) {
+        this.value = value;
+        this.primary = primary;
+        this.secondary = secondary;
+        this.charset = charset;
+    }
+
+    /** Returns null if value is null or empty. */
+    public static MediaType parse(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return null;
+        }
+        String[] params = value.split(";");
+        String type = params[0].trim();
+        int slash = type.indexOf('/');
+        String primary = slash < 0 ? type : type.substring(0, slash);
+        String secondary = slash < 0 ? "" : type.substring(slash + 1);
+        String charset = null;
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                charset = unquote(param.substring(8).trim());
+            }
+        }
+        return new MediaType(value.trim(), primary, secondary, charset);
+    }
+
+    /** Returns the value of a parameter such as "boundary", or null. */
+    public String getParameter(String name) {
+        String[] params = value.split(";");
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            int eq = param.indexOf('=');
+            if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase(name)) {
+                return unquote(param.substring(eq + 1).trim());
+            }
+        }
+        return null;
+    }
+
+    public boolean is(String primary, String secondary) {
+        return this.primary.equalsIgnoreCase(primary) && this.secondary.equalsIgnoreCase(secondary);
+    }
+
+    /**
+     * Returns true for types whose content is text, which may be given a
+     * charset: text/*, and JSON, XML and JavaScript types.
+     */
+    public boolean isText() {
+        String sub = secondary.toLowerCase();
+        return primary.equalsIgnoreCase("text")
+            || (primary.equalsIgnoreCase("application")
+                && (sub.equals("json") || sub.equals("xml") || sub.equals("javascript")
+                    || sub.equals("ecmascript") || sub.endsWith("+json") || sub.endsWith("+xml")));
+    }
+
+    public String getPrimary() { return primary; }
+    public String getSecondary() { return secondary; }
+    public String getCharset() { return charset; }
+
+    public String toString() {
+        return value;
+    }
+
+    private static String unquote(String s) {
+        if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"') {
+            return s.substring(1, s.length() - 1);
+        }
+        return s;
+    }
+
+}
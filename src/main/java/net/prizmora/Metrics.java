@@ -0,0 +1,374 @@
+package net.prizmora;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Process wide registry of named counters, gauges and histograms. A metric
+ * is identified by its name plus optional label pairs, rendered as
+ * name{label="value",...}, and is created the first time it is asked for.
+ * Look metrics up once and keep them in a field where the labels allow;
+ * recording is cheap, the lookup less so.
+ *
+ * Counters and histograms are striped: each thread adds to one of several
+ * cells, each on its own cache line, and reads sum the cells. Request
+ * threads recording the same metric therefore don't contend.
+ */
+public class Metrics {
+
+    private static final Logger log = LogManager.getLogger(Metrics.class);
+
+    // number of cells per striped metric, a power of two
+    private static final int STRIPES =
+        Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 32) * 2 - 1) << 1;
+    // longs per cache line, so that stripes don't share one
+    private static final int PAD = 8;
+
+    /** Upper bounds (in seconds) of the buckets of every histogram. */
+    private static final double[] BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1e9);
+        }
+    }
+
+    private static final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+    private static ScheduledExecutorService logger;
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter with the given name and label pairs, for example
+     * counter("package_resets_total", "policy", "full").
+     */
+    public static Counter counter(String name, String... labels) {
+        String rendered = labels(labels);
+        Metric metric = metrics.get(name + rendered);
+        if (metric == null) {
+            metric = register(new Counter(name, rendered, "counter"));
+        }
+        return (Counter) check(metric, Counter.class, "counter");
+    }
+
+    /**
+     * Returns a gauge with the given name and label pairs. It is a Counter
+     * whose value may also go down.
+     */
+    public static Counter gauge(String name, String... labels) {
+        String rendered = labels(labels);
+        Metric metric = metrics.get(name + rendered);
+        if (metric == null) {
+            metric = register(new Counter(name, rendered, "gauge"));
+        }
+        return (Counter) check(metric, Counter.class, "gauge");
+    }
+
+    /**
+     * Registers a gauge whose value is read from gauge when metrics are
+     * collected, replacing any gauge registered under the same name and
+     * labels.
+     */
+    public static void gauge(String name, Gauge gauge, String... labels) {
+        Metric metric = new CallbackGauge(name, labels(labels), gauge);
+        metrics.put(metric.key(), metric);
+    }
+
+    /**
+     * Returns the histogram of durations with the given name and label
+     * pairs. Its buckets are in seconds, so the name should end in
+     * _seconds.
+     */
+    public static Histogram histogram(String name, String... labels) {
+        String rendered = labels(labels);
+        Metric metric = metrics.get(name + rendered);
+        if (metric == null) {
+            metric = register(new Histogram(name, rendered));
+        }
+        return (Histogram) check(metric, Histogram.class, "histogram");
+    }
+
+    private static Metric register(Metric created) {
+        Metric metric = metrics.putIfAbsent(created.key(), created);
+        return metric != null ? metric : created;
+    }
+
+    private static Metric check(Metric metric, Class<?> cls, String type) {
+        if (metric.getClass() != cls || !metric.type.equals(type)) {
+            throw new IllegalArgumentException(metric.key() + " is already registered as a " + metric.type);
+        }
+        return metric;
+    }
+
+    static String key(String name, String... labels) {
+        return name + labels(labels);
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name/value pairs");
+        }
+        StringBuilder sb = new StringBuilder().append('{');
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            escape(labels[i + 1], sb);
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void escape(String value, StringBuilder sb) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            }
+            else if (c == '\n') {
+                sb.append("\\n");
+            }
+            else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private static int stripe() {
+        return ((int) Thread.currentThread().getId() & (STRIPES - 1));
+    }
+
+    /**
+     * Returns the current value of every counter and gauge, sorted by key.
+     * A histogram contributes its count and sum, as name_count and
+     * name_sum_microseconds.
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Metric metric : metrics.values()) {
+            if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                values.put(h.name + "_count" + h.labels, h.count());
+                values.put(h.name + "_sum_microseconds" + h.labels, h.sumNanos() / 1000);
+            }
+            else {
+                values.put(metric.key(), metric.value());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format,
+     * grouped by name.
+     */
+    public static String prometheus() {
+        Map<String, List<Metric>> byName = new TreeMap<String, List<Metric>>();
+        for (Metric metric : metrics.values()) {
+            List<Metric> group = byName.get(metric.name);
+            if (group == null) {
+                group = new ArrayList<Metric>();
+                byName.put(metric.name, group);
+            }
+            group.add(metric);
+        }
+        StringBuilder sb = new StringBuilder(4096);
+        for (Map.Entry<String, List<Metric>> e : byName.entrySet()) {
+            List<Metric> group = e.getValue();
+            sb.append("# TYPE ").append(e.getKey()).append(' ').append(group.get(0).type).append('\n');
+            for (Metric metric : group) {
+                metric.write(sb);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Logs every counter each intervalSeconds. Does nothing if
+     * intervalSeconds is 0 or logging has already been started.
+     */
+    public static synchronized void logEvery(int intervalSeconds) {
+        if (intervalSeconds <= 0 || logger != null) {
+            return;
+        }
+        logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "prizmora-metrics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        logger.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+                    log.info("{} {}", e.getKey(), e.getValue());
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Supplies the value of a gauge that is read when metrics are collected. */
+    public interface Gauge {
+        long value();
+    }
+
+    private abstract static class Metric {
+
+        final String name;
+        // rendered label pairs, e.g. {policy="full"}, or ""
+        final String labels;
+        final String type;
+
+        Metric(String name, String labels, String type) {
+            this.name = name;
+            this.labels = labels;
+            this.type = type;
+        }
+
+        String key() {
+            return name + labels;
+        }
+
+        abstract long value();
+
+        void write(StringBuilder sb) {
+            sb.append(name).append(labels).append(' ').append(value()).append('\n');
+        }
+
+    }
+
+    public static class Counter extends Metric {
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        private Counter(String name, String labels, String type) {
+            super(name, labels, type);
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public void add(long delta) {
+            cells.getAndAdd(stripe() * PAD, delta);
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PAD);
+            }
+            return sum;
+        }
+
+        long value() {
+            return get();
+        }
+
+    }
+
+    private static class CallbackGauge extends Metric {
+
+        private final Gauge gauge;
+
+        CallbackGauge(String name, String labels, Gauge gauge) {
+            super(name, labels, "gauge");
+            this.gauge = gauge;
+        }
+
+        long value() {
+            return gauge.value();
+        }
+
+    }
+
+    public static class Histogram extends Metric {
+
+        // per stripe: a count for each bucket, one for +Inf, then the sum
+        // of the observations in nanoseconds
+        private static final int SUM = BUCKETS.length + 1;
+        private static final int ROW = (SUM + 1 + PAD - 1) / PAD * PAD;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * ROW);
+
+        private Histogram(String name, String labels) {
+            super(name, labels, "histogram");
+        }
+
+        /** Records a duration of nanos nanoseconds. */
+        public void observe(long nanos) {
+            int bucket = 0;
+            while (bucket < BUCKETS.length && nanos > BUCKET_NANOS[bucket]) {
+                bucket++;
+            }
+            int row = stripe() * ROW;
+            cells.getAndIncrement(row + bucket);
+            cells.getAndAdd(row + SUM, nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (int s = 0; s < STRIPES; s++) {
+                for (int i = 0; i < SUM; i++) {
+                    count += cells.get(s * ROW + i);
+                }
+            }
+            return count;
+        }
+
+        long sumNanos() {
+            long sum = 0;
+            for (int s = 0; s < STRIPES; s++) {
+                sum += cells.get(s * ROW + SUM);
+            }
+            return sum;
+        }
+
+        long value() {
+            return count();
+        }
+
+        @Override
+        void write(StringBuilder sb) {
+            long[] counts = new long[SUM];
+            for (int s = 0; s < STRIPES; s++) {
+                for (int i = 0; i < SUM; i++) {
+                    counts[i] += cells.get(s * ROW + i);
+                }
+            }
+            // labels without their closing brace, to add le to
+            String prefix = labels.length() == 0 ? "{" : labels.substring(0, labels.length() - 1) + ",";
+            long cumulative = 0;
+            for (int i = 0; i < SUM; i++) {
+                cumulative += counts[i];
+                sb.append(name).append("_bucket").append(prefix).append("le=\"")
+                  .append(i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf").append("\"} ")
+                  .append(cumulative).append('\n');
+            }
+            sb.append(name).append("_sum").append(labels).append(' ').append(sumNanos() / 1e9).append('\n');
+            sb.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+        }
+
+    }
+
+}
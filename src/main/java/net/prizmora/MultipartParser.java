@@ -0,0 +1,236 @@
+package net.prizmora;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses a multipart/form-data body from a stream, handing the body of
+ * each part to an OutputStream chosen by a Handler. Parts are copied in
+ * fixed-size chunks, so a part is never held in memory unless the handler
+ * chooses to.
+ */
+class MultipartParser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_LENGTH = 8192;
+
+    interface Handler {
+        /**
+         * Called at the start of each part with its headers, keyed by
+         * lowercased name. Returns the stream to copy the part body to;
+         * it is closed at the end of the part.
+         */
+        OutputStream part(Map<String, String> headers) throws IOException;
+    }
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    MultipartParser(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = latin1("\r\n--" + boundary);
+        this.buf = new byte[BUFFER_SIZE + delimiter.length];
+        // the first boundary isn't preceded by a line break, so supply one
+        buf[0] = '\r';
+        buf[1] = '\n';
+        limit = 2;
+    }
+
+    void parse(Handler handler) throws IOException {
+        // skip the preamble
+        copyToDelimiter(null);
+        while (true) {
+            fill(2);
+            if (limit - pos >= 2 && buf[pos] == '-' && buf[pos + 1] == '-') {
+                return;
+            }
+            // rest of the boundary line, usually just the line break
+            readLine();
+
+            Map<String, String> headers = new HashMap<String, String>();
+            int headerLength = 0;
+            String line;
+            while ((line = readLine()).length() > 0) {
+                headerLength += line.length();
+                if (headerLength > MAX_HEADER_LENGTH) {
+                    throw new IOException("Malformed multipart body: part headers too long");
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+
+            OutputStream out = handler.part(headers);
+            try {
+                copyToDelimiter(out);
+            }
+            finally {
+                IoUtil.close(out);
+            }
+        }
+    }
+
+    /**
+     * Returns a parameter of a header value such as the "name" in
+     * 'form-data; name="file"; filename="a.txt"', or null.
+     */
+    static String headerParameter(String value, String name) {
+        if (value == null) {
+            return null;
+        }
+        int i = 0;
+        while (i < value.length()) {
+            int semi = value.indexOf(';', i);
+            if (semi < 0) {
+                return null;
+            }
+            int eq = value.indexOf('=', semi);
+            if (eq < 0) {
+                return null;
+            }
+            String param = value.substring(semi + 1, eq).trim();
+            int end;
+            String result;
+            int start = eq + 1;
+            while (start < value.length() && value.charAt(start) == ' ') {
+                start++;
+            }
+            if (start < value.length() && value.charAt(start) == '"') {
+                // quoted, may contain ';'
+                end = value.indexOf('"', start + 1);
+                if (end < 0) {
+                    end = value.length();
+                }
+                result = value.substring(start + 1, end);
+            }
+            else {
+                end = value.indexOf(';', start);
+                if (end < 0) {
+                    end = value.length();
+                }
+                result = value.substring(start, end).trim();
+            }
+            if (param.equalsIgnoreCase(name)) {
+                return result;
+            }
+            i = end;
+        }
+        return null;
+    }
+
+    /**
+     * Copies bytes up to the next delimiter to out, or discards them if out
+     * is null, and skips the delimiter.
+     */
+    private void copyToDelimiter(OutputStream out) throws IOException {
+        while (true) {
+            fill(delimiter.length);
+            int found = indexOf(delimiter, pos, limit);
+            if (found >= 0) {
+                if (out != null) {
+                    out.write(buf, pos, found - pos);
+                }
+                pos = found + delimiter.length;
+                return;
+            }
+            if (eof) {
+                throw new IOException("Malformed multipart body: missing boundary");
+            }
+            // keep enough bytes to find a delimiter that is split across reads
+            int safe = limit - delimiter.length + 1;
+            if (safe > pos) {
+                if (out != null) {
+                    out.write(buf, pos, safe - pos);
+                }
+                pos = safe;
+            }
+            compact();
+            read();
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            if (pos >= limit) {
+                fill(1);
+                if (pos >= limit) {
+                    throw new IOException("Malformed multipart body: unexpected end");
+                }
+            }
+            int b = buf[pos++] & 0xff;
+            if (b == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() > MAX_HEADER_LENGTH) {
+                throw new IOException("Malformed multipart body: line too long");
+            }
+            line.append((char) b);
+        }
+    }
+
+    /** Reads until at least n bytes are buffered or the stream ends. */
+    private void fill(int n) throws IOException {
+        if (limit - pos >= n) {
+            return;
+        }
+        compact();
+        while (limit - pos < n && !eof) {
+            read();
+        }
+    }
+
+    private void read() throws IOException {
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+        }
+        else {
+            limit += n;
+        }
+    }
+
+    private void compact() {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+    }
+
+    private int indexOf(byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buf[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] latin1(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
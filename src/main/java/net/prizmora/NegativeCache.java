@@ -0,0 +1,78 @@
+package net.prizmora;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of names that are known not to exist. Each entry expires
+ * after a fixed time to live, and the least recently added entries are
+ * dropped once the cache is full, so a flood of distinct bogus names can't
+ * grow it without bound.
+ */
+public class NegativeCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+
+    /* Guarded by "this". Maps a name to the time (in ms) at which it
+       expires. */
+    private final LinkedHashMap<String, Long> entries;
+
+    public NegativeCache(final int maxSize, long ttlSeconds) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlSeconds * 1000;
+        this.entries = new LinkedHashMap<String, Long>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0 && ttlMillis > 0;
+    }
+
+    public boolean contains(String name) {
+        if (!isEnabled()) {
+            return false;
+        }
+        String key = name.toLowerCase();
+        synchronized (this) {
+            Long expires = entries.get(key);
+            if (expires == null) {
+                return false;
+            }
+            if (expires.longValue() < System.currentTimeMillis()) {
+                entries.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    public void add(String name) {
+        if (!isEnabled()) {
+            return;
+        }
+        String key = name.toLowerCase();
+        Long expires = Long.valueOf(System.currentTimeMillis() + ttlMillis);
+        synchronized (this) {
+            // remove first so a refreshed entry moves to the end of the
+            // eviction order
+            entries.remove(key);
+            entries.put(key, expires);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+}
@@ -0,0 +1,372 @@
+package net.prizmora;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A request read by NioTransport. The head is parsed on the event loop;
+ * the body, which has been read completely before the request is handed
+ * to a worker, is only parsed if the handler asks for the form.
+ */
+class NioRequest implements HttpRequest {
+
+    private static final Logger log = LogManager.getLogger(NioRequest.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String method;
+    private final String path;
+    private final String queryString;
+    private final String protocol;
+    private final Map<String, List<String>> headers;
+    private final Map<String, List<String>> query;
+    private final InetSocketAddress clientAddress;
+    private final PrizmoraConfig config;
+    private SpoolBuffer body;
+
+    private Map<String, List<String>> form;
+    private List<NioPart> parts;
+
+    // guarded by "this"
+    private Runnable disconnectCallback;
+    private boolean disconnected;
+
+    private NioRequest(String method, String path, String queryString, String protocol,
+                       Map<String, List<String>> headers, Map<String, List<String>> query,
+                       InetSocketAddress clientAddress, PrizmoraConfig config) {
+        this.method = method;
+        this.path = path;
+        this.queryString = queryString;
+        this.protocol = protocol;
+        this.headers = headers;
+        this.query = query;
+        this.clientAddress = clientAddress;
+        this.config = config;
+    }
+
+    /**
+     * Parses the request line and headers, which are everything up to the
+     * blank line. Returns null if they are malformed.
+     */
+    static NioRequest parse(String head, InetSocketAddress clientAddress, PrizmoraConfig config) {
+        String[] lines = head.split("\r?\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            return null;
+        }
+        String target = requestLine[1];
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            // absolute form, as sent to proxies
+            int slash = target.indexOf('/', target.indexOf("//") + 2);
+            target = slash < 0 ? "/" : target.substring(slash);
+        }
+        if (!target.startsWith("/")) {
+            return null;
+        }
+
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        String last = null;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.length() > 0 && (line.charAt(0) == ' ' || line.charAt(0) == '\t') && last != null) {
+                // obsolete line folding
+                List<String> values = headers.get(last);
+                int n = values.size() - 1;
+                values.set(n, values.get(n) + " " + line.trim());
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                return null;
+            }
+            last = line.substring(0, colon).trim().toLowerCase();
+            List<String> values = headers.get(last);
+            if (values == null) {
+                values = new ArrayList<String>(1);
+                headers.put(last, values);
+            }
+            values.add(line.substring(colon + 1).trim());
+        }
+
+        int q = target.indexOf('?');
+        String rawPath = q < 0 ? target : target.substring(0, q);
+        String queryString = q < 0 ? null : target.substring(q + 1);
+        Map<String, List<String>> query = new HashMap<String, List<String>>();
+        String path;
+        try {
+            path = decodePath(rawPath);
+            if (queryString != null) {
+                new FormStreamParser(UTF8, Integer.MAX_VALUE, 0).parse(
+                        new ByteArrayInputStream(queryString.getBytes("ISO-8859-1")), query, null);
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+
+        return new NioRequest(requestLine[0], path, queryString, requestLine[2], headers, query,
+                              clientAddress, config);
+    }
+
+    private static String decodePath(String raw) throws IOException {
+        if (raw.indexOf('%') < 0) {
+            return raw;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '%' && i + 2 < raw.length()) {
+                int hi = Character.digit(raw.charAt(i + 1), 16);
+                int lo = Character.digit(raw.charAt(i + 2), 16);
+                if (hi < 0 || lo < 0) {
+                    throw new IOException("Bad escape sequence in path");
+                }
+                out.write((hi << 4) | lo);
+                i += 2;
+            }
+            else {
+                out.write(c);
+            }
+        }
+        return new String(out.toByteArray(), UTF8);
+    }
+
+    void setBody(SpoolBuffer body) {
+        this.body = body;
+    }
+
+    /** Frees the body and any spooled parts. */
+    void release() {
+        if (body != null) {
+            body.release();
+        }
+        if (parts != null) {
+            for (NioPart part : parts) {
+                part.data.release();
+            }
+        }
+    }
+
+    boolean isKeepAlive() {
+        String connection = getValue("Connection");
+        if ("HTTP/1.0".equals(protocol)) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    public String getMethod() { return method; }
+    public String getPath() { return path; }
+
+    public String getDirectory() {
+        return path.substring(0, path.lastIndexOf('/') + 1);
+    }
+
+    public String getName() {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        return name.length() > 0 ? name : null;
+    }
+
+    public String getQueryString() { return queryString; }
+
+    public Map<String, List<String>> getQuery() {
+        return copy(query);
+    }
+
+    public Map<String, List<String>> getForm() throws IOException {
+        if (form == null) {
+            parseBody();
+        }
+        return copy(form);
+    }
+
+    public List<HttpPart> getParts() throws IOException {
+        if (form == null) {
+            parseBody();
+        }
+        return Collections.<HttpPart>unmodifiableList(parts);
+    }
+
+    private void parseBody() throws IOException {
+        Map<String, List<String>> values = copy(query);
+        List<NioPart> files = new ArrayList<NioPart>();
+        MediaType type = getContentType();
+        if (body != null && type != null) {
+            Charset charset = UTF8;
+            if (type.getCharset() != null) {
+                try {
+                    charset = Charset.forName(type.getCharset());
+                }
+                catch (Exception e) {
+                    // keep UTF-8, as our pages are
+                }
+            }
+            if (type.is("application", "x-www-form-urlencoded")) {
+                new FormStreamParser(charset, Integer.MAX_VALUE, 0).parse(body.getInputStream(), values, null);
+            }
+            else if (type.is("multipart", "form-data") && type.getParameter("boundary") != null) {
+                parseMultipart(type.getParameter("boundary"), charset, values, files);
+            }
+        }
+        this.parts = files;
+        this.form = values;
+    }
+
+    private void parseMultipart(String boundary, final Charset charset,
+                                final Map<String, List<String>> values,
+                                final List<NioPart> files) throws IOException {
+        MultipartParser parser = new MultipartParser(body.getInputStream(), boundary);
+        try {
+            parser.parse(new MultipartParser.Handler() {
+                public OutputStream part(Map<String, String> headers) throws IOException {
+                    String disposition = headers.get("content-disposition");
+                    final String name = MultipartParser.headerParameter(disposition, "name");
+                    String fileName = MultipartParser.headerParameter(disposition, "filename");
+                    if (fileName != null) {
+                        NioPart part = new NioPart(name, fileName, headers.get("content-type"),
+                                new SpoolBuffer(config.spoolThreshold(), config.spoolDirectory()));
+                        files.add(part);
+                        return part.data;
+                    }
+                    return new ByteArrayOutputStream() {
+                        @Override
+                        public void close() {
+                            if (name == null) {
+                                return;
+                            }
+                            List<String> list = values.get(name);
+                            if (list == null) {
+                                list = new ArrayList<String>(1);
+                                values.put(name, list);
+                            }
+                            list.add(new String(toByteArray(), charset));
+                        }
+                    };
+                }
+            });
+        }
+        catch (IOException e) {
+            for (NioPart part : files) {
+                part.data.release();
+            }
+            throw e;
+        }
+    }
+
+    private static Map<String, List<String>> copy(Map<String, List<String>> map) {
+        Map<String, List<String>> copy = new HashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> e : map.entrySet()) {
+            copy.put(e.getKey(), new ArrayList<String>(e.getValue()));
+        }
+        return copy;
+    }
+
+    public String getProtocol() { return protocol; }
+    public String getScheme() { return "http"; }
+
+    public String getValue(String name) {
+        List<String> values = headers.get(name.toLowerCase());
+        return values == null ? null : values.get(0);
+    }
+
+    public long getContentLength() {
+        String length = getValue("Content-Length");
+        if (length == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(length);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public MediaType getContentType() {
+        return MediaType.parse(getValue("Content-Type"));
+    }
+
+    public InetSocketAddress getClientAddress() { return clientAddress; }
+
+    public InputStream getInputStream() {
+        if (body == null) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return body.getInputStream();
+    }
+
+    public void onDisconnect(Runnable callback) {
+        synchronized (this) {
+            if (!disconnected) {
+                disconnectCallback = callback;
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Called by the event loop when the client goes away mid-request. The
+     * callback may block, on a database round trip for instance, so it is
+     * run by executor rather than on the event loop.
+     */
+    void disconnected(Executor executor) {
+        Runnable callback;
+        synchronized (this) {
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+            callback = disconnectCallback;
+            disconnectCallback = null;
+        }
+        if (callback != null) {
+            try {
+                executor.execute(callback);
+            }
+            catch (RejectedExecutionException e) {
+                // shutting down; the work will be stopped anyway
+                log.debug("disconnect callback rejected for {}", this);
+            }
+        }
+    }
+
+    public String toString() {
+        return method + " " + path + (queryString == null ? "" : "?" + queryString);
+    }
+
+    private static class NioPart implements HttpPart {
+        private final String name;
+        private final String fileName;
+        private final String contentType;
+        private final SpoolBuffer data;
+
+        NioPart(String name, String fileName, String contentType, SpoolBuffer data) {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.data = data;
+        }
+
+        public String getName() { return name; }
+        public String getFileName() { return fileName; }
+        public String getContentType() { return contentType; }
+        public InputStream getInputStream() { return data.getInputStream(); }
+    }
+
+}
@@ -0,0 +1,288 @@
+package net.prizmora;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A response built by a worker for NioTransport. The body is buffered in
+ * SpoolBuffers (and files passed to sendFile are kept open), and once the
+ * response is closed the whole thing is handed back to the event loop to
+ * be written out as the socket accepts it.
+ */
+class NioResponse implements HttpResponse {
+
+    private final PrizmoraConfig config;
+    private final Runnable onClose;
+
+    private int code = 200;
+    private String text;
+    private final List<String[]> headers = new ArrayList<String[]>();
+    private long contentLength = -1;
+
+    // SpoolBuffers and FileRegions, in order
+    private final List<Object> body = new ArrayList<Object>();
+    private SpoolBuffer current;
+    private OutputStream out;
+    private PrintStream printStream;
+    private volatile boolean closed;
+    private volatile boolean aborted;
+
+    NioResponse(PrizmoraConfig config, Runnable onClose) {
+        this.config = config;
+        this.onClose = onClose;
+    }
+
+    public void setCode(int code) { this.code = code; }
+    public int getCode() { return code; }
+    public void setText(String text) { this.text = text; }
+
+    public void set(String name, String value) {
+        if (name.equalsIgnoreCase("Content-Length")) {
+            setContentLength(Long.parseLong(value.trim()));
+            return;
+        }
+        for (int i = headers.size() - 1; i >= 0; i--) {
+            if (headers.get(i)[0].equalsIgnoreCase(name)) {
+                headers.remove(i);
+            }
+        }
+        headers.add(new String[] { name, value });
+    }
+
+    public void add(String name, String value) {
+        headers.add(new String[] { name, value });
+    }
+
+    String getValue(String name) {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    public void setContentLength(long length) {
+        this.contentLength = length;
+    }
+
+    public OutputStream getOutputStream() {
+        if (out == null) {
+            out = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    buffer().write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    buffer().write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    // the body ends when the response is closed
+                }
+            };
+        }
+        return out;
+    }
+
+    public PrintStream getPrintStream() throws IOException {
+        if (printStream == null) {
+            printStream = new PrintStream(getOutputStream(), false, "UTF-8");
+        }
+        return printStream;
+    }
+
+    public WritableByteChannel getByteChannel() {
+        return Channels.newChannel(getOutputStream());
+    }
+
+    private SpoolBuffer buffer() throws IOException {
+        if (closed) {
+            throw new IOException("Response is closed");
+        }
+        if (current == null) {
+            current = new SpoolBuffer(config.spoolThreshold(), config.spoolDirectory());
+            body.add(current);
+        }
+        return current;
+    }
+
+    public void sendFile(File file, long position, long count) throws IOException {
+        if (closed) {
+            throw new IOException("Response is closed");
+        }
+        if (printStream != null) {
+            printStream.flush();
+        }
+        FileInputStream in = new FileInputStream(file);
+        body.add(new FileRegion(in.getChannel(), position, count));
+        current = null;
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        if (printStream != null) {
+            printStream.flush();
+        }
+        closed = true;
+        onClose.run();
+    }
+
+    public void abort() {
+        aborted = true;
+        close();
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    public long getBodyLength() {
+        long length = 0;
+        for (Object part : body) {
+            if (part instanceof SpoolBuffer) {
+                length += ((SpoolBuffer) part).length();
+            }
+            else {
+                length += ((FileRegion) part).count;
+            }
+        }
+        return length;
+    }
+
+    boolean isCloseRequested() {
+        String connection = getValue("Connection");
+        return connection != null && connection.equalsIgnoreCase("close");
+    }
+
+    /**
+     * Returns the response as ByteBuffers and FileRegions to write in
+     * order. Called on the event loop once the response is closed.
+     */
+    LinkedList<Object> output(boolean head, boolean keepAlive, String date) {
+        boolean noBody = code == 204 || code == 304 || code < 200;
+        long length = getBodyLength();
+        if (head && contentLength >= 0) {
+            // the handler may have declared the length without writing
+            length = contentLength;
+        }
+
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("HTTP/1.1 ").append(code).append(' ')
+          .append(text != null ? text : reasonPhrase(code)).append("\r\n");
+        sb.append("Date: ").append(date).append("\r\n");
+        if (getValue("Server") == null) {
+            sb.append("Server: ").append(Prizmora.NAME).append('/').append(Prizmora.VERSION).append("\r\n");
+        }
+        for (String[] header : headers) {
+            if (!header[0].equalsIgnoreCase("Connection")) {
+                sb.append(header[0]).append(": ").append(header[1]).append("\r\n");
+            }
+        }
+        if (!noBody) {
+            sb.append("Content-Length: ").append(length).append("\r\n");
+        }
+        if (!keepAlive) {
+            sb.append("Connection: close\r\n");
+        }
+        sb.append("\r\n");
+
+        LinkedList<Object> output = new LinkedList<Object>();
+        output.add(ByteBuffer.wrap(latin1(sb.toString())));
+        if (!head && !noBody) {
+            for (Object part : body) {
+                if (part instanceof SpoolBuffer) {
+                    SpoolBuffer buf = (SpoolBuffer) part;
+                    if (buf.isSpooled()) {
+                        output.add(new FileRegion(buf.channel(), 0, buf.length()));
+                    }
+                    else {
+                        output.add(buf.memory());
+                    }
+                }
+                else {
+                    output.add(part);
+                }
+            }
+        }
+        return output;
+    }
+
+    /** Frees spooled body parts and closes files. */
+    void release() {
+        for (Object part : body) {
+            if (part instanceof SpoolBuffer) {
+                ((SpoolBuffer) part).release();
+            }
+            else {
+                IoUtil.close(((FileRegion) part).channel);
+            }
+        }
+        body.clear();
+    }
+
+    static byte[] latin1(String s) {
+        try {
+            return s.getBytes("ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String reasonPhrase(int code) {
+        switch (code) {
+        case 100: return "Continue";
+        case 200: return "OK";
+        case 204: return "No Content";
+        case 206: return "Partial Content";
+        case 301: return "Moved Permanently";
+        case 302: return "Found";
+        case 304: return "Not Modified";
+        case 400: return "Bad Request";
+        case 403: return "Forbidden";
+        case 404: return "Not Found";
+        case 405: return "Method Not Allowed";
+        case 411: return "Length Required";
+        case 413: return "Request Entity Too Large";
+        case 416: return "Requested Range Not Satisfiable";
+        case 429: return "Too Many Requests";
+        case 431: return "Request Header Fields Too Large";
+        case 500: return "Internal Server Error";
+        case 503: return "Service Unavailable";
+        default: return "Unknown";
+        }
+    }
+
+    /** A section of an open file, written with FileChannel.transferTo. */
+    static class FileRegion {
+        final FileChannel channel;
+        long position;
+        final long count;
+        long remaining;
+
+        FileRegion(FileChannel channel, long position, long count) {
+            this.channel = channel;
+            this.position = position;
+            this.count = count;
+            this.remaining = count;
+        }
+    }
+
+}
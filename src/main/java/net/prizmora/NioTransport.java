@@ -0,0 +1,588 @@
+package net.prizmora;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Transport with a single selector thread that does all socket I/O.
+ * Requests are read completely (bodies past spoolThreshold go to a file)
+ * before they're handed to a worker, and responses are buffered the same
+ * way and written by the selector thread, so workers, and the database
+ * connections they hold, never wait on slow clients. Idle keep-alive
+ * connections cost only a small buffer.
+ *
+ * Only Content-Length request bodies are supported; chunked requests are
+ * answered with 411.
+ */
+public class NioTransport implements HttpTransport {
+
+    private static final Logger log = LogManager.getLogger(NioTransport.class);
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final long SELECT_TIMEOUT = 1000;
+    private static final byte[] CRLFCRLF = { '\r', '\n', '\r', '\n' };
+
+    // connection states
+    private static final int READING_HEAD = 0;
+    private static final int READING_BODY = 1;
+    private static final int PROCESSING = 2;
+    private static final int WRITING = 3;
+
+    private volatile PrizmoraConfig config;
+    private final Queue<Conn> completed = new ConcurrentLinkedQueue<Conn>();
+    private final DateFormat httpDate;
+    private String date;
+    private long dateSecond;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private ThreadPoolExecutor workers;
+    // runs disconnect callbacks, which may block on the database, off the
+    // event loop; there are never more than requests in progress
+    private ExecutorService cancellers;
+    private Thread loop;
+    private volatile boolean running;
+    private HttpHandler handler;
+
+    public NioTransport(PrizmoraConfig config) {
+        this.config = config;
+        this.httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        this.httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    public void start(HttpHandler handler) throws IOException {
+        this.handler = handler;
+        final AtomicInteger threadCount = new AtomicInteger();
+        // each request needs a connection, so more workers than connections
+        // would only wait in the pool
+        workers = new ThreadPoolExecutor(config.dbMaxConnections(), config.dbMaxConnections(),
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(config.requestQueueSize()),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "prizmora-worker-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        final AtomicInteger cancellerCount = new AtomicInteger();
+        cancellers = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "prizmora-cancel-" + cancellerCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(config.listenPort()), 1024);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        running = true;
+        loop = new Thread(new Runnable() {
+            public void run() {
+                eventLoop();
+            }
+        }, "prizmora-nio");
+        loop.start();
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        try {
+            if (loop != null) {
+                loop.join(SELECT_TIMEOUT * 2);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+        if (cancellers != null) {
+            cancellers.shutdown();
+        }
+    }
+
+    /**
+     * Takes new settings for requests from here on, and resizes the worker
+     * pool to the new dbMaxConnections. requestQueueSize and listenPort
+     * can't change.
+     */
+    public void reconfigure(PrizmoraConfig config) {
+        int workerCount = config.dbMaxConnections();
+        if (workers != null && workerCount != workers.getMaximumPoolSize()) {
+            // the core size may never exceed the maximum
+            if (workerCount > workers.getMaximumPoolSize()) {
+                workers.setMaximumPoolSize(workerCount);
+                workers.setCorePoolSize(workerCount);
+            }
+            else {
+                workers.setCorePoolSize(workerCount);
+                workers.setMaximumPoolSize(workerCount);
+            }
+            log.info("Worker pool resized to {}", workerCount);
+        }
+        this.config = config;
+    }
+
+    private void eventLoop() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(SELECT_TIMEOUT);
+                long now = System.currentTimeMillis();
+                updateDate(now);
+
+                Conn done;
+                while ((done = completed.poll()) != null) {
+                    respond(done);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(now);
+                        continue;
+                    }
+                    Conn conn = (Conn) key.attachment();
+                    try {
+                        if (key.isWritable()) {
+                            write(conn, now);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(conn, now);
+                        }
+                    }
+                    catch (IOException e) {
+                        log.debug("connection error: {}", e.toString());
+                        close(conn);
+                    }
+                }
+
+                if (now - lastSweep >= SELECT_TIMEOUT) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            }
+        }
+        catch (IOException e) {
+            log.error("event loop failed: {}", e.toString());
+        }
+        finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Conn) {
+                    close((Conn) key.attachment());
+                }
+            }
+            IoUtil.close(server);
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                log.warn("close error: {}", e.toString());
+            }
+        }
+    }
+
+    private void updateDate(long now) {
+        if (date == null || now / 1000 != dateSecond) {
+            dateSecond = now / 1000;
+            date = httpDate.format(new Date(now));
+        }
+    }
+
+    private void accept(long now) throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Conn conn = new Conn(channel, now);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        }
+    }
+
+    private void closeIdle(long now) {
+        long timeout = config.keepAliveTimeout() * 1000L;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Conn) {
+                Conn conn = (Conn) key.attachment();
+                if (conn.state != PROCESSING && now - conn.lastActive > timeout) {
+                    log.trace("closing idle connection");
+                    close(conn);
+                }
+            }
+        }
+    }
+
+    private void read(Conn conn, long now) throws IOException {
+        if (!conn.in.hasRemaining()) {
+            if (conn.state == READING_HEAD && conn.in.capacity() < MAX_HEAD_SIZE) {
+                conn.grow(MAX_HEAD_SIZE);
+            }
+            else {
+                // pipelined data while busy; wait until we're done
+                conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+        }
+        int n = conn.channel.read(conn.in);
+        if (n < 0) {
+            if (conn.state == PROCESSING) {
+                // the client gave up (or half-closed, which we treat the
+                // same), so stop the work done on its behalf
+                log.debug("client disconnected during {}", conn.request);
+                conn.peerClosed = true;
+                conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+                conn.request.disconnected(cancellers);
+            }
+            else if (conn.state == WRITING) {
+                conn.peerClosed = true;
+                conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            else {
+                close(conn);
+            }
+            return;
+        }
+        if (n > 0) {
+            conn.lastActive = now;
+            process(conn);
+        }
+    }
+
+    /**
+     * Consumes whatever complete request data is in the read buffer.
+     */
+    private void process(Conn conn) throws IOException {
+        if (conn.state == READING_HEAD) {
+            int end = indexOf(conn.in, CRLFCRLF);
+            if (end < 0) {
+                if (conn.in.position() >= MAX_HEAD_SIZE) {
+                    sendError(conn, 431, "Request header too large");
+                }
+                return;
+            }
+            String head = new String(conn.in.array(), 0, end, "ISO-8859-1");
+            conn.consume(end + CRLFCRLF.length);
+            if (!startRequest(conn, head)) {
+                return;
+            }
+        }
+        if (conn.state == READING_BODY) {
+            ByteBuffer in = conn.in;
+            int n = (int) Math.min(conn.remaining, in.position());
+            if (n > 0) {
+                conn.body.write(in.array(), 0, n);
+                conn.consume(n);
+                conn.remaining -= n;
+            }
+            if (conn.remaining == 0) {
+                conn.request.setBody(conn.body);
+                conn.body = null;
+                dispatch(conn);
+            }
+        }
+    }
+
+    private boolean startRequest(Conn conn, String head) throws IOException {
+        // tolerate blank lines between requests
+        while (head.startsWith("\r\n")) {
+            head = head.substring(2);
+        }
+        InetSocketAddress client = (InetSocketAddress) conn.channel.socket().getRemoteSocketAddress();
+        NioRequest request = NioRequest.parse(head, client, config);
+        if (request == null) {
+            sendError(conn, 400, "Bad request");
+            return false;
+        }
+        conn.request = request;
+        conn.keepAlive = request.isKeepAlive();
+
+        if (request.getValue("Transfer-Encoding") != null) {
+            sendError(conn, 411, "Chunked request bodies are not supported");
+            return false;
+        }
+        long length = request.getContentLength();
+        if (length < 0 && request.getValue("Content-Length") != null) {
+            sendError(conn, 400, "Bad Content-Length");
+            return false;
+        }
+        if (config.maxBodySize() > 0 && length > config.maxBodySize()) {
+            sendError(conn, 413, "Request body exceeds " + config.maxBodySize() + " bytes");
+            return false;
+        }
+        if (length <= 0) {
+            dispatch(conn);
+            return false;
+        }
+
+        conn.state = READING_BODY;
+        conn.remaining = length;
+        conn.body = new SpoolBuffer(config.spoolThreshold(), config.spoolDirectory());
+        if ("100-continue".equalsIgnoreCase(request.getValue("Expect")) && conn.in.position() == 0) {
+            queue(conn, ByteBuffer.wrap(NioResponse.latin1("HTTP/1.1 100 Continue\r\n\r\n")));
+        }
+        return true;
+    }
+
+    private void dispatch(final Conn conn) {
+        conn.state = PROCESSING;
+        final NioRequest request = conn.request;
+        final NioResponse response = new NioResponse(config, new Runnable() {
+            public void run() {
+                completed.add(conn);
+                selector.wakeup();
+            }
+        });
+        conn.response = response;
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        handler.handle(request, response);
+                    }
+                    catch (Throwable t) {
+                        log.error("handler failed: {}", t.toString());
+                    }
+                    finally {
+                        response.close();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            log.warn("request queue full, rejecting {}", request);
+            conn.response = null;
+            sendError(conn, 503, "Server busy");
+        }
+    }
+
+    /**
+     * Starts writing the response a worker has finished.
+     */
+    private void respond(Conn conn) {
+        NioResponse response = conn.response;
+        if (!conn.channel.isOpen()) {
+            conn.release();
+            return;
+        }
+        if (response.isAborted()) {
+            // nothing of it has been sent, so closing tells the client
+            conn.state = WRITING;
+            close(conn);
+            return;
+        }
+        boolean head = "HEAD".equalsIgnoreCase(conn.request.getMethod());
+        conn.keepAlive = conn.keepAlive && !conn.peerClosed && !response.isCloseRequested() && running;
+        conn.state = WRITING;
+        conn.output.addAll(response.output(head, conn.keepAlive, date));
+        try {
+            write(conn, System.currentTimeMillis());
+        }
+        catch (IOException e) {
+            log.debug("write error: {}", e.toString());
+            close(conn);
+        }
+    }
+
+    /**
+     * Answers a request with a short plain text error and closes the
+     * connection once it's sent.
+     */
+    private void sendError(Conn conn, int code, String message) {
+        byte[] body = NioResponse.latin1(message);
+        String head = "HTTP/1.1 " + code + " " + NioResponse.reasonPhrase(code) + "\r\n"
+            + "Date: " + date + "\r\n"
+            + "Server: " + Prizmora.NAME + "/" + Prizmora.VERSION + "\r\n"
+            + (code == 503 ? "Retry-After: " + config.retryAfter() + "\r\n" : "")
+            + "Content-Type: text/plain\r\n"
+            + "Content-Length: " + body.length + "\r\n"
+            + "Connection: close\r\n\r\n";
+        conn.state = WRITING;
+        conn.keepAlive = false;
+        conn.output.add(ByteBuffer.wrap(NioResponse.latin1(head)));
+        conn.output.add(ByteBuffer.wrap(body));
+        try {
+            write(conn, System.currentTimeMillis());
+        }
+        catch (IOException e) {
+            close(conn);
+        }
+    }
+
+    private void queue(Conn conn, ByteBuffer buf) throws IOException {
+        conn.output.add(buf);
+        write(conn, System.currentTimeMillis());
+    }
+
+    private void write(Conn conn, long now) throws IOException {
+        SocketChannel channel = conn.channel;
+        while (!conn.output.isEmpty()) {
+            Object next = conn.output.peek();
+            if (next instanceof ByteBuffer) {
+                ByteBuffer buf = (ByteBuffer) next;
+                if (channel.write(buf) > 0) {
+                    conn.lastActive = now;
+                }
+                if (buf.hasRemaining()) {
+                    break;
+                }
+            }
+            else {
+                NioResponse.FileRegion region = (NioResponse.FileRegion) next;
+                long n = region.channel.transferTo(region.position, region.remaining, channel);
+                if (n > 0) {
+                    region.position += n;
+                    region.remaining -= n;
+                    conn.lastActive = now;
+                }
+                if (region.remaining > 0) {
+                    break;
+                }
+            }
+            conn.output.poll();
+        }
+
+        if (!conn.output.isEmpty()) {
+            conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+            return;
+        }
+        conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (conn.state == WRITING) {
+            finished(conn);
+        }
+    }
+
+    /**
+     * Called once a response has been written. Either waits for the next
+     * request on the connection or closes it.
+     */
+    private void finished(Conn conn) throws IOException {
+        if (!conn.keepAlive) {
+            close(conn);
+            return;
+        }
+        conn.release();
+        conn.request = null;
+        conn.response = null;
+        conn.state = READING_HEAD;
+        conn.key.interestOps(SelectionKey.OP_READ);
+        // a pipelined request may already be buffered
+        process(conn);
+    }
+
+    private void close(Conn conn) {
+        conn.key.cancel();
+        IoUtil.close(conn.channel);
+        // a worker still owns the response; it's released in respond()
+        if (conn.state != PROCESSING) {
+            conn.release();
+        }
+        else {
+            conn.request.disconnected(cancellers);
+        }
+    }
+
+    private static int indexOf(ByteBuffer buf, byte[] pattern) {
+        byte[] array = buf.array();
+        int limit = buf.position() - pattern.length;
+        outer:
+        for (int i = 0; i <= limit; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (array[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static class Conn {
+        final SocketChannel channel;
+        SelectionKey key;
+        // kept in write mode: data is in [0, position)
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final LinkedList<Object> output = new LinkedList<Object>();
+        int state = READING_HEAD;
+        long lastActive;
+        boolean keepAlive;
+        volatile boolean peerClosed;
+
+        NioRequest request;
+        NioResponse response;
+        SpoolBuffer body;
+        long remaining;
+
+        Conn(SocketChannel channel, long now) {
+            this.channel = channel;
+            this.lastActive = now;
+        }
+
+        void grow(int max) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(max, in.capacity() * 2));
+            in.flip();
+            grown.put(in);
+            in = grown;
+        }
+
+        void consume(int n) {
+            in.flip();
+            in.position(n);
+            in.compact();
+        }
+
+        void release() {
+            output.clear();
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+            if (request != null) {
+                request.release();
+            }
+            if (response != null) {
+                response.release();
+            }
+        }
+    }
+
+}
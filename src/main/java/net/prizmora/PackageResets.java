@@ -0,0 +1,129 @@
+package net.prizmora;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Resets package state before each procedure call, so one request can't
+ * see globals left behind by another. The policy comes from the first
+ * packageResetRules entry matching the procedure name, or packageReset if
+ * none does:
+ *
+ * <ul>
+ * <li>full: dbms_session.reset_package, which frees all package memory.
+ *     Every package the next call touches is initialized from scratch.</li>
+ * <li>reinitialize: dbms_session.modify_package_state(reinitialize), which
+ *     reruns package initialization but keeps the memory, and is usually
+ *     much cheaper.</li>
+ * <li>none: nothing. Only for procedures that neither read nor leave
+ *     behind package state.</li>
+ * </ul>
+ *
+ * The number of resets and the time spent in them are counted per policy
+ * in the package_resets_total and package_reset_microseconds_total
+ * metrics.
+ */
+public class PackageResets {
+
+    public static final String FULL = "full";
+    public static final String REINITIALIZE = "reinitialize";
+    public static final String NONE = "none";
+
+    private static final String FULL_SQL = "BEGIN dbms_session.reset_package; END;";
+    private static final String REINITIALIZE_SQL =
+        "BEGIN dbms_session.modify_package_state(dbms_session.reinitialize); END;";
+
+    private static final Metrics.Counter fullCount = Metrics.counter("package_resets_total", "policy", FULL);
+    private static final Metrics.Counter fullTime =
+        Metrics.counter("package_reset_microseconds_total", "policy", FULL);
+    private static final Metrics.Counter reinitializeCount =
+        Metrics.counter("package_resets_total", "policy", REINITIALIZE);
+    private static final Metrics.Counter reinitializeTime =
+        Metrics.counter("package_reset_microseconds_total", "policy", REINITIALIZE);
+    private static final Metrics.Counter noneCount = Metrics.counter("package_resets_total", "policy", NONE);
+
+    private final String defaultPolicy;
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final List<String> policies = new ArrayList<String>();
+
+    public PackageResets(PrizmoraConfig config) throws PrizmoraConfigException {
+        this.defaultPolicy = checkPolicy(config.packageReset(), "packageReset");
+        for (String rule : config.packageResetRules().split(",")) {
+            rule = rule.trim();
+            if (rule.length() == 0) {
+                continue;
+            }
+            int eq = rule.lastIndexOf('=');
+            if (eq <= 0) {
+                throw new PrizmoraConfigException("packageResetRules entry must be procedure=policy: " + rule);
+            }
+            patterns.add(Pattern.compile(ProcedureFilter.globToRegex(rule.substring(0, eq).trim()),
+                                         Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+            policies.add(checkPolicy(rule.substring(eq + 1).trim(), "packageResetRules"));
+        }
+    }
+
+    private static String checkPolicy(String policy, String setting) throws PrizmoraConfigException {
+        // return the constants so policies can be compared with ==
+        if (policy.equals(FULL)) {
+            return FULL;
+        }
+        if (policy.equals(REINITIALIZE)) {
+            return REINITIALIZE;
+        }
+        if (policy.equals(NONE)) {
+            return NONE;
+        }
+        throw new PrizmoraConfigException(setting + " policy must be full, reinitialize or none, not " + policy);
+    }
+
+    /**
+     * Returns the policy that applies to calls to procName.
+     */
+    public String policyFor(String procName) {
+        if (procName != null) {
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patterns.get(i).matcher(procName).matches()) {
+                    return policies.get(i);
+                }
+            }
+        }
+        return defaultPolicy;
+    }
+
+    /**
+     * Resets the package state of conn as the policy for procName says.
+     */
+    public void reset(String procName, Connection conn, CallContext ctx) throws SQLException {
+        String policy = policyFor(procName);
+        if (policy == NONE) {
+            noneCount.increment();
+            return;
+        }
+
+        boolean full = policy == FULL;
+        long start = System.nanoTime();
+        CallableStatement cs = null;
+        try {
+            cs = ctx.prepareCall(conn, full ? FULL_SQL : REINITIALIZE_SQL);
+            cs.execute();
+        } finally {
+            ctx.close(cs);
+        }
+
+        long micros = (System.nanoTime() - start) / 1000;
+        if (full) {
+            fullCount.increment();
+            fullTime.add(micros);
+        }
+        else {
+            reinitializeCount.increment();
+            reinitializeTime.add(micros);
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+package net.prizmora;
+
+import java.io.Reader;
+import java.sql.Blob;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The result of a procedure call: the page it generated through htp, and
+ * the document to send in place of the page body if the procedure called
+ * wpg_docload.download_file. The document can only be read while the
+ * connection that produced it is still checked out.
+ */
+public class Page {
+
+    private static final Logger log = LogManager.getLogger(Page.class);
+
+    private final Reader reader;
+    private Blob document;
+    private final String documentType;
+
+    public Page(Reader reader) {
+        this(reader, null, null);
+    }
+
+    public Page(Reader reader, Blob document, String documentType) {
+        this.reader = reader;
+        this.document = document;
+        this.documentType = documentType;
+    }
+
+    public Reader reader() { return reader; }
+    public Blob document() { return document; }
+    public boolean isDownload() { return document != null; }
+
+    /** Returns the MIME type from the document table, or null if unknown. */
+    public String documentType() { return documentType; }
+
+    /** Releases the document's LOB locator. Call before releasing the connection. */
+    public void freeDocument() {
+        if (document != null) {
+            try {
+                document.free();
+            }
+            catch (Throwable t) {
+                log.warn("Blob.free error: {}", t.toString());
+            }
+            document = null;
+        }
+    }
+
+    public void close() {
+        IoUtil.close(reader);
+    }
+
+}
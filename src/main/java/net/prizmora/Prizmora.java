@@ -1,56 +1,182 @@
 package net.prizmora;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Reader;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.simpleframework.http.Request;
-import org.simpleframework.http.Response;
-import org.simpleframework.http.core.Container;
-import org.simpleframework.http.core.ContainerServer;
-import org.simpleframework.transport.connect.Connection;
-import org.simpleframework.transport.connect.SocketConnection;
 
-public class Prizmora implements Container {
+public class Prizmora implements HttpHandler {
 
     public static final String NAME = "Prizmora";
     public static final String VERSION = "0.1";
 
     private static final Logger log = LogManager.getLogger(Prizmora.class);
 
-    private final PrizmoraConfig config;
+    // a multiple of the usual Oracle LOB chunk size
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    private static final Metrics.Counter responseBytes = Metrics.counter("http_response_bytes_total");
+
+    private volatile PrizmoraConfig config;
     private final PrizmoraConnectionPool pool;
     private final ProcedureCache procCache;
+    private final StaticFiles staticFiles;
+    private final ConcurrencyLimiter limiter;
+    private volatile ClientRateLimiter rateLimiter;
+    // null unless responseCacheFile is set
+    private final ResponseCache responseCache;
+    private final RequestCoalescer coalescer;
+    // null unless accessLogFile is set
+    private final AccessLog accessLog;
     private final String dadPath;
+    // contents of errorPage, read when the configuration is loaded so that
+    // errors don't add disk reads while the database is in trouble
+    private volatile byte[] errorPage;
 
     public Prizmora(PrizmoraConfig config) throws Exception {
         this.config = config;
+        this.errorPage = readErrorPage(config);
         this.pool = new PrizmoraConnectionPool(config);
         this.procCache = new ProcedureCache(config);
+        this.staticFiles = new StaticFiles(config);
+        this.limiter = new ConcurrencyLimiter(config.concurrencyMinLimit(), config.dbMaxConnections(),
+                                              config.concurrencyTargetLatency());
+        this.rateLimiter = new ClientRateLimiter(config);
+        this.responseCache = config.responseCacheFile().length() > 0
+            ? new ResponseCache(new File(config.responseCacheFile()), config.responseCacheSize(),
+                                config.responseCacheSlotSize())
+            : null;
+        this.coalescer = new RequestCoalescer(config);
+        this.accessLog = config.accessLogFile().length() > 0
+            ? new AccessLog(new File(config.accessLogFile()), config.accessLogBufferSize(),
+                            config.accessLogMaxSize(), config.accessLogMaxFiles())
+            : null;
         this.dadPath = "/ce/" + config.dad() + "/";
     }
 
+    /**
+     * Switches to the settings of a reloaded configuration. Everything that
+     * can reject them is checked first, and the procedure cache (the last
+     * of those) only applies them once it has accepted them, so if they're
+     * rejected nothing is changed.
+     */
+    public void reconfigure(PrizmoraConfig config) throws PrizmoraConfigException {
+        byte[] errorPage = readErrorPage(config);
+        ClientRateLimiter rateLimiter = this.rateLimiter.reconfigure(config);
+        RequestCoalescer.Rules coalesceRules = new RequestCoalescer.Rules(config);
+        procCache.reconfigure(config);
+        coalescer.reconfigure(coalesceRules);
+        pool.reconfigure(config);
+        limiter.resize(config.concurrencyMinLimit(), config.dbMaxConnections(),
+                       config.concurrencyTargetLatency());
+        this.errorPage = errorPage;
+        this.rateLimiter = rateLimiter;
+        this.config = config;
+    }
+
+    private static byte[] readErrorPage(PrizmoraConfig config) throws PrizmoraConfigException {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(config.errorPage());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+        catch (IOException e) {
+            throw new PrizmoraConfigException("errorPage " + config.errorPage() + " can't be read: " + e.getMessage());
+        }
+        finally {
+            IoUtil.close(in);
+        }
+    }
+
     @Override
-    public void handle(Request req, Response resp) {
+    public void handle(HttpRequest req, HttpResponse resp) {
+        long start = System.nanoTime();
+        AccessLog.Times times = new AccessLog.Times();
+        boolean aborted = false;
         try {
-            if (req.getPath().getDirectory().equals(dadPath)) {
+            if (config.metricsPath().length() > 0 && req.getPath().equals(config.metricsPath())) {
+                sendMetrics(resp);
+            }
+            else if (staticFiles.handles(req.getPath())) {
+                log.debug("Serving static file: {}", req);
+                staticFiles.serve(req, resp);
+            }
+            else if (req.getDirectory().equals(dadPath)) {
                 log.debug("Handling request: {}", req);
-                doHandle(req, resp);
+                times.procedure = req.getName();
+                doHandle(req, resp, times);
             }
             else {
                 log.debug("Ignoring request: {}", req);
                 sendNotFound(req, resp);
             }
         }
+        catch (ProcedureNotFoundException e) {
+            log.debug("handle: {}", e.getMessage());
+            sendNotFound(req, resp);
+        }
+        catch (ProcedureNotAllowedException e) {
+            log.debug("handle: {}", e.getMessage());
+            sendForbidden(req, resp);
+        }
+        catch (DocumentNotFoundException e) {
+            log.debug("handle: {}", e.getMessage());
+            sendStatus(resp, 404, "Not Found", e.getMessage());
+        }
+        catch (RequestCancelledException e) {
+            // nobody is listening for a response
+            log.info("handle: {}: {}", req, e.getMessage());
+        }
+        catch (DeadlineExceededException e) {
+            log.warn("handle: {}: {}", req, e.getMessage());
+            sendStatus(resp, 504, "Gateway Timeout", e.getMessage());
+        }
+        catch (RequestTooLargeException e) {
+            log.debug("handle: {}", e.getMessage());
+            sendStatus(resp, 413, "Request Entity Too Large", e.getMessage());
+        }
+        catch (BadRequestException e) {
+            log.debug("handle: {}", e.getMessage());
+            sendStatus(resp, 400, "Bad Request", e.getMessage());
+        }
+        catch (CircuitOpenException e) {
+            log.debug("handle: {}: {}", req, e.getMessage());
+            resp.set("Retry-After", String.valueOf(e.retryAfterSeconds()));
+            sendErrorPage(resp, 503, "Service Unavailable");
+        }
+        catch (ResponseAbortedException e) {
+            log.error("handle: {}: {}", req, e.getMessage());
+            aborted = true;
+        }
         catch (Exception e) {
             log.error("handle error: {}", e.toString());
             if (config.showErrors()) {
@@ -61,49 +187,90 @@ public class Prizmora implements Container {
             }
         }
         finally {
+            countRequest(resp, start, times);
+            if (accessLog != null) {
+                accessLog.log(req, resp, start, times);
+            }
             try {
-                resp.close();
+                if (aborted) {
+                    resp.abort();
+                }
+                else {
+                    resp.close();
+                }
             } catch (Exception e) {
                 log.error("error closing response: {}", e.toString());
             }
         }
     }
 
-    private void sendNotFound(Request req, Response resp) {
+    /*
+     * Counts the request and its latency by procedure and status. Only
+     * procedures known to exist get their own label, named as the database
+     * resolved them, so that requests for made up names, or for one
+     * procedure spelled several ways, can't create any number of metrics.
+     */
+    private void countRequest(HttpResponse resp, long start, AccessLog.Times times) {
+        String procedure = times.resolved != null ? times.resolved : "-";
+        String status = String.valueOf(resp.getCode());
+        Metrics.counter("http_requests_total", "procedure", procedure, "status", status).increment();
+        Metrics.histogram("http_request_duration_seconds", "procedure", procedure, "status", status)
+            .observe(System.nanoTime() - start);
+        responseBytes.add(resp.getBodyLength());
+    }
+
+    private void sendMetrics(HttpResponse resp) throws IOException {
+        byte[] body = Metrics.prometheus().getBytes("UTF-8");
+        resp.setCode(200);
+        resp.set("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+        resp.setContentLength(body.length);
+        OutputStream out = resp.getOutputStream();
+        out.write(body);
+        out.close();
+    }
+
+    private void sendNotFound(HttpRequest req, HttpResponse resp) {
+        sendStatus(resp, 404, "Not Found", "Not Found: " + req.getDirectory());
+    }
+
+    private void sendForbidden(HttpRequest req, HttpResponse resp) {
+        sendStatus(resp, 403, "Forbidden", "Forbidden: " + req.getName());
+    }
+
+    private void sendStatus(HttpResponse resp, int code, String text, String message) {
         try {
-            resp.setCode(404);
-            resp.setText("Not Found");
+            resp.setCode(code);
+            resp.setText(text);
             PrintStream out = resp.getPrintStream();
-            out.print("Not Found: " + req.getPath().getDirectory());
+            out.print(message);
         }
         catch (Exception e) {
-            log.error("error sending not found response: {}", e.toString());
+            log.error("error sending {} response: {}", code, e.toString());
         }
     }
 
-    private void sendErrorPage(Request req, Response resp) {
-        FileInputStream inputStream = null;
-        try {
-            inputStream = new FileInputStream(config.errorPage());
-            FileChannel fileChannel = inputStream.getChannel();
+    private void sendErrorPage(HttpRequest req, HttpResponse resp) {
+        sendErrorPage(resp, 500, "Internal Server Error");
+    }
 
-            resp.setCode(500);
-            resp.setText("Internal Server Error");
-            resp.setContentLength((int) fileChannel.size());
+    private void sendErrorPage(HttpResponse resp, int code, String text) {
+        try {
+            byte[] body = errorPage;
+            resp.setCode(code);
+            resp.setText(text);
+            resp.setContentLength(body.length);
             resp.set("Content-Type", "text/html");
 
-            WritableByteChannel respChannel = resp.getByteChannel();
-            fileChannel.transferTo(0, fileChannel.size(), respChannel);
+            OutputStream out = resp.getOutputStream();
+            out.write(body);
+            out.close();
         }
         catch (Exception e) {
             log.error("error sending error page: {}", e.toString());
         }
-        finally {
-            IoUtil.close(inputStream);
-        }
     }
 
-    private void showError(Response resp, Exception e) {
+    private void showError(HttpResponse resp, Exception e) {
         try {
             resp.setCode(500);
             PrintStream out = resp.getPrintStream();
@@ -116,85 +283,425 @@ public class Prizmora implements Container {
         }
     }
 
-    private void doHandle(Request req, Response resp) throws Exception {
-        Reader pageReader = null;
+    private void doHandle(HttpRequest req, HttpResponse resp, AccessLog.Times times) throws Exception {
+        Page page = null;
+
+        ClientRateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter.isEnabled()) {
+            int wait = rateLimiter.acquire(req);
+            if (wait > 0) {
+                log.debug("Rate limit reached, rejecting: {}", req);
+                resp.set("Retry-After", String.valueOf(wait));
+                sendStatus(resp, 429, "Too Many Requests", "Too Many Requests");
+                return;
+            }
+        }
+
+        if (config.maxBodySize() > 0 && req.getContentLength() > config.maxBodySize()) {
+            log.debug("Request body too large: {}", req);
+            sendStatus(resp, 413, "Request Entity Too Large",
+                       "Request body exceeds " + config.maxBodySize() + " bytes");
+            return;
+        }
+
+        if (config.batchMaxCalls() > 0 && BatchCall.BATCH_NAME.equals(req.getName())) {
+            times.resolved = BatchCall.BATCH_NAME;
+            doBatch(req, resp, times);
+            return;
+        }
+
+        if (!procCache.isAllowed(req)) {
+            log.debug("Procedure is not allowed: {}", req);
+            sendForbidden(req, resp);
+            return;
+        }
+
+        if (procCache.isUnknownProcedure(req)) {
+            log.debug("Procedure is known not to exist: {}", req);
+            sendNotFound(req, resp);
+            return;
+        }
+
+        String cacheKey = null;
+        if (responseCache != null && procCache.isCacheable(req)) {
+            cacheKey = req.getQueryString() == null ? req.getPath() : req.getPath() + "?" + req.getQueryString();
+            if (responseCache.serve(cacheKey, resp)) {
+                log.debug("Served from response cache: {}", req);
+                times.resolved = procCache.resolvedName(req);
+                return;
+            }
+        }
+
+        // the deadline includes time spent waiting for a coalesced request
+        final CallContext ctx = procCache.newContext(req);
+        req.onDisconnect(new Runnable() {
+            public void run() {
+                ctx.cancel();
+            }
+        });
 
+        RequestCoalescer.Flight flight = null;
+        String coalesceKey = procCache.isCursorFunction(req) ? null : coalescer.keyFor(req);
+        if (coalesceKey != null) {
+            flight = new RequestCoalescer.Flight(coalesceKey);
+            RequestCoalescer.Flight leading = coalescer.join(flight);
+            if (leading != null) {
+                flight = null;
+                if (leading.await(resp, ctx)) {
+                    log.debug("Sent page of coalesced request: {}", req);
+                    times.resolved = procCache.resolvedName(req);
+                    return;
+                }
+            }
+        }
+
+        CachingResponse caching = null;
         try {
-            java.sql.Connection conn = pool.get();
+            pool.checkCircuit();
+            if (!limiter.tryAcquire()) {
+                log.debug("Concurrency limit {} reached, rejecting: {}", limiter.limit(), req);
+                resp.set("Retry-After", String.valueOf(config.retryAfter()));
+                sendStatus(resp, 503, "Service Unavailable", "Service Unavailable");
+                return;
+            }
+
+            long start = System.nanoTime();
+            java.sql.Connection conn;
             try {
-                pageReader = procCache.call(req, conn);
+                conn = pool.get(procCache.affinity(req));
+            }
+            catch (SQLException e) {
+                limiter.release(System.nanoTime() - start, true);
+                throw e;
+            }
+            long dbStart = System.nanoTime();
+            times.poolWaitNanos = dbStart - start;
+            try {
+                try {
+                    if (procCache.isCursorFunction(req)) {
+                        streamCursor(req, resp, conn, ctx);
+                        pool.reportSuccess();
+                        return;
+                    }
+                    page = procCache.call(req, conn, ctx);
+                    pool.reportSuccess();
+                }
+                catch (Exception e) {
+                    Throwable cause = e instanceof ResponseAbortedException ? e.getCause() : e;
+                    // work we stopped ourselves says nothing about the database
+                    if (cause instanceof SQLException && !ctx.isCancelled() && !ctx.isExpired()) {
+                        pool.reportFailure(conn, (SQLException) cause);
+                    }
+                    // too late for an error response, whatever the reason
+                    if (e instanceof ResponseAbortedException) {
+                        throw e;
+                    }
+                    // a statement was cancelled or hit its query timeout,
+                    // or the call was stopped between statements
+                    if (ctx.isCancelled() && !(e instanceof RequestCancelledException)) {
+                        throw new RequestCancelledException(e);
+                    }
+                    if (ctx.isExpired() && !(e instanceof DeadlineExceededException)) {
+                        throw new DeadlineExceededException(ctx.timeoutSeconds(), e);
+                    }
+                    throw e;
+                }
+                if (page.isDownload()) {
+                    // the document is read through the connection, so
+                    // it has to be sent before the connection is released
+                    try {
+                        showDownload(page, req, resp);
+                    }
+                    finally {
+                        page.freeDocument();
+                    }
+                }
             }
             finally {
+                times.dbNanos = System.nanoTime() - dbStart;
+                times.resolved = ctx.procedure();
+                // a disconnect from now on must not cancel whatever the
+                // session runs next
+                ctx.release();
                 pool.release(conn);
+                limiter.release(System.nanoTime() - start, false);
+            }
+            if (!page.isDownload()) {
+                if (cacheKey == null && flight == null) {
+                    showPage(page.reader(), req, resp);
+                }
+                else {
+                    int limit = Math.max(cacheKey != null ? responseCache.maxBodySize() : 0,
+                                         flight != null ? coalescer.maxSize() : 0);
+                    CachingResponse kept = new CachingResponse(resp, limit);
+                    showPage(page.reader(), req, kept);
+                    // only a page sent in full may be shared
+                    caching = kept;
+                    // store refuses pages larger than a slot
+                    if (cacheKey != null && caching.isCacheable()) {
+                        responseCache.store(cacheKey, caching.ttl(config.responseCacheTtl()), caching.headers(),
+                                            caching.body(), caching.bodyLength());
+                    }
+                }
             }
-            showPage(pageReader, req, resp);
         }
         finally {
-            IoUtil.close(pageReader);
+            if (page != null) {
+                page.close();
+            }
+            if (flight != null) {
+                coalescer.finish(flight, caching);
+            }
         }
     }
 
-    private void showPage(Reader pageReader, Request req, Response res) throws Exception {
+    /**
+     * Calls a cursor function and streams its rows to the client as JSON or
+     * CSV, as the Accept header asks. The connection stays checked out until
+     * the last row has been written. The first row is fetched before the
+     * status is set, so errors up to then get the usual error responses.
+     * After that the status can't change, and an error part way through
+     * aborts the response so the client doesn't take it for a whole one.
+     */
+    private void streamCursor(final HttpRequest req, final HttpResponse resp, Connection conn, CallContext ctx)
+            throws Exception {
+        final CursorFormat format = CursorFormat.forAccept(req.getValue("Accept"));
+        procCache.callCursor(req, conn, ctx, new ProcedureCache.CursorConsumer() {
+            public void consume(ResultSet rows) throws Exception {
+                boolean more = rows.next();
+                resp.setCode(200);
+                resp.set("Content-Type", format.contentType());
+                Writer out = new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), "UTF-8"), 8192);
+                try {
+                    format.write(rows, more, out);
+                    out.close();
+                }
+                catch (Exception e) {
+                    throw new ResponseAbortedException(e);
+                }
+                finally {
+                    IoUtil.close(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the calls of a batch request one after another on a single
+     * connection, and sends their pages back as the parts of a
+     * multipart/mixed response, in order. Each call is checked and run as
+     * if it had been requested on its own, except that its timeout is cut
+     * short by the batch's deadline, and a call failing doesn't stop the
+     * rest. A failed call's changes are rolled back to a savepoint taken
+     * before it, so later calls can't commit them.
+     */
+    private void doBatch(HttpRequest req, HttpResponse resp, AccessLog.Times times) throws Exception {
+        List<BatchCall> calls = BatchCall.parse(req, config.batchMaxCalls());
+        List<BatchPart> parts = new ArrayList<BatchPart>(calls.size());
+
+        pool.checkCircuit();
+        if (!limiter.tryAcquire()) {
+            log.debug("Concurrency limit {} reached, rejecting: {}", limiter.limit(), req);
+            resp.set("Retry-After", String.valueOf(config.retryAfter()));
+            sendStatus(resp, 503, "Service Unavailable", "Service Unavailable");
+            return;
+        }
+
+        final CallContext ctx = procCache.newContext(req);
+        req.onDisconnect(new Runnable() {
+            public void run() {
+                ctx.cancel();
+            }
+        });
+        try {
+            long start = System.nanoTime();
+            Connection conn;
+            try {
+                conn = pool.get(procCache.affinity(calls.get(0)));
+            }
+            catch (SQLException e) {
+                limiter.release(System.nanoTime() - start, true);
+                throw e;
+            }
+            long dbStart = System.nanoTime();
+            times.poolWaitNanos = dbStart - start;
+            try {
+                for (BatchCall call : calls) {
+                    parts.add(batchCall(call, conn, ctx));
+                }
+            }
+            finally {
+                times.dbNanos = System.nanoTime() - dbStart;
+                ctx.release();
+                pool.release(conn);
+                limiter.release(System.nanoTime() - start, false);
+            }
+
+            String boundary = "prizmora-" + UUID.randomUUID();
+            resp.setCode(200);
+            resp.set("Content-Type", "multipart/mixed; boundary=" + boundary);
+            for (BatchPart part : parts) {
+                for (String cookie : part.cookies()) {
+                    resp.add("Set-Cookie", cookie);
+                }
+            }
+            OutputStream out = resp.getOutputStream();
+            for (BatchPart part : parts) {
+                part.write(out, boundary);
+            }
+            out.write(("--" + boundary + "--\r\n").getBytes("ISO-8859-1"));
+            out.close();
+        }
+        finally {
+            for (BatchPart part : parts) {
+                part.close();
+            }
+        }
+    }
+
+    private BatchPart batchCall(BatchCall call, Connection conn, CallContext ctx) throws Exception {
+        if (!procCache.isAllowed(call)) {
+            log.debug("Procedure is not allowed: {}", call);
+            return BatchPart.status(call, "403 Forbidden", "Forbidden: " + call.getName());
+        }
+        if (procCache.isUnknownProcedure(call)) {
+            log.debug("Procedure is known not to exist: {}", call);
+            return BatchPart.status(call, "404 Not Found", "Not Found: " + call.getName());
+        }
+        if (procCache.isCursorFunction(call)) {
+            return BatchPart.status(call, "501 Not Implemented", "Cursor functions can't be part of a batch");
+        }
+
+        procCache.limitContext(ctx, call);
+        Savepoint savepoint = conn.setSavepoint();
+        Page page;
+        try {
+            page = procCache.call(call, conn, ctx);
+            pool.reportSuccess();
+        }
+        catch (ProcedureNotFoundException e) {
+            log.debug("batch: {}", e.getMessage());
+            DbUtil.rollback(conn, savepoint);
+            return BatchPart.status(call, "404 Not Found", "Not Found: " + call.getName());
+        }
+        catch (ProcedureNotAllowedException e) {
+            log.debug("batch: {}", e.getMessage());
+            DbUtil.rollback(conn, savepoint);
+            return BatchPart.status(call, "403 Forbidden", "Forbidden: " + call.getName());
+        }
+        catch (Exception e) {
+            DbUtil.rollback(conn, savepoint);
+            if (e instanceof SQLException && !ctx.isCancelled() && !ctx.isExpired()) {
+                pool.reportFailure(conn, (SQLException) e);
+            }
+            if (ctx.isCancelled()) {
+                throw e instanceof RequestCancelledException ? e : new RequestCancelledException(e);
+            }
+            if (ctx.isExpired()) {
+                log.warn("batch: {}: deadline exceeded", call);
+                return BatchPart.status(call, "504 Gateway Timeout", "Request timed out");
+            }
+            log.error("batch error: {}: {}", call, e.toString());
+            return BatchPart.status(call, "500 Internal Server Error",
+                                    config.showErrors() ? e.getMessage() : null);
+        }
+
+        if (page.isDownload()) {
+            page.freeDocument();
+            page.close();
+            return BatchPart.status(call, "501 Not Implemented", "Downloads can't be part of a batch");
+        }
+        return BatchPart.page(call, page);
+    }
+
+    static boolean isHeaderLine(String s) {
+        return s != null && (s.startsWith("Location: ") ||
+                             s.startsWith("Set-Cookie: ") ||
+                             s.startsWith("Content-type: ") ||
+                             s.startsWith("Status: "));
+    }
+
+    /**
+     * Applies the header lines at the start of a generated page, the first
+     * of which has already been read, to the response. Stops after the
+     * blank line ending the headers. Returns false if the page was a
+     * redirect, in which case nothing more should be sent.
+     */
+    private boolean setHeaders(String s, BufferedReader in, HttpResponse res, String defaultContentType) throws Exception {
+        boolean contentType = false;
+        // Verify if the position 1..n have the Syntax "xxx : yyy"
+        // handle special case of Cookie definition or Content-type, or redirect
+        // generated by owa_cookie.send or owa_util.mime_header
+        // other header definitions are pased as is
+        do { // Process each line of header
+            //System.out.println("header: "+s);
+            if (s.startsWith("Location: ")) { // Sent redirect
+                s = s.substring(10 /* "Location: ".length */);
+                /* XXX
+                   if (!s.startsWith("/")) // Convert relative path to absolute, fix warkaround with HTMLDB
+                   s = req.getContextPath()+"/"+ConnInfo.getURI(req)+"/"+s;
+                */
+                // LXG: changed to static access
+                res.set("Location", s);
+                res.setCode(302);
+                log.trace(".showPage redirect to Location: {}", s);
+                return false;
+            } else if (s.startsWith("Set-Cookie: ")) { // Makes cookies
+                // Parse the cookie line
+                log.trace(".showPage output cookie: {}", s);
+                /* XXX
+                 * Cookie choc_chip = Make_Cookie(s.substring(12));
+                 * res.addCookie(choc_chip);
+                 */
+                res.set("Set-Cookie", s.substring(12 /* "Set-Cookie: ".length */));
+            } else if (s.startsWith("Content-type: ")) { // Set content type
+                if (log.isTraceEnabled())
+                    log.trace(".showPage setting Content-type: {}", s.substring(14 /* "Content-type: ".length */).trim());
+                String type = s.substring(14 /* "Content-Type: ".length */).trim();
+                // pages are sent as UTF-8, but downloads are sent as stored
+                MediaType mediaType = MediaType.parse(type);
+                if (mediaType != null && mediaType.isText() && mediaType.getCharset() == null) {
+                    type += "; charset=UTF-8";
+                }
+                res.set("Content-Type", type);
+                contentType = true;
+            } else {
+                // if not Cookie definition translate as is
+                try {
+                    // if it isn't a cookie it's another header info
+                    log.trace(".showPage setting other header: {}", s);
+                    res.set(s.substring(0, s.indexOf(':')), s.substring(s.indexOf(':') + 2));
+                } catch (Exception e) {
+                    log.error(".showPage failed to parse the header '{}': {}", s, e);
+                }
+            } // End if cookie
+        } while ((s = in.readLine()) != null && s.length() > 0); // End while header lines
+        if (!contentType)
+            res.set("Content-Type", defaultContentType);
+        return true;
+    }
+
+    void showPage(Reader pageReader, HttpRequest req, HttpResponse res) throws Exception {
         res.setCode(200);
         Charset charset = Charset.forName("UTF-8");
-        WritableByteChannel out = res.getByteChannel();
         char[] buff_out = new char[8192];
 
         BufferedReader in = new BufferedReader(pageReader, 8192);
-        boolean contentType = false;
         int i;
         String s = in.readLine();
-        if (s != null && (s.startsWith("Location: ") ||
-                          s.startsWith("Set-Cookie: ") ||
-                          s.startsWith("Content-type: ") ||
-                          s.startsWith("Status: "))) {
-            // Verify if the position 1..n have the Syntax "xxx : yyy"
-            // handle special case of Cookie definition or Content-type, or redirect
-            // generated by owa_cookie.send or owa_util.mime_header
-            // other header definitions are pased as is
-            do { // Process each line of header
-                //System.out.println("header: "+s);
-                if (s.startsWith("Location: ")) { // Sent redirect
-                    s = s.substring(10 /* "Location: ".length */);
-                    /* XXX
-                       if (!s.startsWith("/")) // Convert relative path to absolute, fix warkaround with HTMLDB
-                       s = req.getContextPath()+"/"+ConnInfo.getURI(req)+"/"+s;
-                    */
-                    // LXG: changed to static access
-                    res.set("Location", s);
-                    res.setCode(302);
-                    log.trace(".showPage redirect to Location: {}", s);
-                    return;
-                } else if (s.startsWith("Set-Cookie: ")) { // Makes cookies
-                    // Parse the cookie line
-                    log.trace(".showPage output cookie: {}", s);
-                    /* XXX
-                     * Cookie choc_chip = Make_Cookie(s.substring(12));
-                     * res.addCookie(choc_chip);
-                     */
-                    res.set("Set-Cookie", s.substring(12 /* "Set-Cookie: ".length */));
-                } else if (s.startsWith("Content-type: ")) { // Set content type
-                    if (log.isTraceEnabled())
-                        log.trace(".showPage setting Content-type: {}", s.substring(14 /* "Content-type: ".length */).trim());
-                    res.set("Content-Type", s.substring(14 /* "Content-Type: ".length */).trim() + "; charset=UTF-8");
-                    contentType = true;
-                } else {
-                    // if not Cookie definition translate as is
-                    try {
-                        // if it isn't a cookie it's another header info
-                        log.trace(".showPage setting other header: {}", s);
-                        res.set(s.substring(0, s.indexOf(':')), s.substring(s.indexOf(':') + 2));
-                    } catch (Exception e) {
-                        log.error(".showPage failed to parse the header '{}': {}", s, e);
-                    }
-                } // End if cookie
-            } while ((s = in.readLine()) != null && s.length() > 0); // End while header lines
-            if (!contentType)
-                res.set("Content-Type", "text/html; charset=UTF-8");
+        if (isHeaderLine(s)) {
+            if (!setHeaders(s, in, res, "text/html; charset=UTF-8")) {
+                return;
+            }
+            s = null;
         } else {
             // if not header syntax, print it as is
             // Set default Content-type
             res.set("Content-Type", "text/html; charset=UTF-8");
+        }
+
+        WritableByteChannel out = res.getByteChannel();
+        if (s != null) {
             out.write(charset.encode(s));
         }
 
@@ -207,6 +714,69 @@ public class Prizmora implements Container {
         out.close();
     }
 
+    /**
+     * Sends a document downloaded with wpg_docload. Headers come from the
+     * generated page as usual, but the body is streamed from the BLOB.
+     * Single byte ranges are honored so interrupted downloads can resume.
+     */
+    private void showDownload(Page page, HttpRequest req, HttpResponse res) throws Exception {
+        res.setCode(200);
+        String defaultType = page.documentType() != null ? page.documentType() : "application/octet-stream";
+        BufferedReader in = new BufferedReader(page.reader(), 8192);
+        String s = in.readLine();
+        if (isHeaderLine(s)) {
+            if (!setHeaders(s, in, res, defaultType)) {
+                return;
+            }
+        } else {
+            res.set("Content-Type", defaultType);
+        }
+
+        Blob blob = page.document();
+        long length = blob.length();
+        long first = 0;
+        long count = length;
+        res.set("Accept-Ranges", "bytes");
+
+        // without a validator for the BLOB, a conditional range can't be
+        // checked, so If-Range always gets the whole document
+        ByteRange range = req.getValue("If-Range") == null
+            ? ByteRange.parse(req.getValue("Range"), length) : null;
+        if (range == ByteRange.UNSATISFIABLE) {
+            res.setCode(416);
+            res.setText("Requested Range Not Satisfiable");
+            res.set("Content-Range", range.contentRange(length));
+            res.setContentLength(0);
+            res.getByteChannel().close();
+            return;
+        }
+        if (range != null) {
+            res.setCode(206);
+            res.setText("Partial Content");
+            res.set("Content-Range", range.contentRange(length));
+            first = range.first();
+            count = range.length();
+        }
+        res.setContentLength(count);
+
+        WritableByteChannel out = res.getByteChannel();
+        InputStream blobIn = null;
+        try {
+            if (count > 0) {
+                blobIn = blob.getBinaryStream(first + 1, count);
+                byte[] buf = new byte[DOWNLOAD_BUFFER_SIZE];
+                int n;
+                while ((n = blobIn.read(buf)) > 0) {
+                    out.write(ByteBuffer.wrap(buf, 0, n));
+                }
+            }
+        }
+        finally {
+            IoUtil.close(blobIn);
+        }
+        out.close();
+    }
+
     public static void main(String[] args) throws Exception {
 
         if (args.length != 1) {
@@ -215,14 +785,19 @@ public class Prizmora implements Container {
         }
 
         PrizmoraConfig config = new PrizmoraConfig(args[0]);
+        Metrics.logEvery(config.metricsLogInterval());
 
-        Container container = new Prizmora(config);
-        ContainerServer server = new ContainerServer(container, config.threadPoolSize());
-        Connection connection = new SocketConnection(server);
-        SocketAddress address = new InetSocketAddress(config.listenPort());
-
-        connection.connect(address);
-        log.warn("Prizmora listening on {}", config.listenPort());
+        HttpTransport transport;
+        if (config.httpTransport().equals("nio")) {
+            transport = new NioTransport(config);
+        }
+        else {
+            transport = new SimpleTransport(config);
+        }
+        Prizmora prizmora = new Prizmora(config);
+        transport.start(prizmora);
+        new ConfigWatcher(args[0], config, prizmora, transport).start();
+        log.warn("Prizmora listening on {} ({} transport)", config.listenPort(), config.httpTransport());
     }
 
 }
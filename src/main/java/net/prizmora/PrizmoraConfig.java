@@ -5,6 +5,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 
@@ -21,13 +22,58 @@ public class PrizmoraConfig {
     private final File spoolDirectory;
     private final int spoolThreshold;
 
+    // request body limits
+    private final long maxBodySize;
+    private final int clobStreamThreshold;
+
+    // table that uploaded files are stored in
+    private final String documentTable;
+
     // HTTP parameters
     private final int listenPort;
     private final int threadPoolSize;
+    private final String httpTransport;
+    private final int keepAliveTimeout;
+    private final int requestQueueSize;
+    private final int concurrencyMinLimit;
+    private final long concurrencyTargetLatency;
+    private final int retryAfter;
+    private final int rateLimit;
+    private final int rateLimitBurst;
+    private final String rateLimitKey;
+    private final int rateLimitMaxClients;
+    private final String trustedProxies;
+
+    // request deadlines, see RequestTimeouts
+    private final int requestTimeout;
+    private final String requestTimeoutRules;
+    private final int maxRequestTimeout;
+    private final int batchMaxCalls;
+
+    // functions whose ref cursor results are streamed, see CursorFormat
+    private final String cursorFunctions;
+    private final int cursorFetchSize;
+    private final String responseCacheFile;
+    private final long responseCacheSize;
+    private final int responseCacheSlotSize;
+    private final String responseCacheProcedures;
+    private final int responseCacheTtl;
+    private final String coalesceProcedures;
+    private final int coalesceMaxSize;
+    private final String accessLogFile;
+    private final int accessLogBufferSize;
+    private final long accessLogMaxSize;
+    private final int accessLogMaxFiles;
     private final boolean showErrors;
     private final File errorPage;
 
+    // static file serving, see StaticFiles
+    private final String staticMounts;
+    private final int staticCheckInterval;
+    private final int staticMaxAge;
+
     // Database connection pool parameters
+    private final String dbUrl;
     private final String dbHost;
     private final String dbSid;
     private final int dbPort;
@@ -35,6 +81,8 @@ public class PrizmoraConfig {
     private final String dbPassword;
     private final boolean dbRollback;
     private final boolean dbTestOnRelease;
+    private final boolean dbSessionTags;
+    private final String dbClientIdCookie;
     private final int dbTestTimeout;
     private final int dbBusyTimeout;
     private final int dbIdleTimeout;
@@ -44,6 +92,26 @@ public class PrizmoraConfig {
     private final long dbShutdownWaitTime;
     private final String dbCharset;
     private final boolean dbCacheProcedures;
+    private final int dbNegativeCacheSize;
+    private final int dbNegativeCacheTtl;
+    private final int dbAffinitySize;
+    private final int dbCircuitFailures;
+    private final int dbCircuitBackoff;
+    private final int dbCircuitMaxBackoff;
+
+    // package state reset between calls, see PackageResets
+    private final String packageReset;
+    private final String packageResetRules;
+
+    private final int metricsLogInterval;
+    private final String metricsPath;
+
+    // interval at which the file is checked for changes, see ConfigWatcher
+    private final int configCheckInterval;
+
+    // Procedure access rules, see ProcedureFilter
+    private final String procedureAllow;
+    private final String procedureDeny;
 
     public PrizmoraConfig(String configFile) throws IOException, PrizmoraConfigException {
         Props props = new Props(configFile);
@@ -65,13 +133,50 @@ public class PrizmoraConfig {
 
         // optional properties
         this.threadPoolSize = props.getInt("threadPoolSize", 6);
+        this.httpTransport = props.getString("httpTransport", "simple");
+        this.keepAliveTimeout = props.getInt("keepAliveTimeout", 15);
+        this.requestQueueSize = props.getInt("requestQueueSize", 256);
+        this.concurrencyMinLimit = props.getInt("concurrencyMinLimit", 1);
+        this.concurrencyTargetLatency = props.getLong("concurrencyTargetLatency", 0);
+        this.retryAfter = props.getInt("retryAfter", 1);
+        this.rateLimit = props.getInt("rateLimit", 0);
+        this.rateLimitBurst = props.getInt("rateLimitBurst", 20);
+        this.rateLimitKey = props.getString("rateLimitKey", "ip");
+        this.rateLimitMaxClients = props.getInt("rateLimitMaxClients", 100000);
+        this.trustedProxies = props.getString("trustedProxies", "");
+        this.requestTimeout = props.getInt("requestTimeout", 0);
+        this.requestTimeoutRules = props.getString("requestTimeoutRules", "");
+        this.maxRequestTimeout = props.getInt("maxRequestTimeout", 0);
+        this.batchMaxCalls = props.getInt("batchMaxCalls", 20);
+        this.cursorFunctions = props.getString("cursorFunctions", "");
+        this.cursorFetchSize = props.getInt("cursorFetchSize", 500);
+        this.responseCacheFile = props.getString("responseCacheFile", "");
+        this.responseCacheSize = props.getLong("responseCacheSize", 64 * 1024 * 1024);
+        this.responseCacheSlotSize = props.getInt("responseCacheSlotSize", 64 * 1024);
+        this.responseCacheProcedures = props.getString("responseCacheProcedures", "");
+        this.responseCacheTtl = props.getInt("responseCacheTtl", 60);
+        this.coalesceProcedures = props.getString("coalesceProcedures", "");
+        this.coalesceMaxSize = props.getInt("coalesceMaxSize", 1024 * 1024);
+        this.accessLogFile = props.getString("accessLogFile", "");
+        this.accessLogBufferSize = props.getInt("accessLogBufferSize", 8192);
+        this.accessLogMaxSize = props.getLong("accessLogMaxSize", 100 * 1024 * 1024);
+        this.accessLogMaxFiles = props.getInt("accessLogMaxFiles", 5);
         this.showErrors = props.getBool("showErrors", false);
+        this.staticMounts = props.getString("staticMounts", "");
+        this.staticCheckInterval = props.getInt("staticCheckInterval", 2);
+        this.staticMaxAge = props.getInt("staticMaxAge", 0);
         this.spoolDirectory = new File(props.getString("spoolDirectory", "/opt/apps/jakarta-tomcat/spool"));
         this.spoolThreshold = props.getInt("spoolThreshold", 1 * 1024 * 1024); // 1MB default
+        this.maxBodySize = props.getLong("maxBodySize", 64 * 1024 * 1024); // 64MB default
+        this.clobStreamThreshold = props.getInt("clobStreamThreshold", 32 * 1024);
+        this.documentTable = props.getString("documentTable", "owa_public.wpg_document");
         this.dbPassword = props.getString("dbPassword", dbUsername);
+        this.dbUrl = props.getString("dbUrl", "");
         this.dbPort = props.getInt("dbPort", 1521);
         this.dbRollback = props.getBool("dbRollback", false);
         this.dbTestOnRelease = props.getBool("dbTestOnRelease", true);
+        this.dbSessionTags = props.getBool("dbSessionTags", true);
+        this.dbClientIdCookie = props.getString("dbClientIdCookie", "");
         this.dbTestTimeout = props.getInt("dbTestTimeout", 15);
         this.dbBusyTimeout = props.getInt("dbBusyTimeout", 600);
         this.dbIdleTimeout = props.getInt("dbIdleTimeout", 600);
@@ -79,11 +184,53 @@ public class PrizmoraConfig {
         this.dbShutdownWaitTime = props.getLong("dbShutdownWaitTime", 60);
         this.dbCharset = props.getString("dbCharset", "iso-8859-1");
         this.dbCacheProcedures = props.getBool("dbCacheProcedures", true);
+        this.dbNegativeCacheSize = props.getInt("dbNegativeCacheSize", 1000);
+        this.dbNegativeCacheTtl = props.getInt("dbNegativeCacheTtl", 60);
+        this.dbAffinitySize = props.getInt("dbAffinitySize", 8);
+        this.dbCircuitFailures = props.getInt("dbCircuitFailures", 5);
+        this.dbCircuitBackoff = props.getInt("dbCircuitBackoff", 1);
+        this.dbCircuitMaxBackoff = props.getInt("dbCircuitMaxBackoff", 60);
+        this.procedureAllow = props.getString("procedureAllow", "");
+        this.procedureDeny = props.getString("procedureDeny", "sys.*, owa*, dbms_*, htp.*");
+        this.packageReset = props.getString("packageReset", "full");
+        this.packageResetRules = props.getString("packageResetRules", "");
+        this.metricsLogInterval = props.getInt("metricsLogInterval", 0);
+        this.metricsPath = props.getString("metricsPath", "");
+        this.configCheckInterval = props.getInt("configCheckInterval", 5);
+
+        if (!this.httpTransport.equals("simple") && !this.httpTransport.equals("nio")) {
+            throw new PrizmoraConfigException("httpTransport must be simple or nio, not " + httpTransport);
+        }
+
+        if (!this.documentTable.matches("[A-Za-z0-9_$#.]+")) {
+            throw new PrizmoraConfigException("documentTable " + documentTable + " is not a valid table name");
+        }
 
         if (!this.spoolDirectory.exists()) {
             throw new PrizmoraConfigException("spoolDirectory " + spoolDirectory + " does not exist");
         }
 
+        if (this.dbCircuitBackoff < 1) {
+            throw new PrizmoraConfigException("dbCircuitBackoff must be at least 1, not " + dbCircuitBackoff);
+        }
+
+        if (this.dbCircuitMaxBackoff < this.dbCircuitBackoff) {
+            throw new PrizmoraConfigException("dbCircuitMaxBackoff must be at least dbCircuitBackoff ("
+                                              + dbCircuitBackoff + "), not " + dbCircuitMaxBackoff);
+        }
+
+        if (this.accessLogMaxSize <= 0) {
+            throw new PrizmoraConfigException("accessLogMaxSize must be greater than 0, not " + accessLogMaxSize);
+        }
+
+        if (this.accessLogMaxFiles < 0) {
+            throw new PrizmoraConfigException("accessLogMaxFiles must be at least 0, not " + accessLogMaxFiles);
+        }
+
+        if (this.responseCacheSlotSize < 1024) {
+            throw new PrizmoraConfigException("responseCacheSlotSize must be at least 1024, not " + responseCacheSlotSize);
+        }
+
         if (!this.errorPage.exists()) {
             throw new PrizmoraConfigException("errorPage " + errorPage + " does not exist");
         }
@@ -96,11 +243,46 @@ public class PrizmoraConfig {
 
     public int listenPort() { return listenPort; }
     public int threadPoolSize() { return threadPoolSize; }
+    public String httpTransport() { return httpTransport; }
+    public int keepAliveTimeout() { return keepAliveTimeout; }
+    public int requestQueueSize() { return requestQueueSize; }
+    public int concurrencyMinLimit() { return concurrencyMinLimit; }
+    public long concurrencyTargetLatency() { return concurrencyTargetLatency; }
+    public int retryAfter() { return retryAfter; }
+    public int rateLimit() { return rateLimit; }
+    public int rateLimitBurst() { return rateLimitBurst; }
+    public String rateLimitKey() { return rateLimitKey; }
+    public int rateLimitMaxClients() { return rateLimitMaxClients; }
+    public String trustedProxies() { return trustedProxies; }
+    public int requestTimeout() { return requestTimeout; }
+    public String requestTimeoutRules() { return requestTimeoutRules; }
+    public int maxRequestTimeout() { return maxRequestTimeout; }
+    public int batchMaxCalls() { return batchMaxCalls; }
+    public String cursorFunctions() { return cursorFunctions; }
+    public int cursorFetchSize() { return cursorFetchSize; }
+    public String responseCacheFile() { return responseCacheFile; }
+    public long responseCacheSize() { return responseCacheSize; }
+    public int responseCacheSlotSize() { return responseCacheSlotSize; }
+    public String responseCacheProcedures() { return responseCacheProcedures; }
+    public int responseCacheTtl() { return responseCacheTtl; }
+    public String coalesceProcedures() { return coalesceProcedures; }
+    public int coalesceMaxSize() { return coalesceMaxSize; }
+    public String accessLogFile() { return accessLogFile; }
+    public int accessLogBufferSize() { return accessLogBufferSize; }
+    public long accessLogMaxSize() { return accessLogMaxSize; }
+    public int accessLogMaxFiles() { return accessLogMaxFiles; }
     public boolean showErrors() { return showErrors; }
     public File errorPage() { return errorPage; }
+    public String staticMounts() { return staticMounts; }
+    public int staticCheckInterval() { return staticCheckInterval; }
+    public int staticMaxAge() { return staticMaxAge; }
     public File spoolDirectory() { return spoolDirectory; }
     public int spoolThreshold() { return spoolThreshold; }
+    public long maxBodySize() { return maxBodySize; }
+    public int clobStreamThreshold() { return clobStreamThreshold; }
+    public String documentTable() { return documentTable; }
 
+    public String dbUrl() { return dbUrl; }
     public String dbHost() { return dbHost; }
     public String dbSid() { return dbSid; }
     public int dbPort() { return dbPort; }
@@ -108,6 +290,8 @@ public class PrizmoraConfig {
     public String dbPassword() { return dbPassword; }
     public boolean dbRollback() { return dbRollback; }
     public boolean dbTestOnRelease() { return dbTestOnRelease; }
+    public boolean dbSessionTags() { return dbSessionTags; }
+    public String dbClientIdCookie() { return dbClientIdCookie; }
     public int dbTestTimeout() { return dbTestTimeout; }
     public int dbBusyTimeout() { return dbBusyTimeout; }
     public int dbIdleTimeout() { return dbIdleTimeout; }
@@ -117,6 +301,46 @@ public class PrizmoraConfig {
     public long dbShutdownWaitTime() { return dbShutdownWaitTime; }
     public String dbCharset() { return dbCharset; }
     public boolean dbCacheProcedures() { return dbCacheProcedures; }
+    public int dbNegativeCacheSize() { return dbNegativeCacheSize; }
+    public int dbNegativeCacheTtl() { return dbNegativeCacheTtl; }
+    public int dbAffinitySize() { return dbAffinitySize; }
+    public int dbCircuitFailures() { return dbCircuitFailures; }
+    public int dbCircuitBackoff() { return dbCircuitBackoff; }
+    public int dbCircuitMaxBackoff() { return dbCircuitMaxBackoff; }
+    public String procedureAllow() { return procedureAllow; }
+    public String procedureDeny() { return procedureDeny; }
+    public String packageReset() { return packageReset; }
+    public String packageResetRules() { return packageResetRules; }
+    public int metricsLogInterval() { return metricsLogInterval; }
+    public String metricsPath() { return metricsPath; }
+    public int configCheckInterval() { return configCheckInterval; }
+
+    /**
+     * Returns the names of settings that differ from previous but are only
+     * read at startup, so won't change until a restart.
+     */
+    public List<String> restartRequired(PrizmoraConfig previous) {
+        List<String> names = new ArrayList<String>();
+        if (!dad.equals(previous.dad)) names.add("dad");
+        if (!urlPrefix.equals(previous.urlPrefix)) names.add("urlPrefix");
+        if (listenPort != previous.listenPort) names.add("listenPort");
+        if (threadPoolSize != previous.threadPoolSize) names.add("threadPoolSize");
+        if (!httpTransport.equals(previous.httpTransport)) names.add("httpTransport");
+        if (requestQueueSize != previous.requestQueueSize) names.add("requestQueueSize");
+        if (!staticMounts.equals(previous.staticMounts)) names.add("staticMounts");
+        if (staticCheckInterval != previous.staticCheckInterval) names.add("staticCheckInterval");
+        if (staticMaxAge != previous.staticMaxAge) names.add("staticMaxAge");
+        if (!responseCacheFile.equals(previous.responseCacheFile)) names.add("responseCacheFile");
+        if (responseCacheSize != previous.responseCacheSize) names.add("responseCacheSize");
+        if (responseCacheSlotSize != previous.responseCacheSlotSize) names.add("responseCacheSlotSize");
+        if (!accessLogFile.equals(previous.accessLogFile)) names.add("accessLogFile");
+        if (accessLogBufferSize != previous.accessLogBufferSize) names.add("accessLogBufferSize");
+        if (accessLogMaxSize != previous.accessLogMaxSize) names.add("accessLogMaxSize");
+        if (accessLogMaxFiles != previous.accessLogMaxFiles) names.add("accessLogMaxFiles");
+        if (metricsLogInterval != previous.metricsLogInterval) names.add("metricsLogInterval");
+        if (configCheckInterval != previous.configCheckInterval) names.add("configCheckInterval");
+        return names;
+    }
 
 
     /**
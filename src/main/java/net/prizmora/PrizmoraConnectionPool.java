@@ -2,6 +2,7 @@ package net.prizmora;
 
 import java.sql.Connection;
 import java.sql.Driver;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -14,6 +15,8 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import oracle.jdbc.OracleConnection;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -35,7 +38,13 @@ public class PrizmoraConnectionPool {
     private static final int BUSY = 2;
     private static final int TEST = 3;
 
-    private final PrizmoraConfig config;
+    private static final Metrics.Counter affinityLookups = Metrics.counter("pool_affinity_lookups_total");
+    private static final Metrics.Counter affinityHits = Metrics.counter("pool_affinity_hits_total");
+    private static final Metrics.Histogram checkoutWait = Metrics.histogram("pool_checkout_wait_seconds");
+    private static final Metrics.Histogram connectTime = Metrics.histogram("pool_connect_seconds");
+
+    private volatile PrizmoraConfig config;
+    private final CircuitBreaker breaker;
 
     /* The following object is used as a lock.
 
@@ -49,20 +58,130 @@ public class PrizmoraConnectionPool {
 
     public PrizmoraConnectionPool(PrizmoraConfig config) {
         this.config = config;
+        this.breaker = new CircuitBreaker(config, new CircuitBreaker.Probe() {
+            public void run() throws SQLException {
+                probe();
+            }
+        });
         scheduler.scheduleAtFixedRate(new PoolCleaner(), 1, 1, TimeUnit.SECONDS);
+        stateGauge("init", INIT);
+        stateGauge("free", FREE);
+        stateGauge("busy", BUSY);
+        stateGauge("test", TEST);
+    }
+
+    private void stateGauge(String name, final int state) {
+        Metrics.gauge("pool_connections", new Metrics.Gauge() {
+            public long value() {
+                return count(state);
+            }
+        }, "state", name);
+    }
+
+    /** Returns the number of connections in the given state. */
+    private int count(int state) {
+        int n = 0;
+        synchronized(connectionList) {
+            for (CachedConnection conn : connectionList) {
+                if (conn.state == state) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Switches to the settings of a reloaded configuration. A larger
+     * dbMaxConnections takes effect at once. If it shrinks, free
+     * connections over the new limit are closed by the cleaner and busy
+     * ones as they are released, so no request is interrupted.
+     */
+    public void reconfigure(PrizmoraConfig config) {
+        if (config.dbMaxConnections() != this.config.dbMaxConnections()) {
+            log.info("Pool limit changed from {} to {}", this.config.dbMaxConnections(), config.dbMaxConnections());
+        }
+        this.config = config;
+        breaker.reconfigure(config);
+    }
+
+    /**
+     * Throws a CircuitOpenException, without waiting, if recent failures
+     * mean the database is thought to be down.
+     */
+    public void checkCircuit() throws CircuitOpenException {
+        breaker.check();
+    }
+
+    /**
+     * Reports that using sqlconn failed with e. If e means the database
+     * couldn't be reached it counts towards opening the circuit, unless the
+     * pool had cancelled or closed sqlconn itself for being busy too long,
+     * which loses the connection just the same.
+     */
+    public void reportFailure(Connection sqlconn, SQLException e) {
+        synchronized(connectionList) {
+            CachedConnection conn = null;
+            for (CachedConnection cachedConn: connectionList) {
+                if (cachedConn.sqlconn == sqlconn) {
+                    conn = cachedConn;
+                }
+            }
+            if (conn == null || conn.cancelled) {
+                log.debug("Not counting failure of busy timed-out connection: {}", e.toString());
+                return;
+            }
+        }
+        breaker.failed(e);
+    }
+
+    /** Reports that a connection was used successfully. */
+    public void reportSuccess() {
+        breaker.succeeded();
     }
 
     public Connection get() throws SQLException {
+        return get(null);
+    }
+
+    /**
+     * Checks out a connection. If affinity is not null, a free connection
+     * which recently served the same affinity (normally the package of the
+     * procedure about to be called) is preferred, since its session has
+     * that package instantiated and its cursors cached. Otherwise any free
+     * connection is used.
+     */
+    public Connection get(String affinity) throws SQLException {
+        breaker.check();
+        long start = System.nanoTime();
         CachedConnection conn = null;
 
         synchronized(connectionList) {
+            CachedConnection fallback = null;
             for (CachedConnection ctmp: connectionList) {
                 if (ctmp.state == FREE) {
-                    conn = ctmp;
-                    conn.state = BUSY;
-                    break;
+                    if (affinity == null || ctmp.servedRecently(affinity)) {
+                        conn = ctmp;
+                        break;
+                    }
+                    if (fallback == null) {
+                        fallback = ctmp;
+                    }
                 }
             }
+            if (affinity != null) {
+                affinityLookups.increment();
+                if (conn != null) {
+                    affinityHits.increment();
+                }
+            }
+            if (conn == null) {
+                conn = fallback;
+            }
+            if (conn != null) {
+                conn.state = BUSY;
+                conn.served(affinity);
+            }
         }
 
         if (conn == null) {
@@ -74,13 +193,15 @@ public class PrizmoraConnectionPool {
 
                 log.info("Connecting to Oracle, pool size: {}", connectionList.size());
 
-                conn = new CachedConnection(config.dbBusyTimeout());
+                conn = new CachedConnection(config.dbBusyTimeout(), config.dbAffinitySize());
                 conn.state = INIT;
                 connectionList.add(conn);
             }
 
             try {
+                long connectStart = System.nanoTime();
                 conn.connect(config);
+                connectTime.observe(System.nanoTime() - connectStart);
             }
             catch (Throwable e) {
                 synchronized(connectionList) {
@@ -89,6 +210,7 @@ public class PrizmoraConnectionPool {
                 }
 
                 if (e instanceof SQLException) {
+                    breaker.failed((SQLException) e);
                     throw (SQLException) e;
                 }
                 if (e instanceof Error) {
@@ -103,12 +225,16 @@ public class PrizmoraConnectionPool {
 
             synchronized(connectionList) {
                 conn.state = BUSY;
+                conn.served(affinity);
                 log.info("Connected to Oracle, pool size: {}", connectionList.size());
             }
+            breaker.succeeded();
         }
 
         conn.counter = config.dbBusyTimeout();
+        conn.cancelled = false;
 
+        checkoutWait.observe(System.nanoTime() - start);
         log.debug("Checked out conn {}", conn);
 
         return conn.sqlconn;
@@ -194,6 +320,9 @@ public class PrizmoraConnectionPool {
     }
 
     private void releaseConn(Connection sqlconn) {
+        // sent with the rollback or test below, or else with the next call
+        if (config.dbSessionTags())
+            DbUtil.setEndToEndMetrics(sqlconn, null, null, null);
         if (config.dbRollback())
             DbUtil.rollback(sqlconn);
         DbUtil.setAutoCommit(sqlconn, false);
@@ -222,10 +351,48 @@ public class PrizmoraConnectionPool {
         else {
              // set counter again in case the test took a while
             conn.counter = config.dbIdleTimeout();
+            boolean surplus;
             synchronized(connectionList) {
+                // the pool is draining to a smaller dbMaxConnections
+                surplus = connectionList.size() > config.dbMaxConnections();
+                if (surplus) {
+                    connectionList.remove(conn);
+                }
+                else {
+                    conn.state = FREE;
+                }
+            }
+            if (surplus) {
+                log.info("Closing connection over the pool limit: {}", conn);
+                closeConn(conn);
+            }
+            else {
+                log.debug("Released conn {}", conn);
+            }
+        }
+    }
+
+    /*
+     * Run by the circuit breaker while it is open. Connects, and keeps the
+     * connection as a free one if the pool has room for it.
+     */
+    private void probe() throws SQLException {
+        CachedConnection conn = new CachedConnection(config.dbBusyTimeout(), config.dbAffinitySize());
+        conn.connect(config);
+        boolean added;
+        synchronized(connectionList) {
+            added = connectionList.size() < config.dbMaxConnections();
+            if (added) {
+                conn.counter = config.dbIdleTimeout();
                 conn.state = FREE;
+                connectionList.add(conn);
             }
-            log.debug("Released conn {}", conn);
+        }
+        if (added) {
+            log.info("Connected to Oracle, pool size: {}", connectionList.size());
+        }
+        else {
+            closeConn(conn);
         }
     }
 
@@ -269,17 +436,51 @@ public class PrizmoraConnectionPool {
         Connection sqlconn;
         int state = INIT;
         long testedAt = 0;
+        // set once the busy timeout has cancelled the connection's work
+        boolean cancelled = false;
+        // affinities of the most recent checkouts, most recent first
+        final String[] recent;
 
-        CachedConnection(int counter) {
+        CachedConnection(int counter, int affinitySize) {
             this.counter = counter;
+            this.recent = new String[affinitySize];
+        }
+
+        boolean servedRecently(String affinity) {
+            for (String r: recent) {
+                if (affinity.equals(r)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // moves affinity to the front of recent, dropping the oldest entry
+        // if it wasn't already there
+        void served(String affinity) {
+            if (affinity == null || recent.length == 0) {
+                return;
+            }
+            int i = 0;
+            while (i < recent.length - 1 && !affinity.equals(recent[i])) {
+                i++;
+            }
+            System.arraycopy(recent, 0, recent, 1, i);
+            recent[0] = affinity;
         }
 
         void connect(PrizmoraConfig config) throws SQLException {
             Properties props = new Properties();
             props.setProperty("user", config.dbUsername());
             props.setProperty("password", config.dbPassword());
-            sqlconn = driver.connect(String.format("jdbc:oracle:thin:@%s:%d:%s",
-                    config.dbHost(), config.dbPort(), config.dbSid()), props);
+            if (config.dbUrl().length() > 0) {
+                // some other driver, e.g. a stub for benchmarks
+                sqlconn = DriverManager.getConnection(config.dbUrl(), props);
+            }
+            else {
+                sqlconn = driver.connect(String.format("jdbc:oracle:thin:@%s:%d:%s",
+                        config.dbHost(), config.dbPort(), config.dbSid()), props);
+            }
             DbUtil.setAutoCommit(sqlconn, false);
         }
 
@@ -288,7 +489,8 @@ public class PrizmoraConnectionPool {
                 + ": counter=" + counter
                 + " sqlconn=" + sqlconn
                 + " testedAt=" + testedAt
-                + " state=" + state;
+                + " state=" + state
+                + " cancelled=" + cancelled;
         }
     }
 
@@ -314,6 +516,28 @@ public class PrizmoraConnectionPool {
         }
     }
 
+    /**
+     * Cancels whatever a busy connection is executing. The request using it
+     * then fails and releases the connection back to the pool as usual.
+     */
+    private class ConnCanceller extends ConnOperator {
+        ConnCanceller(CachedConnection conn) {
+            super(conn);
+        }
+        public void run() {
+            log.warn("Cancelling busy timed-out connection: {}", conn);
+            Connection sqlconn = conn.sqlconn;
+            if (sqlconn instanceof OracleConnection) {
+                try {
+                    ((OracleConnection) sqlconn).cancel();
+                }
+                catch (Throwable t) {
+                    log.warn("Failed to cancel {}: {}", conn, t.toString());
+                }
+            }
+        }
+    }
+
     private class ConnReleaser implements Runnable {
         Connection conn;
         ConnReleaser(Connection conn) {
@@ -358,7 +582,14 @@ public class PrizmoraConnectionPool {
                     conn.counter--;
 
                     if (conn.counter <= 0) {
-                        if (conn.state == BUSY) {
+                        if (conn.state == BUSY && !conn.cancelled) {
+                            // try to get the connection back first; if it's
+                            // still busy after dbTestTimeout, close it
+                            conn.cancelled = true;
+                            conn.counter = config.dbTestTimeout();
+                            executor.execute(new ConnCanceller(conn));
+                        }
+                        else if (conn.state == BUSY) {
                             i.remove();
                             executor.execute(new ConnCloser(conn, "Removing busy timed-out connection: " + conn));
                         }
@@ -391,6 +622,17 @@ public class PrizmoraConnectionPool {
                     }
                 }
 
+                // close free connections over a reduced dbMaxConnections
+                int surplus = connectionList.size() - config.dbMaxConnections();
+                for (Iterator<CachedConnection> i = connectionList.iterator(); i.hasNext() && surplus > 0; ) {
+                    CachedConnection conn = i.next();
+                    if (conn.state == FREE) {
+                        i.remove();
+                        surplus--;
+                        executor.execute(new ConnCloser(conn, "Removing connection over the pool limit: " + conn));
+                    }
+                }
+
                 // test all the free connections that haven't been tested in a while
                 for (CachedConnection conn: connectionList) {
                     if ((conn.state == FREE) &&
@@ -4,70 +4,464 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.Writer;
+import java.sql.Blob;
 import java.sql.CallableStatement;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.nio.charset.Charset;
 import java.sql.Types;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
 
+import oracle.jdbc.OracleTypes;
 import oracle.sql.CLOB;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.simpleframework.http.Address;
-import org.simpleframework.http.ContentType;
-import org.simpleframework.http.Form;
-import org.simpleframework.http.Path;
-import org.simpleframework.http.Query;
-import org.simpleframework.http.Request;
 
 public class ProcedureCache {
 
     private static final Logger log = LogManager.getLogger(ProcedureCache.class);
 
-    private final ConcurrentMap<String, ProcedureTypes> procTypesCache = new ConcurrentHashMap<String, ProcedureTypes>();
-    private final PrizmoraConfig config;
+    private static final Metrics.Counter describeHits = Metrics.counter("procedure_cache_hits_total");
+    private static final Metrics.Counter describeMisses = Metrics.counter("procedure_cache_misses_total");
+    private static final Metrics.Counter spooledPages = Metrics.counter("spool_files_total", "kind", "page");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ConcurrentMap<String, FutureTask<ProcedureTypes>> procTypesCache = new ConcurrentHashMap<String, FutureTask<ProcedureTypes>>();
+    // volatile so that reconfigure() can replace them while calls run
+    private volatile NegativeCache unknownProcs;
+    private volatile ProcedureFilter filter;
+    private volatile RequestTimeouts timeouts;
+    private volatile PackageResets packageResets;
+    private volatile Pattern cursorFunctions;
+    private volatile Pattern cachedProcedures;
+    private volatile DocumentTable documents;
+    private volatile Set<String> trustedProxies;
+    private volatile String docloadSql;
+    private volatile PrizmoraConfig config;
+
+    public ProcedureCache(PrizmoraConfig config) throws PrizmoraConfigException {
+        reconfigure(config);
+    }
 
-    public ProcedureCache(PrizmoraConfig config) {
+    /**
+     * Switches to the settings of a reloaded configuration. Everything
+     * derived from the settings is built before anything is replaced, so
+     * if the new settings are rejected the old ones stay in force.
+     * Remembered unknown procedures are forgotten; so are cached
+     * descriptions if dbCacheProcedures was turned off.
+     */
+    public void reconfigure(PrizmoraConfig config) throws PrizmoraConfigException {
+        RequestTimeouts timeouts = new RequestTimeouts(config);
+        PackageResets packageResets = new PackageResets(config);
+        DocumentTable documents = new DocumentTable(config);
+
+        this.unknownProcs = new NegativeCache(config.dbNegativeCacheSize(), config.dbNegativeCacheTtl());
+        this.filter = new ProcedureFilter(config.procedureAllow(), config.procedureDeny());
+        this.timeouts = timeouts;
+        this.packageResets = packageResets;
+        this.cursorFunctions = ProcedureFilter.compile(config.cursorFunctions());
+        this.cachedProcedures = ProcedureFilter.compile(config.responseCacheProcedures());
+        this.documents = documents;
+        this.trustedProxies = HttpUtil.addresses(config.trustedProxies());
+        this.docloadSql = docloadSql(documents.tableName());
         this.config = config;
+        if (!config.dbCacheProcedures()) {
+            procTypesCache.clear();
+        }
+    }
+
+    /*
+     * Appended to every procedure call so that a wpg_docload download is
+     * detected without another round trip. Binds the download info (the
+     * document name, or 'B' for a BLOB), the document's MIME type and the
+     * BLOB to send.
+     */
+    private static String docloadSql(String documentTable) {
+        return "\n IF wpg_docload.is_file_download THEN\n"
+            + "  wpg_docload.get_download_file(x_dbprism_doc_info);\n"
+            + "  IF x_dbprism_doc_info = 'B' THEN\n"
+            + "   wpg_docload.get_download_blob(x_dbprism_doc_blob);\n"
+            + "  ELSIF x_dbprism_doc_info <> 'F' THEN\n"
+            + "   BEGIN\n"
+            + "    SELECT blob_content, mime_type INTO x_dbprism_doc_blob, x_dbprism_doc_type\n"
+            + "      FROM " + documentTable + " WHERE name = x_dbprism_doc_info;\n"
+            + "   EXCEPTION WHEN no_data_found THEN NULL;\n"
+            + "   END;\n"
+            + "  END IF;\n"
+            + " END IF;\n"
+            + " ? := x_dbprism_doc_info; ? := x_dbprism_doc_type; ? := x_dbprism_doc_blob;\n"
+            + "END;";
+    }
+
+    /**
+     * Returns true if the procedure named by the request may be called
+     * according to the procedureAllow and procedureDeny rules. If the name
+     * has already been described, the name it resolved to is checked too.
+     */
+    public boolean isAllowed(HttpRequest req) {
+        if (!filter.isAllowed(ProcedureCall.procedureName(req))) {
+            return false;
+        }
+        String resolved = resolvedName(req);
+        return resolved == null || filter.isAllowedResolved(resolved);
+    }
+
+    /**
+     * Returns true if the procedure named by the request recently failed to
+     * resolve. Such requests can be answered without touching the database.
+     */
+    public boolean isUnknownProcedure(HttpRequest req) {
+        if (!config.dbCacheProcedures()) {
+            return false;
+        }
+        String procName = ProcedureCall.procedureName(req);
+        return procName != null && unknownProcs.contains(procName);
+    }
+
+    /**
+     * Returns a context for calling the procedure named by the request, with
+     * the deadline that applies to it.
+     */
+    public CallContext newContext(HttpRequest req) {
+        return new CallContext(timeouts.timeoutFor(ProcedureCall.procedureName(req), req));
+    }
+
+    /**
+     * Applies the timeout for the procedure call to ctx, within the
+     * deadline ctx was created with. For the calls of a batch, whose
+     * context was made for the batch as a whole.
+     */
+    public void limitContext(CallContext ctx, HttpRequest call) {
+        ctx.limit(timeouts.timeoutFor(ProcedureCall.procedureName(call), call));
+    }
+
+    /**
+     * Returns the lower case name the database resolved the request's
+     * procedure to if its description is cached, otherwise null.
+     */
+    public String resolvedName(HttpRequest req) {
+        String procName = ProcedureCall.procedureName(req);
+        FutureTask<ProcedureTypes> task = procName != null ? procTypesCache.get(procName) : null;
+        if (task == null || !task.isDone()) {
+            return null;
+        }
+        try {
+            return task.get().resolvedName();
+        }
+        catch (Exception e) {
+            // a failed describe, which is about to be removed
+            return null;
+        }
+    }
+
+    /**
+     * Returns the connection affinity for the request: the package of the
+     * procedure it calls (with its schema, if given), or the procedure
+     * itself if it isn't in a package.
+     */
+    public String affinity(HttpRequest req) {
+        String procName = ProcedureCall.procedureName(req);
+        if (procName == null) {
+            return null;
+        }
+        int dot = procName.lastIndexOf('.');
+        return (dot > 0 ? procName.substring(0, dot) : procName).toLowerCase();
+    }
+
+    /**
+     * Forget all cached procedure descriptions, both positive and negative.
+     */
+    public void invalidate() {
+        procTypesCache.clear();
+        unknownProcs.clear();
+    }
+
+    public Page call(HttpRequest req, Connection conn, CallContext ctx) throws Exception {
+        String procName = ProcedureCall.procedureName(req);
+        tagSession(procName, req, conn);
+        packageResets.reset(procName, conn, ctx);
+        setCGIVars(req, conn, ctx);
+
+        // Prizmora checks this before checking out a connection, but make
+        // sure nothing reaches the database without passing the filter
+        if (!filter.isAllowed(procName)) {
+            throw new ProcedureNotAllowedException(procName);
+        }
+        ProcedureTypes procTypes = describe(procName, conn, ctx);
+        if (!filter.isAllowedResolved(procTypes.resolvedName())) {
+            throw new ProcedureNotAllowedException(procTypes.resolvedName());
+        }
+        ctx.setDescribed(procTypes.resolvedName());
+
+        ProcedureCall call;
+        boolean uploaded = false;
+        if (isMultipart(req)) {
+            call = uploadCall(req, conn, ctx);
+            uploaded = true;
+        } else {
+            call = parseCall(req, procTypes, conn);
+        }
+        Download download;
+        try {
+            download = dbCall(call, procTypes, conn, ctx);
+            if (uploaded) {
+                // like mod_plsql, keep the documents once the procedure
+                // has accepted them, whatever dbRollback says
+                conn.commit();
+            }
+        } catch (Exception e) {
+            if (uploaded) {
+                // don't leave uploaded documents in the session's transaction
+                DbUtil.rollback(conn);
+            }
+            throw e;
+        } finally {
+            call.release();
+        }
+        return new Page(getGeneratedStream(conn, ctx), download.blob, download.type);
     }
 
-    public Reader call(Request req, Connection conn) throws Exception {
-        resetPackages(conn);
-        setCGIVars(req, conn);
+    /**
+     * Consumes the rows of the ref cursor returned by a cursor function.
+     */
+    public interface CursorConsumer {
+        void consume(ResultSet rows) throws Exception;
+    }
 
-        // XXX check for upload
-        ProcedureCall call = new ProcedureCall(req);
-        dbCall(call, conn);
-        return getGeneratedStream(conn);
+    /**
+     * Returns true if the request names a function listed in
+     * cursorFunctions, whose ref cursor result should be streamed with
+     * callCursor instead of calling it as a procedure.
+     */
+    public boolean isCursorFunction(HttpRequest req) {
+        String procName = ProcedureCall.procedureName(req);
+        return procName != null && cursorFunctions != null
+            && cursorFunctions.matcher(procName).matches();
     }
 
-    private void resetPackages(Connection conn) throws SQLException {
+    /**
+     * Returns true if the request is a GET of a procedure listed in
+     * responseCacheProcedures, whose page may be served from the
+     * ResponseCache.
+     */
+    public boolean isCacheable(HttpRequest req) {
+        String procName = ProcedureCall.procedureName(req);
+        return procName != null && cachedProcedures != null && "GET".equals(req.getMethod())
+            && cachedProcedures.matcher(procName).matches() && !isCursorFunction(req);
+    }
+
+    /**
+     * Calls a function returning a SYS_REFCURSOR, binding its arguments
+     * from the request like a procedure's, and passes the open cursor to
+     * consumer. Rows are fetched cursorFetchSize at a time as the consumer
+     * reads them, so the cursor is only open until consume() returns.
+     */
+    public void callCursor(HttpRequest req, Connection conn, CallContext ctx, CursorConsumer consumer) throws Exception {
+        String procName = ProcedureCall.procedureName(req);
+        tagSession(procName, req, conn);
+        packageResets.reset(procName, conn, ctx);
+        setCGIVars(req, conn, ctx);
+
+        if (!filter.isAllowed(procName)) {
+            throw new ProcedureNotAllowedException(procName);
+        }
+        ProcedureTypes procTypes = describe(procName, conn, ctx);
+        if (!filter.isAllowedResolved(procTypes.resolvedName())) {
+            throw new ProcedureNotAllowedException(procTypes.resolvedName());
+        }
+        ctx.setDescribed(procTypes.resolvedName());
+
+        ProcedureCall call = parseCall(req, procTypes, conn);
+        List<CsCallback> callbacks = new ArrayList<CsCallback>();
         CallableStatement cs = null;
+        ResultSet rows = null;
         try {
-            cs = conn.prepareCall("BEGIN dbms_session.reset_package; END;");
-            cs.execute();
+            StringBuffer command = buildCall(call, procTypes, conn, callbacks, true);
+            command.append("\nEND;");
+            int cursorIndex = callbacks.size() + 1;
+            log.debug(".callCursor command: \n{}", command);
+
+            cs = ctx.prepareCall(conn, command.toString());
+            for (CsCallback callback : callbacks) {
+                callback.callback(cs);
+            }
+            cs.registerOutParameter(cursorIndex, OracleTypes.CURSOR);
+            try {
+                cs.execute();
+                rows = (ResultSet) cs.getObject(cursorIndex);
+            } catch (SQLException e) {
+                throw new SQLException("PLSQL Adapter - PLSQL Error\n"
+                        + e.getMessage() + msgArgumentCallError(call));
+            }
+            rows.setFetchSize(config.cursorFetchSize());
+            consumer.consume(rows);
+        } finally {
+            DbUtil.close(rows);
+            ctx.close(cs);
+            for (CsCallback callback : callbacks) {
+                callback.cleanup();
+            }
+            call.release();
+        }
+    }
+
+    /**
+     * Stores each file of a multipart request in the document table, the way
+     * mod_plsql does, and passes the generated document names to the
+     * procedure in place of the files. File contents are copied to the BLOB
+     * in large chunks from the transport's part buffers, so they're never
+     * held in memory as a whole.
+     */
+    private ProcedureCall uploadCall(HttpRequest req, Connection conn, CallContext ctx) throws Exception {
+        Map<String, List<String>> values = req.getForm();
+        Map<String, List<String>> docNames = new HashMap<String, List<String>>();
+
+        for (HttpPart part : req.getParts()) {
+            String docName = "";
+            String fileName = part.getFileName();
+            // browsers send an empty file part for an unused file input
+            if (fileName != null && fileName.length() > 0) {
+                InputStream in = part.getInputStream();
+                try {
+                    docName = documents.store(in, fileName, part.getContentType(), conn, ctx);
+                } finally {
+                    IoUtil.close(in);
+                }
+            }
+            List<String> names = docNames.get(part.getName());
+            if (names == null) {
+                names = new ArrayList<String>(1);
+                docNames.put(part.getName(), names);
+            }
+            names.add(docName);
+        }
+        values.putAll(docNames);
+
+        return new ProcedureCall(req, values, null);
+    }
+
+    private static boolean isMultipart(HttpRequest req) {
+        MediaType type = req.getContentType();
+        return type != null && type.is("multipart", "form-data");
+    }
+
+    /**
+     * Parses the request parameters. Large url-encoded posts are read
+     * straight from the body so that values bound to CLOB arguments can be
+     * streamed into temporary CLOBs instead of being held as Strings.
+     * Everything else goes through the transport's form parser.
+     */
+    private ProcedureCall parseCall(HttpRequest req, final ProcedureTypes procTypes, final Connection conn) throws Exception {
+        if (!isLargeForm(req)) {
+            return new ProcedureCall(req, req.getForm(), null);
+        }
+
+        Map<String, List<String>> values = new HashMap<String, List<String>>();
+        Map<String, List<String>> query = req.getQuery();
+        for (String key : query.keySet()) {
+            values.put(key, new ArrayList<String>(query.get(key)));
+        }
+
+        final Map<String, CLOB> clobs = new HashMap<String, CLOB>();
+        final boolean flexible = ProcedureCall.isFlexible(req.getName());
+        FormStreamParser parser = new FormStreamParser(requestCharset(req),
+                config.clobStreamThreshold(), config.maxBodySize());
+        InputStream in = null;
+        try {
+            in = req.getInputStream();
+            parser.parse(in, values, new FormStreamParser.Listener() {
+                public Writer stream(String name) throws IOException {
+                    if (flexible || clobs.containsKey(name)
+                            || !"CLOB".equalsIgnoreCase(procTypes.getArgumentType(name.toLowerCase()))) {
+                        return null;
+                    }
+                    try {
+                        CLOB clob = CLOB.createTemporary(conn, false, CLOB.DURATION_SESSION);
+                        clobs.put(name, clob);
+                        return clob.setCharacterStream(1L);
+                    } catch (SQLException e) {
+                        throw new IOException("Failed to create temporary CLOB: " + e.getMessage(), e);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            new ProcedureCall(req, values, clobs).release();
+            throw e;
         } finally {
-            DbUtil.close(cs);
+            IoUtil.close(in);
+        }
+        return new ProcedureCall(req, values, clobs);
+    }
+
+    private boolean isLargeForm(HttpRequest req) {
+        if (!"POST".equalsIgnoreCase(req.getMethod())) {
+            return false;
         }
+        MediaType type = req.getContentType();
+        if (type == null || !type.is("application", "x-www-form-urlencoded")) {
+            return false;
+        }
+        long length = req.getContentLength();
+        return length < 0 || length > config.clobStreamThreshold();
+    }
+
+    // Browsers post forms in the encoding of the page, and we always serve
+    // pages as UTF-8
+    private static Charset requestCharset(HttpRequest req) {
+        MediaType type = req.getContentType();
+        String charset = type == null ? null : type.getCharset();
+        if (charset != null) {
+            try {
+                return Charset.forName(charset);
+            } catch (Exception e) {
+                log.debug("Unsupported request charset {}, using UTF-8", charset);
+            }
+        }
+        return UTF8;
+    }
+
+    /*
+     * Tags the session with the DAD, the procedure and the client, so DBAs
+     * can tell what it is doing. Done before the first statement of the
+     * call, which carries the values to the database.
+     */
+    private void tagSession(String procName, HttpRequest req, Connection conn) {
+        if (!config.dbSessionTags()) {
+            return;
+        }
+        String clientId = null;
+        if (config.dbClientIdCookie().length() > 0) {
+            clientId = HttpUtil.cookie(req.getValue("Cookie"), config.dbClientIdCookie());
+        }
+        if (clientId == null) {
+            // the client's own address rather than a proxy's
+            clientId = HttpUtil.clientAddress(req, trustedProxies);
+        }
+        DbUtil.setEndToEndMetrics(conn, config.dad(), procName, clientId);
     }
 
-    private void setCGIVars(Request req, Connection conn) throws SQLException {
+    void setCGIVars(HttpRequest req, Connection conn, CallContext ctx) throws SQLException {
         CallableStatement cs = null;
         // we have at most 50 CgiVars, and 7 non-CGI values. Make room for
         // 65 to ensure we don't have to reallocate the array w/wiggle room.
@@ -114,7 +508,7 @@ public class ProcedureCache {
             }
         }
         try {
-            cs = conn.prepareCall(command.toString());
+            cs = ctx.prepareCall(conn, command.toString());
             int paramIndex = 1;
             for (String bindParam : bindParams) {
                 cs.setString(paramIndex++, bindParam);
@@ -122,21 +516,21 @@ public class ProcedureCache {
             cs.setInt(paramIndex++, env.size);
             cs.execute();
         } finally {
-            DbUtil.close(cs);
+            ctx.close(cs);
         }
     }
 
-    private void dbCall(ProcedureCall call, Connection conn) throws Exception {
+    /**
+     * Builds the PL/SQL block calling the procedure, up to and including the
+     * call statement. The binds for the arguments are added to callbacks.
+     * If function is true the result is assigned to the next bind after
+     * those; otherwise the block declares the wpg_docload variables used by
+     * docloadSql. Either way the caller finishes the block.
+     */
+    private StringBuffer buildCall(ProcedureCall call, ProcedureTypes procTypes, Connection conn,
+                                   List<CsCallback> callbacks, boolean function) throws SQLException, IOException {
         String procName = call.name();
 
-        // Checks for package that violates exclusion_list parameter
-        // Pakckages that start with any of these values are considered with
-        // high risk
-        String[] excludeList = { "sys.", "owa", "dbms_", "htp." };
-        for (int i = 0; i < excludeList.length; i++) {
-            if (procName.toLowerCase().startsWith(excludeList[i].toLowerCase()))
-                throw new SQLException("Not Authorized");
-        }
         // parse all FORM input parameters and arrays set as PL/SQL arrays
         // Calling with constants - no prepared calls
         // Handling Case Insensitive args in PL/SQL and owa_image.point
@@ -158,169 +552,198 @@ public class ProcedureCache {
         StringBuffer setvar = new StringBuffer("BEGIN \n"); // we will set array
                                                             // variables here
         int foundcount = 0;
-        ProcedureTypes procTypes = null;
-        if (config.dbCacheProcedures()) {
-            procTypes = procTypesCache.get(procName);
-        }
 
-        if (procTypes == null) {
-            procTypes = new ProcedureTypes(procName, conn);
-            if (config.dbCacheProcedures()) {
-                procTypesCache.putIfAbsent(procName, procTypes);
-            }
-        }
-
-        List<CsCallback> callbacks = new ArrayList<CsCallback>();
-        int callbackIndex = 1;
+        int callbackIndex = callbacks.size() + 1;
         // Build procedure call parameter by parameter
-
-        try {
-            String[] real_args_list = call.parameterNames();
-            for (int i = 0; i < real_args_list.length; i++) {
-                String name_args = real_args_list[i];
-                List<String> multi_vals = call.parameterValues(name_args);
-                String argumentName = name_args.toLowerCase();
-                if (argumentName.indexOf(".") > 0) {
-                    argumentName = argumentName.substring(0, argumentName
-                            .indexOf("."));
-                }
-                String argumentType = procTypes.getArgumentType(argumentName);
-                if (argumentType == null) {
-                    log.warn("Warning: argument {} not in procedure description {}", name_args, procName);
-                    throw new SQLException(
-                            procName
-                                    + ": MANY PROCEDURES MATCH NAME, BUT NONE MATCHES SIGNATURE (parameter name '"
-                                    + name_args + "')");
-                }
-                // System.out.println("Arg. name:" + name_args + " found type: "
-                // + argumentType);
-                if (argumentType.indexOf(".") > 0) { // ARRAY variable syntax:
-                                                     // owner.type.subtype
-                    if (name_args.indexOf(".") > 0) { // must be owa_image.point
-                        if (name_args.toLowerCase().endsWith(".x")) { // Use
-                                                                      // only
-                                                                      // name.x
-                                                                      // definition
-                                                                      // and
-                                                                      // ignore
-                                                                      // name.y
-                            // handle owa_image.point data type
-                            name_args = name_args.substring(0, name_args
-                                    .indexOf("."));
-                            decvar.append("x_dbprism_internal_param_").append(
-                                    foundcount).append(" owa_image.point;\n");
-                            String val_x = call.getParameter(name_args + ".x");
-                            String val_y = call.getParameter(name_args + ".y");
-                            // the owa_image.point data type is a array of
-                            // varchar index by binary integer
-                            // Position 1 is args.x value
-                            // Position 2 is args.y value
-                            setvar.append("x_dbprism_internal_param_").append(
-                                    foundcount).append("(1):=?; ");
-                            callbacks.add(new StringSetter(callbackIndex++,
-                                    val_x));
-                            setvar.append("x_dbprism_internal_param_").append(
-                                    foundcount).append("(2):=?; ");
-                            callbacks.add(new StringSetter(callbackIndex++,
-                                    val_y));
-                            command.append(name_args).append(
-                                    "=>x_dbprism_internal_param_").append(
-                                    foundcount).append(",");
-                        } else { // Skip .y definition
-                            continue;
-                        }
-                    } else {
-                        // System.out.println(name_args + " argumentType =" +
-                        // argumentType);
-                        for (String multi_val : multi_vals) {
-                            setvar.append("x_dbprism_internal_param_").append(
-                                    foundcount).append("(").append((i + 1))
-                                    .append("):=?; ");
-                            callbacks.add(new StringSetter(callbackIndex++,
-                                    multi_val));
-                        } // end for make array variable
-                        command.append(name_args).append(
-                                "=>x_dbprism_internal_param_").append(
-                                foundcount).append(",");
-                        // Oracle 10g replace SYS by PUBLIC when object where
-                        // installed on sys schema and granted to public.
-                        // Remove PUBLIC and use short version (package.type)
-                        // for the argument type.
-                        argumentType = argumentType.replaceFirst("^PUBLIC\\.",
-                                "");
+        String[] real_args_list = call.parameterNames();
+        for (int i = 0; i < real_args_list.length; i++) {
+            String name_args = real_args_list[i];
+            List<String> multi_vals = call.parameterValues(name_args);
+            String argumentName = name_args.toLowerCase();
+            if (argumentName.indexOf(".") > 0) {
+                argumentName = argumentName.substring(0, argumentName
+                        .indexOf("."));
+            }
+            String argumentType = procTypes.getArgumentType(argumentName);
+            if (argumentType == null) {
+                log.warn("Warning: argument {} not in procedure description {}", name_args, procName);
+                throw new SQLException(
+                        procName
+                                + ": MANY PROCEDURES MATCH NAME, BUT NONE MATCHES SIGNATURE (parameter name '"
+                                + name_args + "')");
+            }
+            // System.out.println("Arg. name:" + name_args + " found type: "
+            // + argumentType);
+            if (argumentType.indexOf(".") > 0) { // ARRAY variable syntax:
+                                                 // owner.type.subtype
+                if (name_args.indexOf(".") > 0) { // must be owa_image.point
+                    if (name_args.toLowerCase().endsWith(".x")) { // Use
+                                                                  // only
+                                                                  // name.x
+                                                                  // definition
+                                                                  // and
+                                                                  // ignore
+                                                                  // name.y
+                        // handle owa_image.point data type
+                        name_args = name_args.substring(0, name_args
+                                .indexOf("."));
                         decvar.append("x_dbprism_internal_param_").append(
-                                foundcount).append(" ").append(argumentType)
-                                .append(";\n");
-                    }
-                } else { // otherwise, must be scalar type or cast to scalar
-                    String s;
-                    if (name_args.indexOf(".") > 0) {
-                        if (name_args.toLowerCase().endsWith(".x")) { // Use
-                                                                      // only
-                                                                      // name.x
-                                                                      // definition
-                                                                      // and
-                                                                      // ignore
-                                                                      // name.y
-                            s = call.getParameter(name_args);
-                            name_args = name_args.substring(0, name_args
-                                    .indexOf("."));
-                            // System.out.println(
-                            // "Casting from owa_image.point to varchar2");
-                        } else { // Skip .y definition
-                            continue;
-                        }
-                    } else if (multi_vals != null) {
-                        s = new String(multi_vals.get(0).getBytes(
-                                config.dbCharset()));
-                    } else {
-                        s = new String(call.getParameter(name_args).getBytes(
-                                config.dbCharset()));
-                    }
-                    if ("CLOB".equalsIgnoreCase(argumentType)) {
+                                foundcount).append(" owa_image.point;\n");
+                        String val_x = call.getParameter(name_args + ".x");
+                        String val_y = call.getParameter(name_args + ".y");
+                        // the owa_image.point data type is a array of
+                        // varchar index by binary integer
+                        // Position 1 is args.x value
+                        // Position 2 is args.y value
                         setvar.append("x_dbprism_internal_param_").append(
-                                foundcount).append(":=?; ");
-                        callbacks.add(new ClobSetter(callbackIndex++, s, conn));
-                        command.append(name_args).append(
-                                "=>x_dbprism_internal_param_").append(
-                                foundcount).append(",");
-                        decvar.append("x_dbprism_internal_param_").append(
-                                foundcount).append(" CLOB;\n");
-                    } else {
+                                foundcount).append("(1):=?; ");
+                        callbacks.add(new StringSetter(callbackIndex++,
+                                val_x));
                         setvar.append("x_dbprism_internal_param_").append(
-                                foundcount).append(":=?; ");
-                        callbacks.add(new StringSetter(callbackIndex++, s));
+                                foundcount).append("(2):=?; ");
+                        callbacks.add(new StringSetter(callbackIndex++,
+                                val_y));
                         command.append(name_args).append(
                                 "=>x_dbprism_internal_param_").append(
                                 foundcount).append(",");
-                        decvar.append("x_dbprism_internal_param_").append(
-                                foundcount).append(" VARCHAR2(32767);\n");
+                    } else { // Skip .y definition
+                        continue;
                     }
-                } // end if muti valued args
-                foundcount++;
-            }
-            command = new StringBuffer(decvar.toString() + setvar.toString()
-                    + command.toString().substring(0, command.length() - 1));
-            if (foundcount == 0) {
-                command.append("; END;");
-            } else {
-                command.append("); END;");
-            }
+                } else {
+                    // System.out.println(name_args + " argumentType =" +
+                    // argumentType);
+                    for (String multi_val : multi_vals) {
+                        setvar.append("x_dbprism_internal_param_").append(
+                                foundcount).append("(").append((i + 1))
+                                .append("):=?; ");
+                        callbacks.add(new StringSetter(callbackIndex++,
+                                multi_val));
+                    } // end for make array variable
+                    command.append(name_args).append(
+                            "=>x_dbprism_internal_param_").append(
+                            foundcount).append(",");
+                    // Oracle 10g replace SYS by PUBLIC when object where
+                    // installed on sys schema and granted to public.
+                    // Remove PUBLIC and use short version (package.type)
+                    // for the argument type.
+                    argumentType = argumentType.replaceFirst("^PUBLIC\\.",
+                            "");
+                    decvar.append("x_dbprism_internal_param_").append(
+                            foundcount).append(" ").append(argumentType)
+                            .append(";\n");
+                }
+            } else if (call.streamedClob(name_args) != null) {
+                // large value already streamed into a temporary CLOB
+                setvar.append("x_dbprism_internal_param_").append(
+                        foundcount).append(":=?; ");
+                callbacks.add(new ClobBinder(callbackIndex++,
+                        call.streamedClob(name_args)));
+                command.append(name_args).append(
+                        "=>x_dbprism_internal_param_").append(
+                        foundcount).append(",");
+                decvar.append("x_dbprism_internal_param_").append(
+                        foundcount).append(" CLOB;\n");
+            } else { // otherwise, must be scalar type or cast to scalar
+                String s;
+                if (name_args.indexOf(".") > 0) {
+                    if (name_args.toLowerCase().endsWith(".x")) { // Use
+                                                                  // only
+                                                                  // name.x
+                                                                  // definition
+                                                                  // and
+                                                                  // ignore
+                                                                  // name.y
+                        s = call.getParameter(name_args);
+                        name_args = name_args.substring(0, name_args
+                                .indexOf("."));
+                        // System.out.println(
+                        // "Casting from owa_image.point to varchar2");
+                    } else { // Skip .y definition
+                        continue;
+                    }
+                } else if (multi_vals != null) {
+                    s = new String(multi_vals.get(0).getBytes(
+                            config.dbCharset()));
+                } else {
+                    s = new String(call.getParameter(name_args).getBytes(
+                            config.dbCharset()));
+                }
+                if ("CLOB".equalsIgnoreCase(argumentType)) {
+                    setvar.append("x_dbprism_internal_param_").append(
+                            foundcount).append(":=?; ");
+                    callbacks.add(new ClobSetter(callbackIndex++, s, conn));
+                    command.append(name_args).append(
+                            "=>x_dbprism_internal_param_").append(
+                            foundcount).append(",");
+                    decvar.append("x_dbprism_internal_param_").append(
+                            foundcount).append(" CLOB;\n");
+                } else {
+                    setvar.append("x_dbprism_internal_param_").append(
+                            foundcount).append(":=?; ");
+                    callbacks.add(new StringSetter(callbackIndex++, s));
+                    command.append(name_args).append(
+                            "=>x_dbprism_internal_param_").append(
+                            foundcount).append(",");
+                    decvar.append("x_dbprism_internal_param_").append(
+                            foundcount).append(" VARCHAR2(32767);\n");
+                }
+            } // end if muti valued args
+            foundcount++;
+        }
+        if (!function) {
+            decvar.append("x_dbprism_doc_info VARCHAR2(32767);\n")
+                    .append("x_dbprism_doc_type VARCHAR2(128);\n")
+                    .append("x_dbprism_doc_blob BLOB;\n");
+        }
+        command = new StringBuffer(decvar.toString() + setvar.toString()
+                + (function ? "? := " : "")
+                + command.toString().substring(0, command.length() - 1));
+        if (foundcount == 0) {
+            command.append(";");
+        } else {
+            command.append(");");
+        }
+        return command;
+    }
+
+    Download dbCall(ProcedureCall call, ProcedureTypes procTypes, Connection conn, CallContext ctx) throws Exception {
+        String procName = call.name();
+        List<CsCallback> callbacks = new ArrayList<CsCallback>();
+        try {
+            StringBuffer command = buildCall(call, procTypes, conn, callbacks, false);
+            command.append(docloadSql);
+            int callbackIndex = callbacks.size() + 1;
             log.debug(".dbCall command: \n{}", command);
             // Exec procedure in DB
+            Download download = new Download();
+            String docInfo;
             CallableStatement cs = null;
             try {
-                cs = conn.prepareCall(command.toString());
+                cs = ctx.prepareCall(conn, command.toString());
                 for (CsCallback callback : callbacks) {
                     callback.callback(cs);
                 }
+                cs.registerOutParameter(callbackIndex, Types.VARCHAR);
+                cs.registerOutParameter(callbackIndex + 1, Types.VARCHAR);
+                cs.registerOutParameter(callbackIndex + 2, Types.BLOB);
                 cs.execute();
+                docInfo = cs.getString(callbackIndex);
+                download.type = cs.getString(callbackIndex + 1);
+                download.blob = cs.getBlob(callbackIndex + 2);
             } catch (SQLException e) {
                 throw new SQLException("PLSQL Adapter - PLSQL Error\n"
                         + e.getMessage() + msgArgumentCallError(call));
             } finally {
-                DbUtil.close(cs);
+                ctx.close(cs);
+            }
+
+            if (docInfo != null && download.blob == null) {
+                if ("F".equals(docInfo)) {
+                    throw new SQLException(procName + ": BFILE downloads are not supported");
+                }
+                throw new DocumentNotFoundException(docInfo);
             }
+            return download;
         } finally {
             for (CsCallback callback : callbacks) {
                 callback.cleanup();
@@ -328,6 +751,62 @@ public class ProcedureCache {
         }
     }
 
+    /**
+     * Returns the description of a procedure. Concurrent requests for the
+     * same name share a single load, which runs on the connection of the
+     * first requester while the others wait for its result. Failed loads are
+     * never cached, and when dbCacheProcedures is false the result is only
+     * shared with requests that arrived while it was loading.
+     */
+    private ProcedureTypes describe(final String procName, final Connection conn, final CallContext ctx) throws SQLException {
+        FutureTask<ProcedureTypes> task = procTypesCache.get(procName);
+        boolean loader = false;
+        if (task != null) {
+            describeHits.increment();
+        }
+        else {
+            describeMisses.increment();
+            FutureTask<ProcedureTypes> newTask = new FutureTask<ProcedureTypes>(new Callable<ProcedureTypes>() {
+                public ProcedureTypes call() throws SQLException {
+                    return new ProcedureTypes(procName, conn, ctx);
+                }
+            });
+            task = procTypesCache.putIfAbsent(procName, newTask);
+            if (task == null) {
+                task = newTask;
+                loader = true;
+                newTask.run();
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            procTypesCache.remove(procName, task);
+            Throwable cause = e.getCause();
+            if (loader && config.dbCacheProcedures() && cause instanceof ProcedureNotFoundException) {
+                unknownProcs.add(procName);
+            }
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException(cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for description of " + procName, e);
+        } finally {
+            if (loader && !config.dbCacheProcedures()) {
+                procTypesCache.remove(procName, task);
+            }
+        }
+    }
+
     private String msgArgumentCallError(ProcedureCall call) throws Exception {
         StringBuffer text_error = new StringBuffer();
         text_error.append("\n\n\n While try to execute ").append(call.name());
@@ -336,7 +815,10 @@ public class ProcedureCache {
         for (int i = 0; i < parameterNames.length; i++) {
             String name_args = parameterNames[i];
             List<String> multi_vals = call.parameterValues(name_args);
-            if (multi_vals.size() > 1) { // must be owa_util.ident_array type
+            if (call.streamedClob(name_args) != null) {
+                text_error.append("\n").append(name_args).append(":");
+                text_error.append("\n\t(streamed CLOB)");
+            } else if (multi_vals.size() > 1) { // must be owa_util.ident_array type
                 text_error.append("\n").append(name_args).append(":");
                 for (String val : multi_vals) {
                     text_error.append("\n\t").append(
@@ -360,13 +842,13 @@ public class ProcedureCache {
         return text_error.toString();
     }
 
-    public Reader getGeneratedStream(Connection conn) throws SQLException {
+    public Reader getGeneratedStream(Connection conn, CallContext ctx) throws SQLException {
         File spoolFile = null;
         FileWriter spoolWriter = null;
         DataFetcher fetcher = null;
 
         try {
-            fetcher = new DataFetcher(conn);
+            fetcher = new DataFetcher(conn, ctx);
             StringBuffer buff = new StringBuffer();
 
             // Get generated page in one call via stream
@@ -378,6 +860,7 @@ public class ProcedureCache {
                     buff.append(block);
                     if (buff.length() > config.spoolThreshold()) {
                         log.info("Spooling large response to disk");
+                        spooledPages.increment();
                         spoolFile = File.createTempFile("page", null, config
                                 .spoolDirectory());
                         spoolWriter = new FileWriter(spoolFile);
@@ -415,10 +898,12 @@ public class ProcedureCache {
         private final static int MAX_PL_LINES = 127; // Max Lines
 
         private final CallableStatement cs;
+        private final CallContext ctx;
         private boolean finished = false;
 
-        public DataFetcher(Connection conn) throws SQLException {
-            cs = conn.prepareCall("declare nlns number;\n"
+        public DataFetcher(Connection conn, CallContext ctx) throws SQLException {
+            this.ctx = ctx;
+            cs = ctx.prepareCall(conn, "declare nlns number;\n"
                     + " buf_t varchar2(32767);\n" + " lines htp.htbuf_arr;\n"
                     + "begin\n" + "  nlns := ?;\n"
                     + "  OWA.GET_PAGE(lines, nlns);\n"
@@ -433,6 +918,8 @@ public class ProcedureCache {
                 return null;
             }
 
+            // each fetch gets whatever is left of the deadline
+            ctx.applyTimeout(cs);
             cs.setInt(1, MAX_PL_LINES);
             cs.registerOutParameter(2, Types.VARCHAR);
             cs.registerOutParameter(3, Types.BIGINT);
@@ -449,11 +936,16 @@ public class ProcedureCache {
         }
 
         public void close() {
-            DbUtil.close(cs);
+            ctx.close(cs);
         }
 
     }
 
+    static class Download {
+        Blob blob;
+        String type;
+    }
+
     private static interface CsCallback {
         void callback(CallableStatement cs) throws SQLException;
 
@@ -513,6 +1005,24 @@ public class ProcedureCache {
         }
     }
 
+    private static class ClobBinder implements CsCallback {
+        private int index;
+        private CLOB clob;
+
+        public ClobBinder(int index, CLOB clob) {
+            this.index = index;
+            this.clob = clob;
+        }
+
+        public void callback(CallableStatement cs) throws SQLException {
+            cs.setClob(index, clob);
+        }
+
+        public void cleanup() {
+            // the ProcedureCall owns the CLOB and frees it
+        }
+    }
+
     private static class CgiVars {
 
         public String[] names = new String[50];
@@ -532,12 +1042,10 @@ public class ProcedureCache {
          * @param pass
          *            String - password
          */
-        public CgiVars(Request req, PrizmoraConfig config) {
+        public CgiVars(HttpRequest req, PrizmoraConfig config) {
             int n_size = 0;
             String argValue;
 
-            Address address = req.getAddress();
-
             if ((argValue = req.getMethod()) != null) {
                 names[n_size] = "REQUEST_METHOD";
                 values[n_size++] = argValue;
@@ -559,17 +1067,14 @@ public class ProcedureCache {
              * pass.equals("")) ? argValue : "Basic"); }
              */
 
-            Query query = address.getQuery();
-            if (query != null && (argValue = query.toString()) != null) {
+            if ((argValue = req.getQueryString()) != null) {
                 names[n_size] = "QUERY_STRING";
                 values[n_size++] = argValue;
             }
 
-            Path path = address.getPath();
-
-            if (path != null) {
+            if ((argValue = req.getName()) != null) {
                 names[n_size] = "SCRIPT_NAME";
-                values[n_size++] = path.getName();
+                values[n_size++] = argValue;
             }
 
             names[n_size] = "SERVER_SOFTWARE";
@@ -577,7 +1082,7 @@ public class ProcedureCache {
             names[n_size] = "CONTENT_LENGTH";
             values[n_size++] = "" + req.getContentLength();
 
-            ContentType contentType = req.getContentType();
+            MediaType contentType = req.getContentType();
             if (contentType != null
                     && (argValue = contentType.toString()) != null) {
                 names[n_size] = "CONTENT_TYPE";
@@ -585,11 +1090,11 @@ public class ProcedureCache {
             }
 
             names[n_size] = "SERVER_PROTOCOL";
-            values[n_size++] = "HTTP/" + req.getMajor() + "." + req.getMinor();
+            values[n_size++] = req.getProtocol();
 
             String protocol = req.getValue("X-Forwarded-Proto");
             if (protocol == null) {
-                protocol = address.getScheme();
+                protocol = req.getScheme();
             }
 
             if (protocol != null) {
@@ -669,7 +1174,7 @@ public class ProcedureCache {
             names[n_size] = "REQUEST_CHARSET";
             values[n_size++] = config.dbCharset();
             names[n_size] = "DOCUMENT_TABLE";
-            values[n_size++] = "owa_public.wpg_document";
+            values[n_size++] = config.documentTable();
             names[n_size] = "PLSQL_GATEWAY";
             values[n_size++] = Prizmora.NAME;
             names[n_size] = "GATEWAY_IVERSION";
@@ -680,149 +1185,169 @@ public class ProcedureCache {
         }
     }
 
-    private static class ProcedureTypes {
-
-        // final for effective immutability and safe publication
-        private final Map<Integer, Map<String, String>> overloads;
+    static class ProcedureTypes {
+
+        // dbms_utility.name_resolve errors meaning the name doesn't exist:
+        // ORA-06564 object does not exist, ORA-04047 object is incompatible
+        // with the flag specified, ORA-00931 missing identifier
+        private static final int[] NOT_FOUND_ERRORS = { 6564, 4047, 931 };
+
+        // field and record separators used to pack the argument rows into a
+        // single VARCHAR2 out parameter
+        private static final char FIELD_SEP = (char) 31;
+        private static final char RECORD_SEP = (char) 30;
+
+        /*
+         * Resolves the name and collects its arguments in a single round
+         * trip, returning them along with the resolved name in lower case.
+         * Element rows of PL/SQL tables (data_level > 0) and the unnamed
+         * rows for "no arguments" and function results are filtered out on
+         * the server, and so is every occurrence of an argument name but
+         * the one from the lowest overload, so overloads don't add to the
+         * size. Arguments that still don't fit in a VARCHAR2(32767) fail
+         * with ORA-20001 naming the procedure rather than a bare ORA-06502.
+         */
+        private static final String DESCRIBE_SQL =
+            "DECLARE\n"
+            + "  v_owner varchar2(128);\n"
+            + "  v_package varchar2(128);\n"
+            + "  v_procedure varchar2(128);\n"
+            + "  v_dblink varchar2(128);\n"
+            + "  v_part1_type number;\n"
+            + "  v_object_number number;\n"
+            + "  v_args varchar2(32767);\n"
+            + "BEGIN\n"
+            + "  dbms_utility.name_resolve(?, 1, v_owner, v_package, v_procedure,\n"
+            + "                            v_dblink, v_part1_type, v_object_number);\n"
+            + "  FOR a IN (SELECT argument_name, argument_type\n"
+            + "              FROM (SELECT lower(argument_name) argument_name,\n"
+            + "                           decode(data_type, 'PL/SQL TABLE',\n"
+            + "                                  type_owner || '.' || type_name || '.' || type_subname,\n"
+            + "                                  data_type) argument_type,\n"
+            + "                           row_number() OVER (PARTITION BY lower(argument_name)\n"
+            + "                                              ORDER BY to_number(nvl(overload, '1')), position) rn\n"
+            + "                      FROM all_arguments\n"
+            + "                     WHERE object_id = v_object_number\n"
+            + "                       AND object_name = v_procedure\n"
+            + "                       AND data_level = 0\n"
+            + "                       AND argument_name IS NOT NULL)\n"
+            + "             WHERE rn = 1)\n"
+            + "  LOOP\n"
+            + "    BEGIN\n"
+            + "      v_args := v_args || a.argument_name || chr(31) || a.argument_type || chr(30);\n"
+            + "    EXCEPTION WHEN value_error THEN\n"
+            + "      raise_application_error(-20001, 'Arguments of ' || v_owner || '.'\n"
+            + "          || nvl2(v_package, v_package || '.', '') || v_procedure\n"
+            + "          || ' are too long to describe');\n"
+            + "    END;\n"
+            + "  END LOOP;\n"
+            + "  ? := v_args;\n"
+            + "  ? := lower(v_owner || nvl2(v_package, '.' || v_package, '')\n"
+            + "             || nvl2(v_procedure, '.' || v_procedure, ''));\n"
+            + "END;";
+
+        // final for effective immutability and safe publication. Argument
+        // names are sorted for binary search; argumentTypes is parallel.
+        private final String[] argumentNames;
+        private final String[] argumentTypes;
+        // owner.package.procedure or owner.procedure, lower case
+        private final String resolvedName;
 
         /**
          * Find the Stored Procedure in the table all_arguments to get public
-         * definitios If there are public Stored Procedures add this definition
-         * to the Hashtable of the superclass, and store all overloaded
-         * ocurrence of the same StoreProcedure
+         * definitions. An argument that appears in several overloads takes
+         * its type from the lowest numbered overload.
          */
-        public ProcedureTypes(String procname, Connection sqlconn)
+        public ProcedureTypes(String procname, Connection sqlconn, CallContext ctx)
                 throws SQLException {
             log.debug(".create overload for: '{}'", procname);
 
-            // build map first, then publish it as a last step for thread
-            // safety.
-            Map<Integer, Map<String, String>> procedures = new HashMap<Integer, Map<String, String>>();
-
-            String owner = null;
-            String plpackage = null;
-            String plprocedure = null;
+            String args = null;
+            String resolved = null;
             CallableStatement css = null;
             try {
-                css = sqlconn
-                        .prepareCall("BEGIN \n dbms_utility.name_resolve(?,1,?,?,?,?,?,?); \nEND;");
+                css = ctx.prepareCall(sqlconn, DESCRIBE_SQL);
                 css.setString(1, procname);
                 css.registerOutParameter(2, Types.VARCHAR);
                 css.registerOutParameter(3, Types.VARCHAR);
-                css.registerOutParameter(4, Types.VARCHAR);
-                css.registerOutParameter(5, Types.VARCHAR);
-                css.registerOutParameter(6, Types.VARCHAR);
-                css.registerOutParameter(7, Types.VARCHAR);
                 css.execute();
-                owner = css.getString(2);
-                plpackage = css.getString(3);
-                plprocedure = css.getString(4);
+                args = css.getString(2);
+                resolved = css.getString(3);
             } catch (SQLException e) {
-                log.error("Caught an exception running dbms_utility.name_resolve() for the procedure named '{}' {}", procname, e);
+                for (int errorCode : NOT_FOUND_ERRORS) {
+                    if (e.getErrorCode() == errorCode) {
+                        log.debug("Procedure named '{}' not found: {}", procname, e);
+                        throw new ProcedureNotFoundException(procname, e);
+                    }
+                }
+                log.error("Caught an exception describing the procedure named '{}' {}", procname, e);
                 throw e;
             } finally {
-                DbUtil.close(css);
+                ctx.close(css);
             }
 
-            PreparedStatement ps = null;
-            ResultSet rs = null;
-
-            try {
-                if (plpackage == null) {
-                    String sql = "SELECT argument_name, overload, data_type, type_owner, type_name, type_subname FROM all_arguments WHERE "
-                        + " owner = ? AND package_name IS NULL AND object_name = ?";
-                    ps = sqlconn.prepareStatement(sql);
-                    log.debug("Executing: {}\nWith arg 1: {}\nWith arg 2: {}", sql, owner, plprocedure);
-                    ps.setString(1, owner);
-                    ps.setString(2, plprocedure);
-                }
-                else {
-                    String sql = "SELECT argument_name, overload, data_type, type_owner, type_name, type_subname FROM all_arguments WHERE "
-                        + " owner = ? AND package_name = ? AND object_name = ?";
-                    ps = sqlconn.prepareStatement(sql);
-                    log.debug("Executing: {}\nWith arg 1: {}\nWith arg 2: {}\nWith arg 3: {}", sql, owner, plpackage, plprocedure);
-                    ps.setString(1, owner);
-                    ps.setString(2, plpackage);
-                    ps.setString(3, plprocedure);
+            // the server sends each name once, from the lowest overload
+            Map<String, String> types = new HashMap<String, String>();
+            int start = 0;
+            int end;
+            while (args != null && (end = args.indexOf(RECORD_SEP, start)) >= 0) {
+                int sep = args.indexOf(FIELD_SEP, start);
+                String argumentName = args.substring(start, sep);
+                String argumentType = args.substring(sep + 1, end);
+                start = end + 1;
+                if (!types.containsKey(argumentName)) {
+                    // types repeat across every procedure, share them
+                    types.put(argumentName, argumentType.intern());
+                    log.debug("            arg: {} data_type: {}", argumentName, argumentType);
                 }
-                rs = ps.executeQuery();
-
-                Map<String, String> procedure = null;
-                int old_overload = -1;
-                while (rs.next()) {
-                    String argument_name = rs.getString(1);
-                    int overload = 1;
-                    String overloadStr = rs.getString(2);
+            }
 
-                    if (overloadStr != null) {
-                        overload = Integer.parseInt(overloadStr);
-                    }
-                    if (old_overload != overload) {
-                        procedure = new HashMap<String, String>();
-                        procedures.put(overload, procedure);
-                        old_overload = overload;
-                    }
-                    // if procedure has no argument, empty row is returned
-                    if (argument_name == null) {
-                        log.debug("            overload: {} no argument", overload);
-                        continue;
-                    }
-                    argument_name = argument_name.toLowerCase();
-                    String data_type = rs.getString(3);
-                    String argumentType = data_type;
-                    if ("PL/SQL TABLE".equals(argumentType)) { // argument is
-                                                               // ARRAY variable
-                        String type_owner = rs.getString(4);
-                        String type_name = rs.getString(5);
-                        String type_subname = rs.getString(6);
-                        argumentType = type_owner + "." + type_name + "."
-                                + type_subname;
-                        rs.next(); // skip the next result...not sure why
-                                   // though!
-                    }
-                    procedure.put(argument_name, argumentType);
-                    log.debug("            overload: {} arg: {} data_type: {}",
-                              overload, argument_name, argumentType);
-                }
-            } finally {
-                DbUtil.close(rs);
-                DbUtil.close(ps);
+            String[] names = types.keySet().toArray(new String[types.size()]);
+            Arrays.sort(names);
+            String[] values = new String[names.length];
+            for (int i = 0; i < names.length; i++) {
+                values[i] = types.get(names[i]);
             }
 
-            // safely publish mutable field by assigning to a final
-            this.overloads = procedures;
+            this.argumentNames = names;
+            this.argumentTypes = values;
+            this.resolvedName = resolved != null ? resolved : procname.toLowerCase();
+        }
+
+        public String resolvedName() {
+            return resolvedName;
         }
 
         public String getArgumentType(String argumentName) {
-            int i = 1;
-            String type;
-            do {
-                Map<String, String> procedure = overloads.get(i++);
-                if (procedure == null) {
-                    return null;
-                }
-                type = procedure.get(argumentName);
-            } while (type == null);
-            return type;
+            int i = Arrays.binarySearch(argumentNames, argumentName);
+            if (i < 0) {
+                return null;
+            }
+            return argumentTypes[i];
         }
 
     }
 
-    private static class ProcedureCall {
+    static class ProcedureCall {
 
         private final String name;
         private final String[] parameterNames;
         private final Map<String, List<String>> parameterValues;
+        private final Map<String, CLOB> streamedClobs;
 
-        public ProcedureCall(Request req) throws Exception {
-            Form form = req.getForm();
+        /**
+         * Builds the call from the parsed form values. streamedClobs holds
+         * temporary CLOBs for values that were streamed rather than parsed,
+         * and may be null. The call owns them and frees them in release().
+         */
+        public ProcedureCall(HttpRequest req, Map<String, List<String>> form, Map<String, CLOB> streamedClobs) {
             Set<String> formKeys = form.keySet();
             String[] args = formKeys.toArray(new String[formKeys.size()]);
             Arrays.sort(args);
             Map<String, List<String>> values = new HashMap<String, List<String>>();
 
-            String name = req.getPath().getName();
-            if (name.charAt(0) == '!') { // flexible request
+            String name = req.getName();
+            if (isFlexible(name)) { // flexible request
                 final String NAME_ARRAY = "name_array";
                 final String VALUE_ARRAY= "value_array";
                 name = name.substring(1);
@@ -830,7 +1355,7 @@ public class ProcedureCache {
                 List<String> nameArray = new ArrayList<String>();
                 List<String> valueArray = new ArrayList<String>();
                 for (int i = 0; i < args.length; i++) {
-                    List<String> argValues = form.getAll(args[i]);
+                    List<String> argValues = form.get(args[i]);
                     for (String argValue: argValues) {
                         nameArray.add(args[i]);
                         valueArray.add(argValue);
@@ -845,7 +1370,7 @@ public class ProcedureCache {
             }
             else {
                 for (int i = 0; i < args.length; i++) {
-                    values.put(args[i], form.getAll(args[i]));
+                    values.put(args[i], form.get(args[i]));
                 }
             }
 
@@ -853,6 +1378,26 @@ public class ProcedureCache {
             this.name = name;
             this.parameterNames = args;
             this.parameterValues = values;
+            if (streamedClobs == null) {
+                streamedClobs = Collections.emptyMap();
+            }
+            this.streamedClobs = streamedClobs;
+        }
+
+        /**
+         * Returns the procedure name a request refers to, without parsing
+         * its parameters.
+         */
+        public static String procedureName(HttpRequest req) {
+            String name = req.getName();
+            if (isFlexible(name)) {
+                return name.substring(1);
+            }
+            return name;
+        }
+
+        public static boolean isFlexible(String name) {
+            return name != null && name.length() > 0 && name.charAt(0) == '!';
         }
 
         public String name() {
@@ -875,6 +1420,20 @@ public class ProcedureCache {
             return list.get(0);
         }
 
+        public CLOB streamedClob(String name) {
+            return streamedClobs.get(name);
+        }
+
+        public void release() {
+            for (CLOB clob : streamedClobs.values()) {
+                try {
+                    CLOB.freeTemporary(clob);
+                } catch (Throwable t) {
+                    log.error("CLOB.freeTemporary error: {}", t.toString());
+                }
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,103 @@
+package net.prizmora;
+
+import java.util.regex.Pattern;
+
+/**
+ * Decides which procedures may be called through the gateway. Rules are
+ * given as comma separated lists of procedure names. A rule may be an exact
+ * (optionally schema-qualified) name such as "scott.emp_pkg.show", or a glob
+ * where '*' matches any run of characters and '?' matches one character, so
+ * prefixes are written as "dbms_*". Each list is compiled once into a single
+ * case-insensitive pattern.
+ *
+ * A procedure is allowed if it matches the allow list (or the allow list is
+ * empty) and doesn't match the deny list. Once the database has resolved the
+ * name, the deny list is checked again against the owner-qualified name it
+ * resolved to, so a synonym or the default schema can't be used to reach a
+ * denied procedure under another name.
+ */
+public class ProcedureFilter {
+
+    private final Pattern allow;
+    private final Pattern deny;
+
+    public ProcedureFilter(String allowRules, String denyRules) {
+        this.allow = compile(allowRules);
+        this.deny = compile(denyRules);
+    }
+
+    public boolean isAllowed(String procName) {
+        if (procName == null) {
+            return false;
+        }
+        if (allow != null && !allow.matcher(procName).matches()) {
+            return false;
+        }
+        return deny == null || !deny.matcher(procName).matches();
+    }
+
+    /**
+     * Returns false if the resolved name of a procedure, in the form
+     * owner.package.procedure or owner.procedure, matches the deny list
+     * either with or without its owner. The allow list only applies to the
+     * names clients ask for.
+     */
+    public boolean isAllowedResolved(String resolvedName) {
+        if (resolvedName == null) {
+            return false;
+        }
+        if (deny == null) {
+            return true;
+        }
+        if (deny.matcher(resolvedName).matches()) {
+            return false;
+        }
+        int dot = resolvedName.indexOf('.');
+        return dot < 0 || !deny.matcher(resolvedName.substring(dot + 1)).matches();
+    }
+
+    /**
+     * Compiles a comma separated list of globs into one case-insensitive
+     * pattern, or returns null if the list is empty.
+     */
+    static Pattern compile(String rules) {
+        if (rules == null) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.length() == 0) {
+                continue;
+            }
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append(globToRegex(rule));
+        }
+        if (regex.length() == 0) {
+            return null;
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return "(?:" + regex + ")";
+    }
+
+}
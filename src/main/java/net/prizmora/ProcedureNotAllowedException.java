@@ -0,0 +1,16 @@
+package net.prizmora;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when a procedure is refused by the procedureAllow and procedureDeny
+ * rules, including when the name it resolves to in the database is denied.
+ */
+public class ProcedureNotAllowedException extends SQLException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ProcedureNotAllowedException(String procName) {
+		super("Not Authorized: " + procName);
+	}
+}
@@ -0,0 +1,16 @@
+package net.prizmora;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when a requested procedure name can't be resolved in the database.
+ */
+public class ProcedureNotFoundException extends SQLException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ProcedureNotFoundException(String procName, SQLException cause) {
+		super("Procedure not found: " + procName, cause.getSQLState(), cause.getErrorCode());
+		initCause(cause);
+	}
+}
@@ -0,0 +1,16 @@
+package net.prizmora;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when a procedure call is abandoned because its client went away.
+ */
+public class RequestCancelledException extends SQLException {
+
+	private static final long serialVersionUID = 1L;
+
+	public RequestCancelledException(Throwable cause) {
+		super("Client disconnected, request cancelled");
+		initCause(cause);
+	}
+}
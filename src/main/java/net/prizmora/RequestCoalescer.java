@@ -0,0 +1,234 @@
+package net.prizmora;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Lets identical GETs of the coalesceProcedures that arrive while one of
+ * them is running share its result instead of each calling the procedure.
+ * The first request becomes the leader of a Flight and runs as usual,
+ * keeping a copy of its page; requests that join the flight meanwhile wait
+ * for it to finish and are sent that page, taking neither a connection nor
+ * a concurrency permit. They wait no longer than their own deadline. If
+ * the leader fails, or its page can't be shared, they go on to make their
+ * own calls.
+ *
+ * Requests are identical if they have the same path, query string and
+ * values of the headers the matching rule lists. A rule is written as
+ * glob=Header|cookie:name|..., with the glob as in ProcedureFilter. Without
+ * the = part the whole Cookie header is used, since most pages depend on
+ * it.
+ */
+public class RequestCoalescer {
+
+    private static final String[] DEFAULT_HEADERS = { "Cookie" };
+
+    private static final Metrics.Counter coalesced = Metrics.counter("requests_coalesced_total");
+    private static final Metrics.Counter unshared = Metrics.counter("requests_coalesced_unshared_total");
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+    private volatile Rules rules;
+
+    /**
+     * The coalesceProcedures settings, compiled. Built apart from the
+     * coalescer so that a reload can check them before changing anything.
+     */
+    static class Rules {
+        final List<Pattern> patterns = new ArrayList<Pattern>();
+        final List<String[]> headers = new ArrayList<String[]>();
+        final int maxSize;
+
+        Rules(PrizmoraConfig config) throws PrizmoraConfigException {
+            this.maxSize = config.coalesceMaxSize();
+            for (String rule : config.coalesceProcedures().split(",")) {
+                rule = rule.trim();
+                if (rule.length() == 0) {
+                    continue;
+                }
+                int eq = rule.indexOf('=');
+                String glob = eq < 0 ? rule : rule.substring(0, eq).trim();
+                if (glob.length() == 0) {
+                    throw new PrizmoraConfigException("coalesceProcedures entry must be procedure[=headers]: " + rule);
+                }
+                patterns.add(Pattern.compile(ProcedureFilter.globToRegex(glob),
+                                             Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+                headers.add(eq < 0 ? DEFAULT_HEADERS : parseHeaders(rule.substring(eq + 1)));
+            }
+        }
+
+        private static String[] parseHeaders(String list) {
+            List<String> names = new ArrayList<String>();
+            for (String name : list.split("\\|")) {
+                name = name.trim();
+                if (name.length() > 0) {
+                    names.add(name);
+                }
+            }
+            return names.toArray(new String[names.size()]);
+        }
+    }
+
+    /**
+     * A call in progress whose result is waited for by the requests that
+     * joined it.
+     */
+    public static class Flight {
+        final String key;
+        private final CountDownLatch done = new CountDownLatch(1);
+        // null if the leader's page can't be shared
+        private volatile Result result;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Waits for the leader to finish, then sends its page to resp.
+         * Returns false, having sent nothing, if there is no page to share.
+         * Throws, having sent nothing, if the waiting request's deadline
+         * passes or it's cancelled first.
+         */
+        public boolean await(HttpResponse resp, CallContext ctx)
+                throws InterruptedException, IOException, SQLException {
+            // wakes up now and then to notice a client that went away
+            while (!done.await(Math.min(ctx.remainingMillis(), 1000), TimeUnit.MILLISECONDS)) {
+                ctx.check();
+            }
+            Result result = this.result;
+            if (result == null) {
+                unshared.increment();
+                return false;
+            }
+            coalesced.increment();
+            result.send(resp);
+            return true;
+        }
+    }
+
+    /* A page kept by the leader. Nothing changes it once it is published. */
+    private static class Result {
+        final int code;
+        final String text;
+        final List<String[]> headers;
+        final byte[] body;
+        final int length;
+
+        Result(CachingResponse page) {
+            this.code = page.getCode();
+            this.text = page.text();
+            this.headers = page.headers();
+            this.body = page.body();
+            this.length = page.bodyLength();
+        }
+
+        // every waiter writes the body into its own response, so each has
+        // its own copy of it to send
+        void send(HttpResponse resp) throws IOException {
+            resp.setCode(code);
+            if (text != null) {
+                resp.setText(text);
+            }
+            for (String[] header : headers) {
+                if (!header[0].equalsIgnoreCase("Content-Length")) {
+                    resp.add(header[0], header[1]);
+                }
+            }
+            resp.setContentLength(length);
+            OutputStream out = resp.getOutputStream();
+            try {
+                out.write(body, 0, length);
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    public RequestCoalescer(PrizmoraConfig config) throws PrizmoraConfigException {
+        this.rules = new Rules(config);
+    }
+
+    /** Switches to rules built from a reloaded configuration. */
+    void reconfigure(Rules rules) {
+        this.rules = rules;
+    }
+
+    /** Largest page (in bytes) that is kept for sharing. */
+    public int maxSize() {
+        return rules.maxSize;
+    }
+
+    /**
+     * Returns the key identifying requests identical to req, or null if
+     * req isn't coalesced. Callers must leave out cursor functions, whose
+     * rows are streamed rather than kept.
+     */
+    public String keyFor(HttpRequest req) {
+        Rules rules = this.rules;
+        if (rules.patterns.isEmpty() || !"GET".equals(req.getMethod())) {
+            return null;
+        }
+        String procName = ProcedureCache.ProcedureCall.procedureName(req);
+        if (procName == null) {
+            return null;
+        }
+        for (int i = 0; i < rules.patterns.size(); i++) {
+            if (rules.patterns.get(i).matcher(procName).matches()) {
+                return key(req, rules.headers.get(i));
+            }
+        }
+        return null;
+    }
+
+    private static String key(HttpRequest req, String[] headers) {
+        StringBuilder sb = new StringBuilder(req.getPath());
+        if (req.getQueryString() != null) {
+            sb.append('?').append(req.getQueryString());
+        }
+        for (String name : headers) {
+            String value;
+            if (name.regionMatches(true, 0, "cookie:", 0, 7)) {
+                value = HttpUtil.cookie(req.getValue("Cookie"), name.substring(7));
+            }
+            else {
+                value = req.getValue(name);
+            }
+            // a missing header is told apart from an empty one
+            sb.append('\n');
+            if (value != null) {
+                sb.append(':').append(value);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts a flight for key. Returns null if the caller is now its leader
+     * and must pass it to finish when done, otherwise the flight already in
+     * progress to wait for.
+     */
+    public Flight join(Flight flight) {
+        return flights.putIfAbsent(flight.key, flight);
+    }
+
+    /**
+     * Ends a flight led by the caller, handing page to the requests waiting
+     * for it if it can be shared. page is null if the leader failed or sent
+     * no page.
+     */
+    public void finish(Flight flight, CachingResponse page) {
+        // requests arriving from now on start a new flight
+        flights.remove(flight.key, flight);
+        flight.result = page != null && page.isShareable() ? new Result(page) : null;
+        flight.done.countDown();
+    }
+
+}
@@ -0,0 +1,90 @@
+package net.prizmora;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides how long a request may run. The timeout comes from the first
+ * requestTimeoutRules entry matching the procedure name, or requestTimeout
+ * if none does. If maxRequestTimeout is set, clients may ask for a shorter
+ * timeout with an X-Request-Timeout header (in seconds). The header can't
+ * lengthen a timeout, and where there is none it is honored up to
+ * maxRequestTimeout.
+ */
+public class RequestTimeouts {
+
+    public static final String HEADER = "X-Request-Timeout";
+
+    private final int defaultTimeout;
+    private final int maxTimeout;
+    private final List<Pattern> patterns = new ArrayList<Pattern>();
+    private final List<Integer> timeouts = new ArrayList<Integer>();
+
+    public RequestTimeouts(PrizmoraConfig config) throws PrizmoraConfigException {
+        this.defaultTimeout = config.requestTimeout();
+        this.maxTimeout = config.maxRequestTimeout();
+        parseRules(config.requestTimeoutRules(), patterns, timeouts);
+    }
+
+    /**
+     * Parses rules of the form "glob=seconds, glob=seconds", where each glob
+     * is written as in ProcedureFilter.
+     */
+    static void parseRules(String rules, List<Pattern> patterns, List<Integer> timeouts) throws PrizmoraConfigException {
+        for (String rule : rules.split(",")) {
+            rule = rule.trim();
+            if (rule.length() == 0) {
+                continue;
+            }
+            int eq = rule.lastIndexOf('=');
+            int seconds = -1;
+            if (eq > 0) {
+                try {
+                    seconds = Integer.parseInt(rule.substring(eq + 1).trim());
+                }
+                catch (NumberFormatException e) {
+                    // reported below
+                }
+            }
+            if (seconds < 0) {
+                throw new PrizmoraConfigException("requestTimeoutRules entry must be procedure=seconds: " + rule);
+            }
+            patterns.add(Pattern.compile(ProcedureFilter.globToRegex(rule.substring(0, eq).trim()),
+                                         Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+            timeouts.add(seconds);
+        }
+    }
+
+    /**
+     * Returns the timeout in seconds for a call to procName, or 0 if it has
+     * none.
+     */
+    public int timeoutFor(String procName, HttpRequest req) {
+        int timeout = defaultTimeout;
+        if (procName != null) {
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patterns.get(i).matcher(procName).matches()) {
+                    timeout = timeouts.get(i);
+                    break;
+                }
+            }
+        }
+
+        String header = req.getValue(HEADER);
+        if (header != null && maxTimeout > 0) {
+            try {
+                int requested = Integer.parseInt(header.trim());
+                if (requested > 0) {
+                    // 0 means no timeout, which any request shortens
+                    timeout = Math.min(requested, timeout > 0 ? timeout : maxTimeout);
+                }
+            }
+            catch (NumberFormatException e) {
+                // ignore a malformed header
+            }
+        }
+        return timeout;
+    }
+
+}
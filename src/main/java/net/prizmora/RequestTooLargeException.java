@@ -0,0 +1,15 @@
+package net.prizmora;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request body exceeds the configured maxBodySize.
+ */
+public class RequestTooLargeException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public RequestTooLargeException(long maxSize) {
+		super("Request body exceeds " + maxSize + " bytes");
+	}
+}
@@ -0,0 +1,14 @@
+package net.prizmora;
+
+/**
+ * Thrown when a response fails after its status and part of its body have
+ * been sent, so it can't be turned into an error response any more.
+ */
+public class ResponseAbortedException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public ResponseAbortedException(Throwable cause) {
+		super("Response aborted: " + cause, cause);
+	}
+}
@@ -0,0 +1,406 @@
+package net.prizmora;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import sun.misc.Unsafe;
+
+/**
+ * Page cache kept in a memory-mapped file, so that every Prizmora process
+ * on a host which is configured with the same file shares it.
+ *
+ * The file is a header followed by fixed size slots, one page per slot.
+ * The slots are split into groups of GROUP; a key hashes to one group and
+ * may only be stored in one of its slots, so the group is the whole hash
+ * index. Lookups take no locks: each slot has a sequence number which is
+ * odd while the slot is being written, and a lookup that sees it change
+ * while copying a page out treats the slot as a miss. The sequence number
+ * is only read and written with volatile accesses, through Unsafe since
+ * ByteBuffer has none, and fenced so that the page can't be read or
+ * written outside the sequence checks. Writers to a group
+ * hold a stripe lock, both in this JVM and as a file lock for the other
+ * processes. When a group is full, an expired page is replaced if there is
+ * one, otherwise the group's clock hand picks a page that hasn't been
+ * served since the hand last passed it.
+ *
+ * Every process sharing the file must use the same size and slot size; a
+ * process that finds the file laid out differently clears it.
+ */
+public class ResponseCache {
+
+    private static final Logger log = LogManager.getLogger(ResponseCache.class);
+
+    private static final int MAGIC = 0x505a5243; // "PZRC"
+    // 2: sequence numbers are in native byte order
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4096;
+    private static final int GROUP = 8;
+    private static final int STRIPES = 64;
+
+    // File locks are taken on bytes past the end of the mapping, so they
+    // never get in the way of reads and writes through it.
+    private static final long LOCK_BASE = Long.MAX_VALUE / 2;
+    private static final long INIT_LOCK = LOCK_BASE - 1;
+
+    // header layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SLOT_SIZE = 8;
+    private static final int H_GROUPS = 12;
+
+    // slot layout: the key, header lines and body follow DATA
+    private static final int SEQ = 0;
+    private static final int REF = 4;
+    private static final int HASH = 8;
+    private static final int EXPIRES = 16;
+    private static final int KEY_LEN = 24;
+    private static final int META_LEN = 28;
+    private static final int BODY_LEN = 32;
+    private static final int DATA = 36;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int slotSize;
+    private final int groups;
+    private final int handsOffset;
+    private final int slotsOffset;
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    // address of the mapping, for volatile access to sequence numbers
+    private final long address;
+
+    private static final Unsafe unsafe;
+    private static final long bufferAddressOffset;
+
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = (Unsafe) field.get(null);
+            bufferAddressOffset = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        }
+        catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /*
+     * Pages are copied out of the mapping into a direct buffer, so they
+     * never pass through the heap, and checked before being sent. fence is
+     * written between copying a page and reading the sequence number again:
+     * loads can't be moved after a volatile store, nor a volatile store
+     * after a volatile load, so the copy is finished before the check.
+     */
+    private static class Reader {
+        final ByteBuffer buf;
+        volatile int fence;
+
+        Reader(int slotSize) {
+            this.buf = ByteBuffer.allocateDirect(slotSize);
+        }
+    }
+
+    private final ThreadLocal<Reader> readers = new ThreadLocal<Reader>() {
+        @Override
+        protected Reader initialValue() {
+            return new Reader(slotSize);
+        }
+    };
+
+    private final Metrics.Counter hits = Metrics.counter("response_cache_hits_total");
+    private final Metrics.Counter misses = Metrics.counter("response_cache_misses_total");
+    private final Metrics.Counter stores = Metrics.counter("response_cache_stores_total");
+    private final Metrics.Counter evictions = Metrics.counter("response_cache_evictions_total");
+
+    public ResponseCache(File path, long size, int slotSize) throws IOException {
+        this.slotSize = slotSize;
+        this.groups = (int) ((size - HEADER_SIZE) / ((long) GROUP * slotSize + 4));
+        if (groups < 1) {
+            throw new IOException("response cache of " + size + " bytes is too small for slots of "
+                                  + slotSize + " bytes");
+        }
+        this.handsOffset = HEADER_SIZE;
+        this.slotsOffset = HEADER_SIZE + ((groups * 4 + 63) & ~63);
+        long length = slotsOffset + (long) groups * GROUP * slotSize;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("response cache can't be larger than " + Integer.MAX_VALUE + " bytes");
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+
+        this.file = new RandomAccessFile(path, "rw");
+        boolean ok = false;
+        try {
+            this.channel = file.getChannel();
+            FileLock lock = channel.lock(INIT_LOCK, 1, false);
+            try {
+                if (file.length() < length) {
+                    file.setLength(length);
+                }
+                this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+                this.address = unsafe.getLong(map, bufferAddressOffset);
+                if (map.getInt(H_MAGIC) != MAGIC || map.getInt(H_VERSION) != VERSION
+                    || map.getInt(H_SLOT_SIZE) != slotSize || map.getInt(H_GROUPS) != groups) {
+                    log.info("Initializing response cache {} with {} slots of {} bytes",
+                             path, groups * GROUP, slotSize);
+                    clear((int) length);
+                }
+            }
+            finally {
+                lock.release();
+            }
+            ok = true;
+        }
+        finally {
+            if (!ok) {
+                IoUtil.close(file.getChannel());
+            }
+        }
+    }
+
+    private void clear(int length) {
+        map.putInt(H_MAGIC, 0);
+        for (int i = HEADER_SIZE; i < slotsOffset; i += 4) {
+            map.putInt(i, 0);
+        }
+        for (int base = slotsOffset; base < length; base += slotSize) {
+            putSeq(base, 0);
+            map.putLong(base + HASH, 0);
+            map.putLong(base + EXPIRES, 0);
+        }
+        map.putInt(H_VERSION, VERSION);
+        map.putInt(H_SLOT_SIZE, slotSize);
+        map.putInt(H_GROUPS, groups);
+        map.putInt(H_MAGIC, MAGIC);
+    }
+
+    /**
+     * If a live page is cached for key, sends it as a 200 response with its
+     * headers and returns true. Returns false otherwise, having sent
+     * nothing.
+     */
+    public boolean serve(String key, HttpResponse resp) throws IOException {
+        byte[] k = utf8(key);
+        long hash = hash(k);
+        int group = group(hash);
+        Reader reader = readers.get();
+        ByteBuffer buf = reader.buf;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < GROUP; i++) {
+            int base = slot(group, i);
+            if (map.getLong(base + HASH) != hash) {
+                continue;
+            }
+            int seq = getSeq(base);
+            if ((seq & 1) != 0) {
+                continue;
+            }
+            long expires = map.getLong(base + EXPIRES);
+            int keyLen = map.getInt(base + KEY_LEN);
+            int metaLen = map.getInt(base + META_LEN);
+            int bodyLen = map.getInt(base + BODY_LEN);
+            if (expires <= now || keyLen != k.length || metaLen < 0 || bodyLen < 0
+                || DATA + keyLen + metaLen + bodyLen > slotSize || !keyMatches(base + DATA, k)) {
+                continue;
+            }
+            ByteBuffer src = map.duplicate();
+            src.limit(base + DATA + keyLen + metaLen + bodyLen);
+            src.position(base + DATA + keyLen);
+            buf.clear();
+            buf.put(src);
+            buf.flip();
+            reader.fence = seq;
+            if (getSeq(base) != seq) {
+                // rewritten while it was being copied
+                continue;
+            }
+            map.put(base + REF, (byte) 1);
+            hits.increment();
+            send(buf, metaLen, resp);
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    private void send(ByteBuffer buf, int metaLen, HttpResponse resp) throws IOException {
+        byte[] meta = new byte[metaLen];
+        buf.get(meta);
+        resp.setCode(200);
+        for (String line : new String(meta, "UTF-8").split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                resp.add(line.substring(0, colon), line.substring(colon + 1));
+            }
+        }
+        resp.setContentLength(buf.remaining());
+        WritableByteChannel out = resp.getByteChannel();
+        try {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Caches a page for key for ttlSeconds, replacing any page already
+     * cached for it. headers are name/value pairs to send with the body.
+     * Returns false if the page doesn't fit in a slot.
+     */
+    public boolean store(String key, int ttlSeconds, List<String[]> headers, byte[] body, int bodyLen)
+            throws IOException {
+        byte[] k = utf8(key);
+        StringBuilder lines = new StringBuilder();
+        for (String[] header : headers) {
+            lines.append(header[0]).append(':').append(header[1]).append('\n');
+        }
+        byte[] meta = utf8(lines.toString());
+        if (DATA + k.length + meta.length + bodyLen > slotSize) {
+            return false;
+        }
+        long hash = hash(k);
+        int group = group(hash);
+        int stripe = group % STRIPES;
+        locks[stripe].lock();
+        try {
+            FileLock lock = channel.lock(LOCK_BASE + stripe, 1, false);
+            try {
+                int base = slot(group, victim(group, hash, k));
+                int seq = getSeq(base);
+                putSeq(base, seq | 1);
+                // a volatile load, which later accesses can't be moved
+                // before, keeps the page from being written while the
+                // slot still looks complete
+                getSeq(base);
+                map.putLong(base + HASH, hash);
+                map.putLong(base + EXPIRES, System.currentTimeMillis() + ttlSeconds * 1000L);
+                map.putInt(base + KEY_LEN, k.length);
+                map.putInt(base + META_LEN, meta.length);
+                map.putInt(base + BODY_LEN, bodyLen);
+                ByteBuffer dst = map.duplicate();
+                dst.position(base + DATA);
+                dst.put(k);
+                dst.put(meta);
+                dst.put(body, 0, bodyLen);
+                map.put(base + REF, (byte) 0);
+                putSeq(base, (seq | 1) + 1);
+            }
+            finally {
+                lock.release();
+            }
+        }
+        finally {
+            locks[stripe].unlock();
+        }
+        stores.increment();
+        return true;
+    }
+
+    /*
+     * Picks the slot of the group to store a page in: the slot already
+     * holding the key, else an empty or expired slot, else the first slot
+     * from the clock hand on that hasn't been served since the hand last
+     * passed it. Called with the group's stripe locked.
+     */
+    private int victim(int group, long hash, byte[] k) {
+        long now = System.currentTimeMillis();
+        int free = -1;
+        for (int i = 0; i < GROUP; i++) {
+            int base = slot(group, i);
+            long slotHash = map.getLong(base + HASH);
+            if (slotHash == hash && map.getInt(base + KEY_LEN) == k.length && keyMatches(base + DATA, k)) {
+                return i;
+            }
+            if (free < 0 && (slotHash == 0 || map.getLong(base + EXPIRES) <= now)) {
+                free = i;
+            }
+        }
+        if (free >= 0) {
+            return free;
+        }
+        int handPos = handsOffset + group * 4;
+        int hand = map.getInt(handPos);
+        for (int n = 0; ; n++) {
+            int i = (hand + n) % GROUP;
+            int base = slot(group, i);
+            if (map.get(base + REF) == 0 || n >= GROUP) {
+                map.putInt(handPos, (i + 1) % GROUP);
+                evictions.increment();
+                return i;
+            }
+            map.put(base + REF, (byte) 0);
+        }
+    }
+
+    private int getSeq(int base) {
+        return unsafe.getIntVolatile(null, address + base + SEQ);
+    }
+
+    private void putSeq(int base, int seq) {
+        unsafe.putIntVolatile(null, address + base + SEQ, seq);
+    }
+
+    private int slot(int group, int i) {
+        return slotsOffset + (group * GROUP + i) * slotSize;
+    }
+
+    private int group(long hash) {
+        return (int) ((hash >>> 1) % groups);
+    }
+
+    private boolean keyMatches(int pos, byte[] k) {
+        for (int i = 0; i < k.length; i++) {
+            if (map.get(pos + i) != k[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 64-bit FNV-1a; 0 is kept to mark empty slots
+    private static long hash(byte[] k) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : k) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Largest page body, in bytes, which could fit in a slot. */
+    public int maxBodySize() {
+        return slotSize - DATA;
+    }
+
+    public void close() {
+        IoUtil.close(channel);
+    }
+
+}
@@ -0,0 +1,246 @@
+package net.prizmora;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.simpleframework.http.ContentType;
+import org.simpleframework.http.Form;
+import org.simpleframework.http.Part;
+import org.simpleframework.http.Query;
+import org.simpleframework.http.Request;
+import org.simpleframework.http.Response;
+import org.simpleframework.http.core.Container;
+import org.simpleframework.http.core.ContainerServer;
+import org.simpleframework.transport.connect.Connection;
+import org.simpleframework.transport.connect.SocketConnection;
+
+/**
+ * Transport based on the simpleframework HTTP server. Each request is
+ * handled on one of threadPoolSize threads for its whole duration,
+ * including sending the response.
+ */
+public class SimpleTransport implements HttpTransport {
+
+    private final PrizmoraConfig config;
+    private ContainerServer server;
+    private Connection connection;
+
+    public SimpleTransport(PrizmoraConfig config) {
+        this.config = config;
+    }
+
+    public void start(final HttpHandler handler) throws IOException {
+        Container container = new Container() {
+            public void handle(Request req, Response resp) {
+                handler.handle(new SimpleRequest(req), new SimpleResponse(resp));
+            }
+        };
+        server = new ContainerServer(container, config.threadPoolSize());
+        connection = new SocketConnection(server);
+        SocketAddress address = new InetSocketAddress(config.listenPort());
+        connection.connect(address);
+    }
+
+    public void stop() throws IOException {
+        if (connection != null) {
+            connection.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    public void reconfigure(PrizmoraConfig config) {
+        // the thread pool and port are fixed once the server has started
+    }
+
+    private static Map<String, List<String>> values(Query query) {
+        Map<String, List<String>> values = new HashMap<String, List<String>>();
+        for (String key : query.keySet()) {
+            values.put(key, query.getAll(key));
+        }
+        return values;
+    }
+
+    private static class SimpleRequest implements HttpRequest {
+        private final Request req;
+
+        SimpleRequest(Request req) {
+            this.req = req;
+        }
+
+        public String getMethod() { return req.getMethod(); }
+        public String getPath() { return req.getPath().getPath(); }
+        public String getDirectory() { return req.getPath().getDirectory(); }
+        public String getName() { return req.getPath().getName(); }
+
+        public String getQueryString() {
+            Query query = req.getAddress().getQuery();
+            return query == null ? null : query.toString();
+        }
+
+        public Map<String, List<String>> getQuery() {
+            return values(req.getQuery());
+        }
+
+        public Map<String, List<String>> getForm() throws IOException {
+            Form form = req.getForm();
+            Map<String, List<String>> values = new HashMap<String, List<String>>();
+            for (String key : form.keySet()) {
+                values.put(key, form.getAll(key));
+            }
+            return values;
+        }
+
+        public List<HttpPart> getParts() throws IOException {
+            List<HttpPart> parts = new ArrayList<HttpPart>();
+            for (final Part part : req.getForm().getParts()) {
+                if (part.isFile()) {
+                    parts.add(new HttpPart() {
+                        public String getName() { return part.getName(); }
+                        public String getFileName() { return part.getFileName(); }
+                        public String getContentType() {
+                            ContentType type = part.getContentType();
+                            return type == null ? null : type.toString();
+                        }
+                        public InputStream getInputStream() throws IOException {
+                            return part.getInputStream();
+                        }
+                    });
+                }
+            }
+            return parts;
+        }
+
+        public String getProtocol() { return "HTTP/" + req.getMajor() + "." + req.getMinor(); }
+        public String getScheme() { return req.getAddress().getScheme(); }
+        public String getValue(String name) { return req.getValue(name); }
+        public long getContentLength() { return req.getContentLength(); }
+
+        public MediaType getContentType() {
+            ContentType type = req.getContentType();
+            return type == null ? null : MediaType.parse(type.toString());
+        }
+
+        public InetSocketAddress getClientAddress() { return req.getClientAddress(); }
+        public InputStream getInputStream() throws IOException { return req.getInputStream(); }
+
+        public void onDisconnect(Runnable callback) {
+            // Simple doesn't tell us about closed connections
+        }
+
+        public String toString() {
+            return req.toString();
+        }
+    }
+
+    private static class SimpleResponse implements HttpResponse {
+        private final Response resp;
+        // body bytes written, for the access log
+        private long written;
+        private OutputStream out;
+        private PrintStream printStream;
+
+        SimpleResponse(Response resp) {
+            this.resp = resp;
+        }
+
+        public void setCode(int code) { resp.setCode(code); }
+        public int getCode() { return resp.getCode(); }
+        public void setText(String text) { resp.setText(text); }
+        public void set(String name, String value) { resp.set(name, value); }
+        public void add(String name, String value) { resp.add(name, value); }
+
+        public void setContentLength(long length) {
+            if (length <= Integer.MAX_VALUE) {
+                resp.setContentLength((int) length);
+            }
+            else {
+                resp.set("Content-Length", String.valueOf(length));
+            }
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                final OutputStream body = resp.getOutputStream();
+                out = new FilterOutputStream(body) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        body.write(b);
+                        written++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        body.write(b, off, len);
+                        written += len;
+                    }
+                };
+            }
+            return out;
+        }
+
+        public PrintStream getPrintStream() throws IOException {
+            if (printStream == null) {
+                printStream = new PrintStream(getOutputStream(), false, "UTF-8");
+            }
+            return printStream;
+        }
+
+        public WritableByteChannel getByteChannel() throws IOException {
+            return Channels.newChannel(getOutputStream());
+        }
+
+        public void sendFile(File file, long position, long count) throws IOException {
+            WritableByteChannel out = resp.getByteChannel();
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileChannel channel = in.getChannel();
+                long end = position + count;
+                while (position < end) {
+                    long n = channel.transferTo(position, end - position, out);
+                    if (n <= 0) {
+                        // file shrank underneath us
+                        break;
+                    }
+                    position += n;
+                    written += n;
+                }
+            }
+            finally {
+                IoUtil.close(in);
+            }
+        }
+
+        public long getBodyLength() {
+            return written;
+        }
+
+        public void close() throws IOException {
+            if (printStream != null) {
+                printStream.flush();
+            }
+            resp.close();
+        }
+
+        public void abort() throws IOException {
+            // Simple gives no way to drop the connection
+            close();
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+package net.prizmora;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An OutputStream that keeps what is written to it in memory until it grows
+ * past a threshold, then moves it to a temporary file. Used by the NIO
+ * transport to hold request and response bodies, so a slow client never
+ * ties up a worker thread or a database connection.
+ */
+class SpoolBuffer extends OutputStream {
+
+    private static final Metrics.Counter spooledFiles = Metrics.counter("spool_files_total", "kind", "buffer");
+    // bytes currently held in spool files
+    private static final Metrics.Counter spooledBytes = Metrics.gauge("spool_bytes");
+
+    private final int threshold;
+    private final File directory;
+
+    private byte[] buf;
+    private int count;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long length;
+
+    SpoolBuffer(int threshold, File directory) {
+        this.threshold = threshold;
+        this.directory = directory;
+        this.buf = new byte[Math.min(threshold, 4096)];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (channel == null && count + len > threshold) {
+            spill();
+        }
+        if (channel != null) {
+            channel.write(ByteBuffer.wrap(b, off, len), length);
+            spooledBytes.add(len);
+        }
+        else {
+            if (count + len > buf.length) {
+                byte[] grown = new byte[Math.min(threshold, Math.max(buf.length * 2, count + len))];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+        length += len;
+    }
+
+    private void spill() throws IOException {
+        File spoolFile = File.createTempFile("spool", null, directory);
+        file = new RandomAccessFile(spoolFile, "rw");
+        // the open file stays readable after it's deleted, and nothing is
+        // left behind if we die (POSIX only)
+        spoolFile.delete();
+        channel = file.getChannel();
+        channel.write(ByteBuffer.wrap(buf, 0, count), 0);
+        spooledFiles.increment();
+        spooledBytes.add(count);
+        buf = null;
+        count = 0;
+    }
+
+    long length() {
+        return length;
+    }
+
+    /** Returns true if the contents are held in a file rather than in memory. */
+    boolean isSpooled() {
+        return channel != null;
+    }
+
+    /** Returns the contents if they are in memory. */
+    ByteBuffer memory() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /** Returns the file holding the contents if they were spooled. */
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Returns a stream over the contents. Each call starts from the
+     * beginning.
+     */
+    InputStream getInputStream() {
+        if (channel == null) {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+        return new InputStream() {
+            private long position = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= length) {
+                    return -1;
+                }
+                int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, length - position)), position);
+                if (n > 0) {
+                    position += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    /** Frees the temporary file, if any. */
+    void release() {
+        if (channel != null) {
+            IoUtil.close(channel);
+            channel = null;
+            spooledBytes.add(-length);
+        }
+        buf = null;
+    }
+
+}
@@ -0,0 +1,398 @@
+package net.prizmora;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Serves files from local directories mounted at URL prefixes, so static
+ * assets don't need a separate web server in front of Prizmora. File
+ * metadata is cached by request path, so a cached file costs no filesystem
+ * calls, and rechecked at most once per metadataCheckInterval,
+ * responses carry ETag and Last-Modified validators, and file contents are
+ * handed to the transport to send without copying. If the client accepts gzip and a
+ * precompressed ".gz" sibling of the file exists, that is sent instead.
+ */
+public class StaticFiles {
+
+    private static final Logger log = LogManager.getLogger(StaticFiles.class);
+
+    // bound the metadata cache in case of many distinct files; the least
+    // recently used are dropped first
+    private static final int MAX_CACHED_FILES = 10000;
+
+    private static final Map<String, String> contentTypes = new HashMap<String, String>();
+    static {
+        contentTypes.put("html", "text/html; charset=UTF-8");
+        contentTypes.put("htm", "text/html; charset=UTF-8");
+        contentTypes.put("css", "text/css; charset=UTF-8");
+        contentTypes.put("js", "application/javascript; charset=UTF-8");
+        contentTypes.put("json", "application/json");
+        contentTypes.put("txt", "text/plain; charset=UTF-8");
+        contentTypes.put("xml", "application/xml");
+        contentTypes.put("png", "image/png");
+        contentTypes.put("gif", "image/gif");
+        contentTypes.put("jpg", "image/jpeg");
+        contentTypes.put("jpeg", "image/jpeg");
+        contentTypes.put("svg", "image/svg+xml");
+        contentTypes.put("ico", "image/x-icon");
+        contentTypes.put("pdf", "application/pdf");
+        contentTypes.put("woff", "application/font-woff");
+        contentTypes.put("woff2", "font/woff2");
+        contentTypes.put("ttf", "application/x-font-ttf");
+    }
+
+    private final List<Mount> mounts = new ArrayList<Mount>();
+    // keyed by mount prefix plus normalized relative path; guarded by itself
+    private final Map<String, FileInfo> fileCache = new LinkedHashMap<String, FileInfo>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileInfo> eldest) {
+            return size() > MAX_CACHED_FILES;
+        }
+    };
+    private final long checkInterval;
+    private final int maxAge;
+
+    public StaticFiles(PrizmoraConfig config) throws IOException, PrizmoraConfigException {
+        this.checkInterval = config.staticCheckInterval() * 1000L;
+        this.maxAge = config.staticMaxAge();
+
+        // format: /prefix/=/directory, /other/=/directory
+        for (String mount : config.staticMounts().split(",")) {
+            mount = mount.trim();
+            if (mount.length() == 0) {
+                continue;
+            }
+            int eq = mount.indexOf('=');
+            if (eq < 1) {
+                throw new PrizmoraConfigException("Invalid staticMounts entry: " + mount);
+            }
+            String prefix = mount.substring(0, eq).trim();
+            if (!prefix.endsWith("/")) {
+                prefix += "/";
+            }
+            File dir = new File(mount.substring(eq + 1).trim()).getCanonicalFile();
+            if (!dir.isDirectory()) {
+                throw new PrizmoraConfigException("staticMounts directory " + dir + " does not exist");
+            }
+            mounts.add(new Mount(prefix, dir));
+            log.info("Serving {} from {}", prefix, dir);
+        }
+    }
+
+    /**
+     * Returns true if the path is under one of the static mounts.
+     */
+    public boolean handles(String path) {
+        return findMount(path) != null;
+    }
+
+    public void serve(HttpRequest req, HttpResponse res) throws IOException {
+        String path = req.getPath();
+        Mount mount = findMount(path);
+        if (mount == null) {
+            notFound(res);
+            return;
+        }
+
+        String method = req.getMethod();
+        boolean head = "HEAD".equalsIgnoreCase(method);
+        if (!head && !"GET".equalsIgnoreCase(method)) {
+            res.setCode(405);
+            res.setText("Method Not Allowed");
+            res.set("Allow", "GET, HEAD");
+            res.setContentLength(0);
+            return;
+        }
+
+        FileInfo info = lookup(mount, path.substring(mount.prefix.length()));
+        if (info == null) {
+            notFound(res);
+            return;
+        }
+
+        boolean gzip = info.gzFile != null && acceptsGzip(req.getValue("Accept-Encoding"));
+        String etag = gzip ? info.gzEtag : info.etag;
+
+        if (info.gzFile != null) {
+            res.set("Vary", "Accept-Encoding");
+        }
+        res.set("ETag", etag);
+        res.set("Last-Modified", info.lastModifiedHttp);
+        res.set("Accept-Ranges", "bytes");
+        if (maxAge > 0) {
+            res.set("Cache-Control", "max-age=" + maxAge);
+        }
+
+        if (notModified(req, info, etag)) {
+            res.setCode(304);
+            res.setText("Not Modified");
+            return;
+        }
+
+        File file = gzip ? info.gzFile : info.file;
+        long length = gzip ? info.gzLength : info.length;
+        res.set("Content-Type", info.contentType);
+        if (gzip) {
+            res.set("Content-Encoding", "gzip");
+        }
+
+        long first = 0;
+        long count = length;
+        ByteRange range = rangeFor(req, info, etag, length);
+        if (range == ByteRange.UNSATISFIABLE) {
+            res.setCode(416);
+            res.setText("Requested Range Not Satisfiable");
+            res.set("Content-Range", range.contentRange(length));
+            res.setContentLength(0);
+            return;
+        }
+        if (range != null) {
+            res.setCode(206);
+            res.setText("Partial Content");
+            res.set("Content-Range", range.contentRange(length));
+            first = range.first();
+            count = range.length();
+        }
+        else {
+            res.setCode(200);
+        }
+        res.setContentLength(count);
+
+        if (!head) {
+            res.sendFile(file, first, count);
+        }
+    }
+
+    private Mount findMount(String path) {
+        if (path == null) {
+            return null;
+        }
+        for (Mount mount : mounts) {
+            if (path.startsWith(mount.prefix)) {
+                return mount;
+            }
+        }
+        return null;
+    }
+
+    private FileInfo lookup(Mount mount, String relative) throws IOException {
+        String normalized = normalize(relative);
+        if (normalized == null) {
+            log.debug("Rejecting path outside of {}: {}", mount.dir, relative);
+            return null;
+        }
+        String key = mount.prefix + normalized;
+
+        long now = System.currentTimeMillis();
+        FileInfo info;
+        synchronized (fileCache) {
+            info = fileCache.get(key);
+        }
+        if (info != null && now - info.checkedAt < checkInterval) {
+            return info;
+        }
+
+        // only a miss touches the filesystem; symlinks can still lead
+        // outside the mount, so check where the path really goes
+        File file = new File(mount.dir, normalized).getCanonicalFile();
+        if (!file.getPath().startsWith(mount.dirPrefix) || !file.isFile()) {
+            if (info != null) {
+                synchronized (fileCache) {
+                    fileCache.remove(key);
+                }
+            }
+            return null;
+        }
+
+        info = new FileInfo(file, now);
+        synchronized (fileCache) {
+            fileCache.put(key, info);
+        }
+        return info;
+    }
+
+    /**
+     * Returns the relative path with empty and "." segments removed, or
+     * null if it has a ".." segment or characters that could name
+     * something other than a file under the mount.
+     */
+    static String normalize(String relative) {
+        if (relative.indexOf('\\') >= 0 || relative.indexOf('\0') >= 0) {
+            return null;
+        }
+        StringBuilder path = new StringBuilder(relative.length());
+        for (String segment : relative.split("/")) {
+            if (segment.length() == 0 || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                return null;
+            }
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(segment);
+        }
+        return path.length() > 0 ? path.toString() : null;
+    }
+
+    private boolean notModified(HttpRequest req, FileInfo info, String etag) {
+        String ifNoneMatch = req.getValue("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.trim().equals("*") || ifNoneMatch.indexOf(etag) >= 0;
+        }
+        Date since = parseDate(req.getValue("If-Modified-Since"));
+        return since != null && info.lastModified / 1000 <= since.getTime() / 1000;
+    }
+
+    private ByteRange rangeFor(HttpRequest req, FileInfo info, String etag, long length) {
+        String ifRange = req.getValue("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(etag) && !ifRange.trim().equals(info.lastModifiedHttp)) {
+            return null;
+        }
+        return ByteRange.parse(req.getValue("Range"), length);
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            if (!params[0].trim().equalsIgnoreCase("gzip")) {
+                continue;
+            }
+            // "gzip;q=0" means gzip is not acceptable
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Float.parseFloat(param.substring(2)) > 0;
+                    }
+                    catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void notFound(HttpResponse res) throws IOException {
+        res.setCode(404);
+        res.setText("Not Found");
+        res.getPrintStream().print("Not Found");
+    }
+
+    private static String contentType(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            String type = contentTypes.get(name.substring(dot + 1).toLowerCase());
+            if (type != null) {
+                return type;
+            }
+        }
+        String type = URLConnection.getFileNameMap().getContentTypeFor(name);
+        return type != null ? type : "application/octet-stream";
+    }
+
+    // SimpleDateFormat isn't thread safe, so share one under a lock. It's
+    // only used when file metadata changes and for If-Modified-Since.
+    private static final DateFormat httpDate = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    static {
+        httpDate.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    private static String formatDate(long time) {
+        synchronized (httpDate) {
+            return httpDate.format(new Date(time));
+        }
+    }
+
+    private static Date parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            synchronized (httpDate) {
+                return httpDate.parse(value.trim());
+            }
+        }
+        catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static class Mount {
+        final String prefix;
+        final File dir;
+        final String dirPrefix;
+
+        Mount(String prefix, File dir) {
+            this.prefix = prefix;
+            this.dir = dir;
+            this.dirPrefix = dir.getPath() + File.separator;
+        }
+    }
+
+    private static class FileInfo {
+        final File file;
+        final long length;
+        final long lastModified;
+        final String lastModifiedHttp;
+        final String etag;
+        final String contentType;
+        final long checkedAt;
+
+        // precompressed sibling, or null if there isn't a current one
+        final File gzFile;
+        final long gzLength;
+        final String gzEtag;
+
+        FileInfo(File file, long now) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+            this.lastModifiedHttp = formatDate(lastModified);
+            this.etag = etag(length, lastModified, "");
+            this.contentType = contentType(file.getName());
+            this.checkedAt = now;
+
+            File gz = new File(file.getPath() + ".gz");
+            // a stale .gz left behind after the file changed must not be used
+            if (gz.isFile() && gz.lastModified() >= lastModified) {
+                this.gzFile = gz;
+                this.gzLength = gz.length();
+                this.gzEtag = etag(gzLength, gz.lastModified(), "-gz");
+            }
+            else {
+                this.gzFile = null;
+                this.gzLength = 0;
+                this.gzEtag = null;
+            }
+        }
+
+        private static String etag(long length, long lastModified, String suffix) {
+            return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + suffix + "\"";
+        }
+    }
+
+}